@@ -2,8 +2,17 @@ import com.scitools.understand.*;
 
 import java.io.*;
 import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 
 /**
@@ -17,9 +26,56 @@ public class DependencyAnalysis {
     private static String libPath;
 
     private static Database db;
+    // project files and classes of the open database, classes by qualified name
+    private static HashSet<String> entsWeCareAbout;
+    private static TreeMap<String, Entity> classTree;
+    // qualified names of the project classes by simple name, for clients that send simple names
+    private static HashMap<String, ArrayList<String>> classesBySimpleName;
+    // source files of the project by name without extension, to check only the files of the changed classes
+    private static HashMap<String, ArrayList<File>> sourceFilesByName;
+    // for each project class, the project classes that reference it
+    private static HashMap<String, HashSet<String>> reverseIndex;
+    // maximum number of references followed from a changed module; 0 for no limit
+    private static int maxDepth;
+    // time the database was last re-scanned by the service
+    private static long lastUpdate;
 
     private static final String LAST_ANALYSIS = "lastAnalysis.txt";
 
+    // references from a class to the classes it depends on; the reverse "...by" kinds would make the index
+    // undirected, and the closure would reach every class connected to a change in any direction
+    private static final String DEPENDENCY_KINDS =
+            "Java Use, Java Call, Java Create, Java Typed, Java Extend, Java Implement";
+
+    // request line of the service setting the maximum dependency depth
+    private static final String DEPTH_PREFIX = "DEPTH ";
+    // request line of the service naming the workspace of the requesting build
+    private static final String WORKSPACE_PREFIX = "WORKSPACE ";
+
+    // und process updating the database; destroyed when this program is, e.g. when the build step stops waiting
+    // for it, so that it does not go on using the database
+    private static volatile Process und;
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                Process process = und;
+                if (process != null) {
+                    process.destroy();
+                    try {
+                        process.waitFor();
+                    } catch (InterruptedException e) {
+                        // exiting anyway
+                    }
+                }
+            }
+        });
+    }
+
+    // modules per fork/join task when expanding a BFS level; smaller levels are expanded on the calling thread
+    private static final int PARALLEL_THRESHOLD = 256;
+    private static ForkJoinPool pool;
+
     /**
      * Main function for class
      * @param changedModules List of files that have been changed in version control
@@ -27,15 +83,24 @@ public class DependencyAnalysis {
      */
     public static void main (String[] args)
             throws IOException, InterruptedException {
-        if (args.length != 3) {
+        if (args.length == 4 && args[0].equals("--serve")) {
+            udbPath = args[1];
+            workspacePath = args[2];
+            serve(Integer.parseInt(args[3]));
+            return;
+        }
+
+        if (args.length != 3 && args.length != 4) {
             System.out.println("Number of arguments is not correct.");
-            System.out.println("Format: 'java DependencyAnalysis <udbPath> <workspacePath> <file>'");
+            System.out.println("Format: 'java DependencyAnalysis <udbPath> <workspacePath> <file> [maxDepth]'");
+            System.out.println("    or: 'java DependencyAnalysis --serve <udbPath> <workspacePath> <port>'");
             return;
         }
 
         udbPath = args[0];
         workspacePath = args[1];
         changedFile = args[2];
+        maxDepth = args.length == 4 ? Integer.parseInt(args[3]) : 0;
 
         // The line below is used to make analysis only run after a certain number of builds
         // int buildNum = checkLastAnalysis();
@@ -45,6 +110,124 @@ public class DependencyAnalysis {
 
         ArrayList<String> dependentModules = new ArrayList<>();
 
+        updateDatabase();
+
+        try {
+            openDatabase();
+            dependentModules = getDependentModules(changedModules, maxDepth);
+
+            db.close();
+            System.out.println("Database closed.");
+        } catch (UnderstandException exception) {
+            System.out.println("Failed opening Database:" + exception.getMessage());
+        }
+
+        writeDependentModules(dependentModules);
+
+        System.out.println("Inside DependencyAnalysis: DependencyAnalysis process successfully completed.");
+    }
+
+    /**
+     * Runs the analysis as a long-lived service on a local port, so the JVM, the Understand library and the
+     * database stay loaded between builds. Each connection sends a "WORKSPACE path" line, an optional "DEPTH n"
+     * line and the changed modules one per line, followed by an empty line; the service answers "OK" and the
+     * dependent modules one per line, or "ERROR" and a message, followed by an empty line. Requests from another
+     * workspace than the one the service analyzes are rejected. The database is only re-scanned when the source
+     * file of a changed module changed since the last scan, or is not in the database yet. Requests are handled
+     * one at a time since the database is shared.
+     * @param port Local port to listen on
+     */
+    private static void serve(int port) throws IOException, InterruptedException {
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        System.out.println("Dependency analysis service listening on port " + port + "...");
+
+        while (true) {
+            try (Socket socket = serverSocket.accept();
+                 BufferedReader reader = new BufferedReader(
+                         new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                 PrintWriter writer = new PrintWriter(
+                         new OutputStreamWriter(socket.getOutputStream(), "UTF-8"))) {
+
+                ArrayList<String> changedModules = new ArrayList<>();
+                int requestDepth = 0;
+                String requestWorkspace = null;
+                String line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    if (line.startsWith(WORKSPACE_PREFIX)) {
+                        requestWorkspace = line.substring(WORKSPACE_PREFIX.length()).trim();
+                    } else if (line.startsWith(DEPTH_PREFIX)) {
+                        try {
+                            requestDepth = Integer.parseInt(line.substring(DEPTH_PREFIX.length()).trim());
+                        } catch (NumberFormatException e) {
+                            System.out.println("Ignoring invalid depth: " + line);
+                        }
+                    } else {
+                        changedModules.add(line);
+                    }
+                }
+
+                if (requestWorkspace == null || !new File(requestWorkspace).getCanonicalFile()
+                        .equals(new File(workspacePath).getCanonicalFile())) {
+                    writer.println("ERROR");
+                    writer.println("The service analyzes " + workspacePath + ", not " + requestWorkspace);
+                    writer.println();
+                    writer.flush();
+                    continue;
+                }
+
+                try {
+                    // the database stays open until a changed source file is modified; it must be closed while
+                    // und rescans it
+                    if (db == null || sourcesChangedSince(changedModules, lastUpdate)) {
+                        if (db != null) {
+                            db.close();
+                            db = null;
+                        }
+                        lastUpdate = System.currentTimeMillis();
+                        updateDatabase();
+                        openDatabase();
+                    }
+
+                    ArrayList<String> dependentModules = getDependentModules(changedModules, requestDepth);
+                    writer.println("OK");
+                    for (String module : dependentModules)
+                        writer.println(module);
+                } catch (UnderstandException | RuntimeException exception) {
+                    db = null;
+                    writer.println("ERROR");
+                    writer.println(exception.getMessage());
+                }
+                writer.println();
+                writer.flush();
+            } catch (IOException exception) {
+                System.out.println("Dependency analysis request failed: " + exception.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param changedModules Qualified or simple names of the changed classes
+     * @param time Time in milliseconds
+     * @return true if the source file of a changed class was modified or deleted after the given time, or the
+     *         database has no source file for the class yet
+     */
+    private static boolean sourcesChangedSince(ArrayList<String> changedModules, long time) {
+        for (String module : changedModules) {
+            ArrayList<File> files = sourceFilesByName.get(module.substring(module.lastIndexOf('.') + 1));
+            if (files == null)
+                return true;
+            for (File f : files) {
+                if (!f.exists() || f.lastModified() > time)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates the Understand database if it does not exist yet; re-scans it for changed files otherwise
+     */
+    private static void updateDatabase() throws IOException, InterruptedException {
         File file = new File(udbPath);
 
         if (!file.exists()) {
@@ -56,6 +239,7 @@ public class DependencyAnalysis {
             System.out.println("Attempting to create and analyze new database...");
 
             Process createDatabase = Runtime.getRuntime().exec(command);
+            und = createDatabase;
 
             String output;
             BufferedReader bufferedReader = new BufferedReader(
@@ -65,6 +249,7 @@ public class DependencyAnalysis {
             }
 
             createDatabase.waitFor();
+            und = null;
             System.out.println(udbPath + " created.");
         } else /* if (buildNum % numberOfBuildsToWait == 0) */ { /* uncommenting the condition and uncommenting the
                                                                     assignment of buildNum above allows to only scan
@@ -76,6 +261,7 @@ public class DependencyAnalysis {
             System.out.println("Re-scanning Understand Database...");
 
             Process analyzeDatabase = Runtime.getRuntime().exec(command);
+            und = analyzeDatabase;
 
             String output;
             BufferedReader bufferedReader = new BufferedReader(
@@ -86,55 +272,149 @@ public class DependencyAnalysis {
             }
 
             analyzeDatabase.waitFor();
+            und = null;
             System.out.println(udbPath + " successfully re-scanned for changes.");
         }
+    }
 
-        try {
-            System.out.println("Opening database: " + udbPath + " ..."); // <-- for debugging
+    /**
+     * Opens the database and loads the project files, the class tree and the reverse dependency index from it
+     */
+    private static void openDatabase() throws UnderstandException {
+        System.out.println("Opening database: " + udbPath + " ..."); // <-- for debugging
+
+        db = Understand.open(udbPath);
 
-            db = Understand.open(udbPath);
+        System.out.println("Database opened..."); // <-- for debugging
 
-            System.out.println("Database opened..."); // <-- for debugging
+        // entsWeCareAbout are files that are in the project; this prevents the program from looking at
+        // references to basic java classes (i.e. java.lang.*, etc)
+        Entity[] files = db.ents("file");
+        entsWeCareAbout = new HashSet<>(getProjFileNamesWithoutExtension(files));
+
+        sourceFilesByName = new HashMap<>();
+        for (Entity file : files) {
+            if (!file.name().endsWith(".java"))
+                continue;
+            String name = file.name().substring(0, file.name().length() - ".java".length());
+            if (!sourceFilesByName.containsKey(name))
+                sourceFilesByName.put(name, new ArrayList<File>());
+            sourceFilesByName.get(name).add(new File(file.longname(true)));
+        }
 
-            // entsWeCareAbout are files that are in the project; this prevents the program from looking at
-            // references to basic java classes (i.e. java.lang.*, etc)
-            Entity[] files = db.ents("file");
-            ArrayList<String> entsWeCareAbout = getProjFileNamesWithoutExtension(files);
+        Entity[] classes = db.ents("class");
+        Entity[] interfaces = db.ents("interface");
 
-            /*
-            for (String fileName : entsWeCareAbout) {    //
-                System.out.println("File: " + fileName); // <-- for debugging
-            }                                            //
-            */
+        classTree = getClassInterfaceTree(classes, interfaces);
+        reverseIndex = buildReverseIndex(classTree, entsWeCareAbout);
 
-            Entity[] classes = db.ents("class");
-            Entity[] interfaces = db.ents("interface");
+        classesBySimpleName = new HashMap<>();
+        for (Map.Entry<String, Entity> entry : classTree.entrySet()) {
+            String simpleName = entry.getValue().simplename();
+            if (!classesBySimpleName.containsKey(simpleName))
+                classesBySimpleName.put(simpleName, new ArrayList<String>());
+            classesBySimpleName.get(simpleName).add(entry.getKey());
+        }
+    }
 
-            /*
-            for (Entity c : classes) {                    //
-                System.out.println("Class: " + c.name()); // <-- for debugging
-            }                                             //
-            */
+    /**
+     * Breadth-first closure over the reverse dependency index, so a change to a low-level class reaches every
+     * class that depends on it through any number of classes. Large levels, e.g. after a merge that changed
+     * hundreds of files, are expanded in parallel; the dependents found by the workers are concatenated in level
+     * order and de-duplicated on this thread, so the modules come out in the same order as a serial traversal.
+     * @param changedModules Qualified names of the classes changed in version control; a simple name stands for
+     *                       every project class with that name
+     * @param maxDepth Maximum number of references followed from a changed module; 0 for no limit
+     * @return The changed modules and the project modules depending on them by qualified name, in breadth-first
+     *         order
+     */
+    private static ArrayList<String> getDependentModules(ArrayList<String> changedModules, int maxDepth) {
+        ArrayList<String> dependentModules = new ArrayList<>();
+        HashSet<String> visited = new HashSet<>();
+
+        ArrayList<String> changedClasses = new ArrayList<>();
+        for (String module : changedModules) {
+            if (!classTree.containsKey(module) && classesBySimpleName.containsKey(module))
+                changedClasses.addAll(classesBySimpleName.get(module));
+            else
+                changedClasses.add(module);
+        }
 
-            TreeMap<String, Entity> classTree = getClassInterfaceTree(classes, interfaces);
+        ArrayList<String> level = new ArrayList<>();
+        for (String module : changedClasses) {
+            if (visited.add(module)) {
+                System.out.println("Adding " + module + " to dependentModules..."); // <-- for debugging
+                dependentModules.add(module);
+                level.add(module);
+            }
+        }
 
-            for (String module : changedModules) {
-                if (!dependentModules.contains(module)) {
-                    System.out.println("Adding " + module + " to dependentModules..."); // <-- for debugging
-                    dependentModules.add(module);
-                    getReferences(module, classTree, entsWeCareAbout, dependentModules);
+        for (int depth = 1; !level.isEmpty() && (maxDepth <= 0 || depth <= maxDepth); depth++) {
+            ArrayList<String> nextLevel = new ArrayList<>();
+            ExpandLevel expandLevel = new ExpandLevel(level, 0, level.size(), visited);
+            ArrayList<String> dependents = level.size() < PARALLEL_THRESHOLD
+                    ? expandLevel.compute() : pool().invoke(expandLevel);
+            for (String dependent : dependents) {
+                if (visited.add(dependent)) {
+                    dependentModules.add(dependent);
+                    nextLevel.add(dependent);
                 }
             }
+            level = nextLevel;
+        }
 
-            db.close();
-            System.out.println("Database closed.");
-        } catch (UnderstandException exception) {
-            System.out.println("Failed opening Database:" + exception.getMessage());
+        return dependentModules;
+    }
+
+    /**
+     * Collects the dependents of part of a BFS level that were not visited before the level, in level order.
+     * The visited set is only read while a level is expanded.
+     */
+    private static class ExpandLevel extends RecursiveTask<ArrayList<String>> {
+        private final ArrayList<String> level;
+        private final int from;
+        private final int to;
+        private final HashSet<String> visited;
+
+        private ExpandLevel(ArrayList<String> level, int from, int to, HashSet<String> visited) {
+            this.level = level;
+            this.from = from;
+            this.to = to;
+            this.visited = visited;
         }
 
-        writeDependentModules(dependentModules);
+        @Override
+        protected ArrayList<String> compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                ArrayList<String> dependents = new ArrayList<>();
+                for (int i = from; i < to; i++) {
+                    HashSet<String> moduleDependents = reverseIndex.get(level.get(i));
+                    if (moduleDependents == null)
+                        continue;
+                    for (String dependent : moduleDependents) {
+                        if (!visited.contains(dependent))
+                            dependents.add(dependent);
+                    }
+                }
+                return dependents;
+            }
 
-        System.out.println("Inside DependencyAnalysis: DependencyAnalysis process successfully completed.");
+            int middle = (from + to) >>> 1;
+            ExpandLevel second = new ExpandLevel(level, middle, to, visited);
+            second.fork();
+            ArrayList<String> dependents = new ExpandLevel(level, from, middle, visited).compute();
+            dependents.addAll(second.join());
+            return dependents;
+        }
+    }
+
+    /**
+     * @return the pool expanding large BFS levels, created on first use
+     */
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null)
+            pool = new ForkJoinPool();
+        return pool;
     }
 
     private static ArrayList<String> getChangedModules() {
@@ -178,40 +458,38 @@ public class DependencyAnalysis {
     }
 
     /**
-     * Get all dependencies for a class
-     * @param targetClass Class you want dependencies for
+     * Builds the reverse dependency index of the open database: for each project class, the project classes
+     * that reference it. Built once per opened database, so every query afterwards is a walk over hash sets.
      * @param classTree TreeMap containing database Entity objects for quick access
-     * @param entsWeCareAbout Entities we want to consider
-     * @param dependencies All of the dependent modules visited so far
+     * @param entsWeCareAbout Entities we want to consider, by simple name
+     * @return Map with: Keys = qualified class name; values = qualified names of the classes referencing it
      */
-    private static void getReferences(String targetClass,
-                               TreeMap<String, Entity> classTree,
-                               ArrayList<String> entsWeCareAbout,
-                               ArrayList<String> dependencies) {
-        // System.out.println("Inside getReferences..."); // <-- for debugging
-        System.out.println(targetClass);
-        Entity c = classTree.get(targetClass);
-        System.out.println(c.name());
-        Reference[] refs = c.refs(null, "class", true);
-        // System.out.println("Iterating through references..."); // <-- for debugging
-        System.out.println("All references for " + targetClass + ":"); // <-- for debugging
-        for (Reference ref : refs) {
-            String entityName = ref.ent().simplename();
-            System.out.println(entityName);  // <-- for debugging
-            // System.out.println("Checking reference: " + entityName + "..."); // <-- for debugging
-            if (entsWeCareAbout.contains(entityName) && !dependencies.contains(entityName)) {
-                // System.out.println("Adding " + entityName + "..."); // <-- for debugging
-                dependencies.add(entityName);
+    private static HashMap<String, HashSet<String>> buildReverseIndex(TreeMap<String, Entity> classTree,
+                                                                      HashSet<String> entsWeCareAbout) {
+        HashMap<String, HashSet<String>> reverseIndex = new HashMap<>();
+
+        for (Map.Entry<String, Entity> entry : classTree.entrySet()) {
+            String className = entry.getKey();
+            if (!entsWeCareAbout.contains(entry.getValue().simplename()))
+                continue;
+
+            for (Reference ref : entry.getValue().refs(DEPENDENCY_KINDS, "class, interface", true)) {
+                String entityName = ref.ent().longname(true);
+                if (entsWeCareAbout.contains(ref.ent().simplename()) && !entityName.equals(className)) {
+                    if (!reverseIndex.containsKey(entityName))
+                        reverseIndex.put(entityName, new HashSet<String>());
+                    reverseIndex.get(entityName).add(className);
+                }
             }
         }
-        // System.out.println("getReferences() finishing...");
-        System.out.println();
+
+        return reverseIndex;
     }
 
     /**
      * Gets a TreeMap of class Entity objects
      * @param classes An array of Entity objects containing all classes in project
-     * @return TreeMap with: Keys = Class name; values = Entity objects from database
+     * @return TreeMap with: Keys = qualified class name; values = Entity objects from database
      */
     private static TreeMap<String, Entity> getClassInterfaceTree(Entity[] classes, Entity[] interfaces) {
         // System.out.println("Inside getClassTree()..."); // <-- for debugging
@@ -222,12 +500,12 @@ public class DependencyAnalysis {
 
         for (Entity c : classes) {
 //            System.out.println(c.simplename());   // <-- for debugging
-            classInterfaceTree.put(c.simplename(), c);
+            classInterfaceTree.put(c.longname(true), c);
         }
 
         for (Entity i : interfaces) {
 //            System.out.println(i.simplename());
-            classInterfaceTree.put(i.simplename(), i);
+            classInterfaceTree.put(i.longname(true), i);
         }
 
         // System.out.println("Returning from getClassTree()..."); // <-- for debugging
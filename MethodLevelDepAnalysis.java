@@ -1,84 +1,480 @@
-package org.jenkinsci.plugins.automatedTestSelector;
-
 import com.scitools.understand.*;
 
 import java.io.*;
-import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.TreeMap;
 
 /**
- * Class for utilizing SciTools Understand database for static code analysis;
- * This class will allow the test selector to only choose tests relevant to changed files.
+ * Method-level counterpart of DependencyAnalysis. The changed methods are the methods whose lines intersect the
+ * changed line ranges of a diff; the tests are the entry points (methods no project method calls, e.g. JUnit
+ * test methods) that reach a changed method through calls. A one-line change in a large class then only selects
+ * the tests that call the changed method, rather than every test of every class depending on the class.
+ *
+ * Changed lines outside every method, e.g. a field, a constant or a static initializer, fall back to class-level
+ * selection: the classes defined in the file and the project classes depending on them, as DependencyAnalysis
+ * finds them.
+ *
+ * The handoff file holds the changed line ranges, one per line: "path&lt;TAB&gt;firstLine&lt;TAB&gt;lastLine". It is
+ * replaced with the tests by qualified class name, one per line: "com.foo.BarTest#method" for a test method, or
+ * "com.foo.BarTest" when a change is reached through a fixture method (@Before, setUp, ...) and the whole class
+ * has to run.
  */
 public class MethodLevelDepAnalysis {
     private static String udbPath; // path of Understand database
     private static String workspacePath;
     private static String changedFile;
-    private static String libPath;
 
     private static Database db;
 
+    // references from a class to the classes it depends on, as in DependencyAnalysis
+    private static final String DEPENDENCY_KINDS =
+            "Java Use, Java Call, Java Create, Java Typed, Java Extend, Java Implement";
+
+    // und process updating the database; destroyed when this program is, e.g. when the build step stops waiting
+    // for it, so that it does not go on using the database
+    private static volatile Process und;
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                Process process = und;
+                if (process != null) {
+                    process.destroy();
+                    try {
+                        process.waitFor();
+                    } catch (InterruptedException e) {
+                        // exiting anyway
+                    }
+                }
+            }
+        });
+    }
+
+    // annotations of JUnit test methods
+    private static final HashSet<String> TEST_ANNOTATIONS = new HashSet<>();
+    static {
+        TEST_ANNOTATIONS.add("Test");
+        TEST_ANNOTATIONS.add("ParameterizedTest");
+        TEST_ANNOTATIONS.add("RepeatedTest");
+        TEST_ANNOTATIONS.add("TestFactory");
+        TEST_ANNOTATIONS.add("Theory");
+    }
+
+    /**
+     * A method of the project and where it is defined
+     */
+    private static class Method {
+        private Entity entity;
+        // qualified name of the top-level class
+        private String className;
+        private String file;
+        private int firstLine;
+        private int lastLine;
+    }
+
     /**
      * Main function for class
-     *
-     * @return List of all files in project related to the changed source files
      */
     public static void main(String[] args)
             throws IOException, InterruptedException {
-        if (args.length != 3) {
+        if (args.length != 3 && args.length != 4) {
             System.out.println("Number of arguments is not correct.");
-            System.out.println("Format: 'java DependencyAnalysis <udbPath> <workspacePath> <file>'");
+            System.out.println("Format: 'java MethodLevelDepAnalysis <udbPath> <workspacePath> <file> [maxDepth]'");
             return;
         }
 
         udbPath = args[0];
         workspacePath = args[1];
         changedFile = args[2];
+        int maxDepth = args.length == 4 ? Integer.parseInt(args[3]) : 0;
 
-//        ArrayList<String> changedModules = getChangedModules();
+        ArrayList<String> changedRanges = getChangedModules();
+        LinkedHashSet<String> tests = new LinkedHashSet<>();
+
+        // the changed lines are numbered in the checked out sources, so the database has to be scanned first
+        updateDatabase();
 
         try {
             db = Understand.open(udbPath);
 
             Entity[] files = db.ents("file");
-            ArrayList<String> entsWeCareAbout = getProjFileNamesWithoutExtension(files);
+            HashSet<String> entsWeCareAbout = new HashSet<>(getProjFileNamesWithoutExtension(files));
 
             Entity[] methods = db.ents("method");
+            TreeMap<String, Method> methodTree = getMethodTree(methods, entsWeCareAbout);
+
+            ArrayList<String> changedMethods = getChangedMethods(methodTree, changedRanges);
+            System.out.println(changedMethods.size() + " changed methods");
 
-            TreeMap<String, Entity> methodTree = getMethodTree(methods);
+            tests.addAll(getTests(methodTree, changedMethods, maxDepth));
+            System.out.println(tests.size() + " tests reach the changed methods");
 
+            ArrayList<String> changedClasses = getClassesChangedOutsideMethods(files, methodTree, changedRanges);
+            if (!changedClasses.isEmpty()) {
+                ArrayList<String> dependentClasses = getDependentClasses(changedClasses, entsWeCareAbout, maxDepth);
+                System.out.println(dependentClasses.size() + " classes depend on lines changed outside methods");
+                tests.addAll(dependentClasses);
+            }
+
+            db.close();
         } catch (UnderstandException e) {
             System.err.println(e.getMessage());
         }
+
+        writeTests(new ArrayList<>(tests));
     }
 
+    /**
+     * Re-scans the database for changed files; creates it if it does not exist yet
+     */
+    private static void updateDatabase() throws IOException, InterruptedException {
+        String command = new File(udbPath).exists()
+                ? "und -db " + udbPath + " analyze -rescan -changed"
+                : "und create -db " + udbPath + " -languages java add " + workspacePath + " analyze -all";
+
+        System.out.println("Updating Understand database...");
+
+        Process analyzeDatabase = Runtime.getRuntime().exec(command);
+        und = analyzeDatabase;
+
+        String output;
+        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(analyzeDatabase.getInputStream()));
+        while ((output = bufferedReader.readLine()) != null) {
+            System.out.println(output);
+        }
+
+        analyzeDatabase.waitFor();
+        und = null;
+        System.out.println(udbPath + " is up to date.");
+    }
+
+    /**
+     * @param files Array of Entity objects containing all files in project
+     * @return a list of the java source files from the project without the .java extension
+     */
     private static ArrayList<String> getProjFileNamesWithoutExtension(Entity[] files) {
-        // System.out.println("Inside getProjFileNamesWithoutExtension..."); // <-- for debugging
         ArrayList<String> returnThis = new ArrayList<>();
         for (Entity file : files) {
-            // System.out.println("Checking " + file.name() + "...");
             if (file.name().contains(".java")) {
-                // System.out.println(file.name() + " contains '.java'..."); // <-- for debugging
                 String name = file.name().replace(".java", "");
-                // System.out.println("Adding " + name + "...");
                 returnThis.add(name);
             }
         }
-        // System.out.println("Returning from getProjFileNamesWithoutExtension..."); // <-- for debugging
         return returnThis;
     }
 
-    private static TreeMap<String, Entity> getMethodTree(Entity[] methods) {
-        TreeMap<String, Entity> methodTree = new TreeMap<>();
+    /**
+     * Gets a TreeMap of the methods of project classes
+     * @param methods An array of Entity objects containing all methods in project
+     * @param entsWeCareAbout Classes of the project
+     * @return TreeMap with: Keys = method key (see methodKey); values = the method and where it is defined
+     */
+    private static TreeMap<String, Method> getMethodTree(Entity[] methods, HashSet<String> entsWeCareAbout) {
+        TreeMap<String, Method> methodTree = new TreeMap<>();
 
         for (Entity m : methods) {
-            methodTree.put(m.name(), m);
+            Reference definition = definition(m);
+            if (definition == null || !entsWeCareAbout.contains(topLevelClass(definition)))
+                continue;
+
+            Method method = new Method();
+            method.entity = m;
+            method.className = qualifiedClass(m, topLevelClass(definition));
+            method.file = definition.file().longname(true).replace('\\', '/');
+            method.firstLine = definition.line();
+            method.lastLine = definition.line();
+            Reference[] ends = m.refs("end", null, true);
+            if (ends != null && ends.length > 0)
+                method.lastLine = ends[0].line();
+
+            methodTree.put(methodKey(definition), method);
         }
 
         return methodTree;
     }
 
+    /**
+     * @param methodTree Methods of the project
+     * @param changedRanges Changed line ranges, "path&lt;TAB&gt;firstLine&lt;TAB&gt;lastLine" with paths relative to
+     *                      the repository
+     * @return keys of the methods whose lines intersect a changed range
+     */
+    private static ArrayList<String> getChangedMethods(TreeMap<String, Method> methodTree,
+                                                       ArrayList<String> changedRanges) {
+        ArrayList<String> changedMethods = new ArrayList<>();
+
+        for (Map.Entry<String, Method> entry : methodTree.entrySet()) {
+            Method method = entry.getValue();
+            for (String range : changedRanges) {
+                String[] fields = range.split("\t");
+                if (fields.length != 3)
+                    continue;
+                String path = fields[0].replace('\\', '/');
+                if (!method.file.equals(path) && !method.file.endsWith("/" + path))
+                    continue;
+
+                int firstLine = Integer.parseInt(fields[1]);
+                int lastLine = Integer.parseInt(fields[2]);
+                if (firstLine <= method.lastLine && lastLine >= method.firstLine) {
+                    System.out.println("Changed method: " + method.className + "#" + method.entity.simplename());
+                    changedMethods.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+
+        return changedMethods;
+    }
+
+    /**
+     * @param files Files of the project
+     * @param methodTree Methods of the project
+     * @param changedRanges Changed line ranges, see getChangedMethods
+     * @return qualified names of the top-level classes of the files with changed lines outside every method,
+     *         not counting blank lines, comments and braces
+     */
+    private static ArrayList<String> getClassesChangedOutsideMethods(Entity[] files,
+                                                                     TreeMap<String, Method> methodTree,
+                                                                     ArrayList<String> changedRanges) {
+        LinkedHashSet<String> changedClasses = new LinkedHashSet<>();
+
+        for (Entity file : files) {
+            if (!file.name().endsWith(".java"))
+                continue;
+            String filePath = file.longname(true).replace('\\', '/');
+
+            ArrayList<int[]> ranges = new ArrayList<>();
+            for (String range : changedRanges) {
+                String[] fields = range.split("\t");
+                if (fields.length != 3)
+                    continue;
+                String path = fields[0].replace('\\', '/');
+                if (filePath.equals(path) || filePath.endsWith("/" + path))
+                    ranges.add(new int[] { Integer.parseInt(fields[1]), Integer.parseInt(fields[2]) });
+            }
+            if (ranges.isEmpty())
+                continue;
+
+            ArrayList<Method> methodsInFile = new ArrayList<>();
+            for (Method method : methodTree.values()) {
+                if (method.file.equals(filePath))
+                    methodsInFile.add(method);
+            }
+
+            ArrayList<String> lines = readLines(filePath);
+            boolean changedOutsideMethods = false;
+            for (int[] range : ranges) {
+                for (int line = range[0]; line <= range[1] && line <= lines.size(); line++) {
+                    if (!isInMethod(line, methodsInFile) && isCode(lines.get(line - 1)))
+                        changedOutsideMethods = true;
+                }
+            }
+            if (!changedOutsideMethods)
+                continue;
+
+            String topLevelClass = file.name().replace(".java", "");
+            Reference[] definitions = file.refs("define", "class, interface", true);
+            if (definitions == null)
+                continue;
+            for (Reference definition : definitions) {
+                if (definition.ent().simplename().equals(topLevelClass)) {
+                    System.out.println("Changed outside methods: " + definition.ent().longname(true));
+                    changedClasses.add(definition.ent().longname(true));
+                }
+            }
+        }
+
+        return new ArrayList<>(changedClasses);
+    }
+
+    private static boolean isInMethod(int line, ArrayList<Method> methods) {
+        for (Method method : methods) {
+            if (line >= method.firstLine && line <= method.lastLine)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return false for a blank line, a comment or a brace, whose change selects no tests
+     */
+    private static boolean isCode(String line) {
+        String trimmed = line.trim();
+        return !(trimmed.isEmpty() || trimmed.startsWith("//") || trimmed.startsWith("/*")
+                 || trimmed.startsWith("*") || trimmed.equals("{") || trimmed.equals("}"));
+    }
+
+    /**
+     * Breadth-first closure over the classes referencing the changed classes, as in DependencyAnalysis
+     * @param changedClasses Qualified names of the changed classes
+     * @param entsWeCareAbout Classes of the project
+     * @param maxDepth Maximum number of references followed from a changed class; 0 for no limit
+     * @return the changed classes and the project classes depending on them, in breadth-first order
+     */
+    private static ArrayList<String> getDependentClasses(ArrayList<String> changedClasses,
+                                                         HashSet<String> entsWeCareAbout,
+                                                         int maxDepth) {
+        HashMap<String, HashSet<String>> reverseIndex = new HashMap<>();
+        for (Entity c : db.ents("class, interface")) {
+            String className = c.longname(true);
+            if (!entsWeCareAbout.contains(c.simplename()))
+                continue;
+            Reference[] refs = c.refs(DEPENDENCY_KINDS, "class, interface", true);
+            if (refs == null)
+                continue;
+            for (Reference ref : refs) {
+                String referenced = ref.ent().longname(true);
+                if (entsWeCareAbout.contains(ref.ent().simplename()) && !referenced.equals(className)) {
+                    if (!reverseIndex.containsKey(referenced))
+                        reverseIndex.put(referenced, new HashSet<String>());
+                    reverseIndex.get(referenced).add(className);
+                }
+            }
+        }
+
+        LinkedHashSet<String> visited = new LinkedHashSet<>(changedClasses);
+        ArrayList<String> level = new ArrayList<>(visited);
+        for (int depth = 1; !level.isEmpty() && (maxDepth <= 0 || depth <= maxDepth); depth++) {
+            ArrayList<String> nextLevel = new ArrayList<>();
+            for (String className : level) {
+                HashSet<String> dependents = reverseIndex.get(className);
+                if (dependents == null)
+                    continue;
+                for (String dependent : dependents) {
+                    if (visited.add(dependent))
+                        nextLevel.add(dependent);
+                }
+            }
+            level = nextLevel;
+        }
+
+        return new ArrayList<>(visited);
+    }
+
+    /**
+     * Breadth-first walk from the changed methods to their callers, and to the methods they override since calls
+     * through an interface or superclass refer to the overridden method
+     * @param methodTree Methods of the project
+     * @param changedMethods Keys of the changed methods
+     * @param maxDepth Maximum number of calls followed from a changed method; 0 for no limit
+     * @return the tests, "com.foo.BarTest#method" or "com.foo.BarTest", in breadth-first order
+     */
+    private static ArrayList<String> getTests(TreeMap<String, Method> methodTree,
+                                              ArrayList<String> changedMethods,
+                                              int maxDepth) {
+        LinkedHashSet<String> tests = new LinkedHashSet<>();
+        HashSet<String> visited = new HashSet<>(changedMethods);
+        ArrayList<String> level = new ArrayList<>(visited);
+
+        for (int depth = 0; !level.isEmpty(); depth++) {
+            ArrayList<String> nextLevel = new ArrayList<>();
+            for (String key : level) {
+                Method method = methodTree.get(key);
+                ArrayList<String> callers = related(method.entity, "callby");
+                ArrayList<String> overridden = related(method.entity, "overrides");
+
+                // overriding a method is not being called: a test method overriding one of a base test class is
+                // still run by the test framework
+                boolean calledInProject = false;
+                for (String caller : callers) {
+                    if (methodTree.containsKey(caller))
+                        calledInProject = true;
+                }
+
+                callers.addAll(overridden);
+                for (String caller : callers) {
+                    if (methodTree.containsKey(caller) && (maxDepth <= 0 || depth < maxDepth) && visited.add(caller))
+                        nextLevel.add(caller);
+                }
+
+                // entry points are run by the test framework rather than called by other methods
+                if (!calledInProject) {
+                    if (isTestMethod(method.entity))
+                        tests.add(method.className + "#" + method.entity.simplename());
+                    else
+                        tests.add(method.className);
+                }
+            }
+            level = nextLevel;
+        }
+
+        return new ArrayList<>(tests);
+    }
+
+    /**
+     * @param method Method entity
+     * @param refKind Kind of reference, e.g. "callby"
+     * @return keys of the methods the method has references of the kind to
+     */
+    private static ArrayList<String> related(Entity method, String refKind) {
+        ArrayList<String> keys = new ArrayList<>();
+        Reference[] refs = method.refs(refKind, "method", true);
+        if (refs == null)
+            return keys;
+        for (Reference ref : refs) {
+            Reference definition = definition(ref.ent());
+            if (definition != null)
+                keys.add(methodKey(definition));
+        }
+        return keys;
+    }
+
+    /**
+     * @return true if the method is annotated as a test, or is a JUnit 3 test method
+     */
+    private static boolean isTestMethod(Entity method) {
+        Reference[] annotations = method.refs("use", "annotation", true);
+        boolean annotated = false;
+        if (annotations != null) {
+            for (Reference annotation : annotations) {
+                annotated = true;
+                if (TEST_ANNOTATIONS.contains(annotation.ent().simplename()))
+                    return true;
+            }
+        }
+        return !annotated && method.simplename().startsWith("test");
+    }
+
+    /**
+     * @return the reference to where the method is defined, or null if it is not defined in the project
+     */
+    private static Reference definition(Entity method) {
+        Reference[] definitions = method.refs("definein", null, true);
+        if (definitions == null || definitions.length == 0 || definitions[0].file() == null)
+            return null;
+        return definitions[0];
+    }
+
+    /**
+     * @return a key identifying a method by where it is defined, so overloaded methods are told apart
+     */
+    private static String methodKey(Reference definition) {
+        return definition.file().longname(true) + ":" + definition.line();
+    }
+
+    /**
+     * @return simple name of the top-level class the definition is in, which is the name of its file
+     */
+    private static String topLevelClass(Reference definition) {
+        return definition.file().name().replace(".java", "");
+    }
+
+    /**
+     * @param method Method entity
+     * @param topLevelClass Simple name of the top-level class the method is in
+     * @return qualified name of the top-level class, e.g. com.foo.BarTest for com.foo.BarTest.Inner.run
+     */
+    private static String qualifiedClass(Entity method, String topLevelClass) {
+        String longname = method.longname(true);
+        int start = longname.indexOf("." + topLevelClass + ".");
+        return start < 0 ? topLevelClass : longname.substring(0, start + 1 + topLevelClass.length());
+    }
+
     private static ArrayList<String> getChangedModules() {
         ArrayList<String> changedModules = new ArrayList<>();
 
@@ -98,4 +494,36 @@ public class MethodLevelDepAnalysis {
 
         return changedModules;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the lines of a source file, or no lines if it cannot be read
+     */
+    private static ArrayList<String> readLines(String path) {
+        ArrayList<String> lines = new ArrayList<>();
+        try (BufferedReader bufferedReader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = bufferedReader.readLine()) != null)
+                lines.add(line);
+        } catch (IOException exception) {
+            System.out.println(exception.getMessage());
+        }
+        return lines;
+    }
+
+    private static void writeTests(ArrayList<String> tests) {
+        try {
+            File file = new File(changedFile);
+            file.delete();
+
+            PrintWriter printWriter = new PrintWriter(changedFile);
+
+            for (String test : tests)
+                printWriter.println(test);
+
+            printWriter.close();
+        } catch (IOException exception) {
+            System.out.println(exception.getMessage());
+        }
+    }
+}
@@ -0,0 +1,228 @@
+import org.junit.runner.Description;
+import org.junit.runner.Runner;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runner.manipulation.Sorter;
+import org.junit.runners.Suite;
+import org.junit.runners.model.InitializationError;
+import org.junit.runners.model.RunnerBuilder;
+import org.junit.runners.model.RunnerScheduler;
+import org.junit.runners.model.Statement;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * JUnit runner for test suites that orders the classes of the @SuiteClasses annotation at test-launch time from
+ * the ranking written by the TestCasePrioritizer, so the suite source does not have to be rewritten. When a class
+ * fails, the classes that historically failed in the same builds are promoted to run next.
+ *
+ * Use in place of Suite in the test suite file:
+ *
+ *     @RunWith(PrioritizedSuite.class)
+ *     @SuiteClasses({ ... })
+ *     public class AllTests {
+ *     }
+ *
+ * The ranking and co-failure files are read from the paths in the prioritizedSuite.ranking and
+ * prioritizedSuite.coFailures system properties, or from testRanking.txt and testCoFailures.txt in the working
+ * directory. Classes missing from the ranking run after the ranked classes in their @SuiteClasses order.
+ *
+ * The classes are ordered when the runner is created, so filters (e.g. -Dtest=), sorters and schedulers applied by
+ * the build tool work as for any Suite. The co-failing classes are only promoted when the classes run one after
+ * the other in ranking order, i.e. no sorter or scheduler was applied.
+ */
+public class PrioritizedSuite extends Suite {
+
+    private static final String RANKING_PROPERTY = "prioritizedSuite.ranking";
+    private static final String CO_FAILURES_PROPERTY = "prioritizedSuite.coFailures";
+    private static final String DEFAULT_RANKING_FILE = "testRanking.txt";
+    private static final String DEFAULT_CO_FAILURES_FILE = "testCoFailures.txt";
+
+    // co-failing class names of each class, strongest first
+    private final Map<String, List<String>> coFailures;
+    // true once a sorter or scheduler is applied; the children then run the way ParentRunner runs them
+    private boolean reordered = false;
+
+    public PrioritizedSuite(Class<?> klass, RunnerBuilder builder) throws InitializationError {
+        super(klass, order(builder.runners(klass, suiteClasses(klass)),
+                           readRanking(System.getProperty(RANKING_PROPERTY, DEFAULT_RANKING_FILE))));
+        coFailures = readCoFailures(System.getProperty(CO_FAILURES_PROPERTY, DEFAULT_CO_FAILURES_FILE));
+    }
+
+    @Override
+    public void sort(Sorter sorter) {
+        reordered = true;
+        super.sort(sorter);
+    }
+
+    @Override
+    public void setScheduler(RunnerScheduler scheduler) {
+        reordered = true;
+        super.setScheduler(scheduler);
+    }
+
+    @Override
+    protected Statement childrenInvoker(final RunNotifier notifier) {
+        if (reordered || coFailures.isEmpty())
+            return super.childrenInvoker(notifier);
+
+        return new Statement() {
+            @Override
+            public void evaluate() {
+                runWithPromotion(notifier);
+            }
+        };
+    }
+
+    /**
+     * @return the classes of the @SuiteClasses annotation of the suite
+     */
+    private static Class<?>[] suiteClasses(Class<?> klass) throws InitializationError {
+        SuiteClasses annotation = klass.getAnnotation(SuiteClasses.class);
+        if (annotation == null)
+            throw new InitializationError("class '" + klass.getName() + "' must have a SuiteClasses annotation");
+        return annotation.value();
+    }
+
+    /**
+     * Runs the classes left by the filters in ranking order, promoting the co-failing classes of every class
+     * that fails
+     */
+    private void runWithPromotion(RunNotifier notifier) {
+        // the description lists only the children left by the filters
+        Set<Description> filtered = new HashSet<>(getDescription().getChildren());
+        LinkedList<Runner> queue = new LinkedList<>();
+        for (Runner child : getChildren()) {
+            if (filtered.contains(child.getDescription()))
+                queue.add(child);
+        }
+
+        // classes with a failure in the current run
+        final Set<String> failedClasses = new HashSet<>();
+        RunListener failureListener = new RunListener() {
+            @Override
+            public void testFailure(Failure failure) {
+                failedClasses.add(failure.getDescription().getClassName());
+            }
+        };
+        notifier.addListener(failureListener);
+
+        try {
+            while (!queue.isEmpty()) {
+                Runner runner = queue.removeFirst();
+                runChild(runner, notifier);
+
+                String className = className(runner);
+                if (failedClasses.contains(className) && coFailures.containsKey(className))
+                    promote(queue, coFailures.get(className));
+            }
+        } finally {
+            notifier.removeListener(failureListener);
+        }
+    }
+
+    /**
+     * @param children runners of the suite classes in @SuiteClasses order
+     * @param ranking class names in ranking order
+     * @return the runners of the ranked classes in ranking order, followed by the other runners
+     */
+    private static LinkedList<Runner> order(List<Runner> children, List<String> ranking) {
+        HashMap<String, Integer> rank = new HashMap<>();
+        for (int i = 0; i < ranking.size(); i++) {
+            if (!rank.containsKey(ranking.get(i)))
+                rank.put(ranking.get(i), i);
+        }
+
+        final HashMap<Runner, Integer> position = new HashMap<>();
+        for (Runner child : children) {
+            String className = className(child);
+            position.put(child, rank.containsKey(className) ? rank.get(className) : ranking.size());
+        }
+
+        LinkedList<Runner> ordered = new LinkedList<>(children);
+        // stable sort keeps the @SuiteClasses order among classes with the same position
+        Collections.sort(ordered, new Comparator<Runner>() {
+            @Override
+            public int compare(Runner a, Runner b) {
+                return Integer.compare(position.get(a), position.get(b));
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * Moves the runners of the co-failing classes still waiting to run to the front of the queue,
+     * keeping the strongest co-failure first
+     *
+     * @param queue runners waiting to run
+     * @param coFailing co-failing class names, strongest first
+     */
+    private static void promote(LinkedList<Runner> queue, List<String> coFailing) {
+        for (int i = coFailing.size() - 1; i >= 0; i--) {
+            Iterator<Runner> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                Runner runner = iterator.next();
+                if (className(runner).equals(coFailing.get(i))) {
+                    iterator.remove();
+                    queue.addFirst(runner);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static String className(Runner runner) {
+        Description description = runner.getDescription();
+        return description.getClassName();
+    }
+
+    /**
+     * @param path ranking file with one fully qualified class name per line
+     * @return class names in ranking order; empty if the file cannot be read
+     */
+    private static List<String> readRanking(String path) {
+        ArrayList<String> ranking = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty())
+                    ranking.add(line.trim());
+            }
+        } catch (IOException e) {
+            System.err.println("PrioritizedSuite: could not read ranking " + path + ": " + e.getMessage());
+        }
+        return ranking;
+    }
+
+    /**
+     * @param path co-failure file with lines of the form "className:coFailingClass coFailingClass ...",
+     *             strongest co-failure first
+     * @return co-failing class names of each class; empty if the file cannot be read
+     */
+    private static Map<String, List<String>> readCoFailures(String path) {
+        HashMap<String, List<String>> coFailures = new HashMap<>();
+        File file = new File(path);
+        if (!file.exists())
+            return coFailures;
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(':');
+                if (separator < 0)
+                    continue;
+                String coFailing = line.substring(separator + 1).trim();
+                coFailures.put(line.substring(0, separator).trim(),
+                        coFailing.isEmpty() ? new ArrayList<String>() : Arrays.asList(coFailing.split(" ")));
+            }
+        } catch (IOException e) {
+            System.err.println("PrioritizedSuite: could not read co-failures " + path + ": " + e.getMessage());
+        }
+        return coFailures;
+    }
+}
@@ -0,0 +1,46 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Rewrites files of the plugin under a temporary name that then replaces the file, so a build reading the file
+ * never sees it partly written, and a crash while writing leaves the previous contents in place.
+ */
+final class AtomicFiles {
+
+    private AtomicFiles() {
+    }
+
+    /**
+     * @param file file to rewrite
+     * @return new temporary file in the same directory as the file, so that it can be renamed over it
+     */
+    static File createTemporary(File file) throws IOException {
+        return File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Renames a completely written temporary file over the file it replaces
+     *
+     * @param temporary temporary file in the same directory as the file
+     * @param file file to replace
+     */
+    static void replace(File temporary, File file) throws IOException {
+        if (!temporary.renameTo(file)) {
+            // renaming over an existing file fails on some platforms
+            if (!file.delete() || !temporary.renameTo(file))
+                throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Deletes a temporary file that is only left over if writing or renaming it failed
+     *
+     * @param temporary temporary file from createTemporary
+     */
+    static void discard(File temporary) {
+        if (temporary.exists() && !temporary.delete())
+            temporary.deleteOnExit();
+    }
+}
@@ -0,0 +1,216 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import com.google.common.collect.ImmutableSet;
+
+import hudson.model.Result;
+import hudson.model.Run;
+
+import hudson.tasks.junit.ClassResult;
+import hudson.tasks.test.AbstractTestResultAction;
+import hudson.tasks.test.TabulatedResult;
+import hudson.tasks.test.TestResult;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Compact summary of the test classes executed by a single build; one of these is stored per build
+ * in the {@link TestHistoryIndex} so that old builds do not have to be loaded again.
+ * Test classes are identified by their IDs in the job's {@link TestIdTable}.
+ */
+public class BuildTestRecord {
+
+    // set of build results to consider; builds with other results have no usable test results
+    static final ImmutableSet<Result> RESULTS_TO_CONSIDER = ImmutableSet.of(Result.SUCCESS, Result.UNSTABLE, Result.FAILURE);
+
+    private final int buildNumber;
+    private final boolean hasResults;
+
+    // IDs of the test classes executed by the build and of those with at least one failing test
+    private final BitSet executed;
+    private final BitSet failed;
+    // duration in seconds of each executed class, in ascending order of ID
+    private final float[] durations;
+
+    public BuildTestRecord(int buildNumber, boolean hasResults) {
+        this(buildNumber, hasResults, new BitSet(), new BitSet(), new float[0]);
+    }
+
+    public BuildTestRecord(int buildNumber, boolean hasResults, BitSet executed, BitSet failed, float[] durations) {
+        this.buildNumber = buildNumber;
+        this.hasResults = hasResults;
+        this.executed = executed;
+        this.failed = failed;
+        this.durations = durations;
+    }
+
+    public int getBuildNumber() {
+        return buildNumber;
+    }
+
+    public boolean hasResults() {
+        return hasResults;
+    }
+
+    public BitSet getExecuted() {
+        return executed;
+    }
+
+    public BitSet getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return durations of the executed classes, in ascending order of ID
+     */
+    public float[] getDurations() {
+        return durations;
+    }
+
+    /**
+     * @param id ID of a test class
+     * @return duration of the test class in seconds, or 0 if it was not executed
+     */
+    public float getDuration(int id) {
+        if (!executed.get(id))
+            return 0;
+        return durations[executed.get(0, id).cardinality()];
+    }
+
+    /**
+     * Reads the test results of a completed build into a new record; uses the build's
+     * TestOutcomeSummary if it has one instead of loading the full test results
+     *
+     * @param build A completed build
+     * @return record of the build; the record has no results if the build did not produce any
+     */
+    public static BuildTestRecord fromBuild(Run<?, ?> build) throws IOException {
+        if (!RESULTS_TO_CONSIDER.contains(build.getResult())) // build failed = no test results
+            return new BuildTestRecord(build.getNumber(), false);
+
+        TestOutcomeSummary summary = build.getAction(TestOutcomeSummary.class);
+        if (summary != null)
+            return summary.toRecord(build.getNumber());
+
+        AbstractTestResultAction testResultAction = build.getAction(AbstractTestResultAction.class);
+        if (testResultAction == null)
+            return new BuildTestRecord(build.getNumber(), false);
+
+        Object object = testResultAction.getResult();
+        if (!(object instanceof TestResult))
+            return new BuildTestRecord(build.getNumber(), false);
+
+        TreeMap<String, Float> classDurations = new TreeMap<>();
+        TreeSet<String> failedClasses = new TreeSet<>();
+        collect((TestResult) object, classDurations, failedClasses);
+
+        // intern the class names and order the durations by ID
+        ArrayList<String> classNames = new ArrayList<>(classDurations.keySet());
+        int[] ids = TestIdTable.forJob(build.getParent()).intern(classNames);
+        TreeMap<Integer, Float> durationsById = new TreeMap<>();
+        BitSet executed = new BitSet();
+        BitSet failed = new BitSet();
+        for (int i = 0; i < ids.length; i++) {
+            executed.set(ids[i]);
+            if (failedClasses.contains(classNames.get(i)))
+                failed.set(ids[i]);
+            durationsById.put(ids[i], classDurations.get(classNames.get(i)));
+        }
+
+        float[] durations = new float[durationsById.size()];
+        int rank = 0;
+        for (Float duration : durationsById.values())
+            durations[rank++] = duration;
+
+        return new BuildTestRecord(build.getNumber(), true, executed, failed, durations);
+    }
+
+    /**
+     * Collects the class results of a build
+     *
+     * @param testResult TestResult object from the build
+     * @param durations map receiving the duration of each executed test class
+     * @param failed set receiving the names of test classes with failures
+     */
+    static private void collect(TestResult testResult, TreeMap<String, Float> durations, TreeSet<String> failed) {
+        if (testResult instanceof ClassResult) {
+            ClassResult classResult = (ClassResult) testResult;
+            String pkgName = classResult.getParent().getName();
+
+            if (pkgName.equals("(root)"))
+                pkgName = "";
+            else
+                pkgName += '.';
+            String className = TestIdTable.testName(pkgName + classResult.getName());
+
+            durations.put(className, classResult.getDuration());
+            if (classResult.getFailCount() > 0)
+                failed.add(className);
+
+            return; // no need to go deeper
+        }
+        if (testResult instanceof TabulatedResult) {
+            TabulatedResult tabulatedResult = (TabulatedResult) testResult;
+            for (TestResult child : tabulatedResult.getChildren()) {
+                collect(child, durations, failed);
+            }
+        }
+    }
+
+    /**
+     * Writes the record as a single line: build number, results flag, then one
+     * "id,failed,duration" token per executed class
+     */
+    public String toLine() {
+        StringBuilder line = new StringBuilder();
+        line.append(buildNumber).append(' ').append(hasResults ? 1 : 0);
+        int rank = 0;
+        for (int id = executed.nextSetBit(0); id >= 0; id = executed.nextSetBit(id + 1)) {
+            line.append(' ').append(id)
+                .append(',').append(failed.get(id) ? 1 : 0)
+                .append(',').append(durations[rank++]);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Parses a line written by toLine()
+     *
+     * @param line line from the history index
+     * @return the parsed record, or null if the line is malformed
+     */
+    public static BuildTestRecord fromLine(String line) {
+        String[] tokens = line.trim().split(" ");
+        if (tokens.length < 2)
+            return null;
+
+        try {
+            BitSet executed = new BitSet();
+            BitSet failed = new BitSet();
+            float[] durations = new float[tokens.length - 2];
+            int previousId = -1;
+            for (int i = 2; i < tokens.length; i++) {
+                String[] fields = tokens[i].split(",");
+                if (fields.length != 3)
+                    return null;
+
+                // ids are written in ascending order, which keeps durations aligned with the bits
+                int id = Integer.parseInt(fields[0]);
+                if (id <= previousId)
+                    return null;
+                previousId = id;
+
+                executed.set(id);
+                if (fields[1].equals("1"))
+                    failed.set(id);
+                durations[i - 2] = Float.parseFloat(fields[2]);
+            }
+            return new BuildTestRecord(Integer.parseInt(tokens[0]), tokens[1].equals("1"), executed, failed, durations);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ListBoxModel;
+
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Dependency analysis on the compiled classes of the workspace, as an alternative to the SciTools Understand
+ * database used by DependencyAnalysis. Needs no external tool and no database re-scan; the classes only have
+ * to be compiled before the build step runs.
+ */
+public class BytecodeDependencyAnalysis {
+
+    // analyzers for the configuration page
+    public static final String UNDERSTAND = "understand";
+    public static final String BYTECODE = "bytecode";
+
+    // file holding the snapshot of the dependency graph, in the temporary directory of the workspace
+    private static final String SNAPSHOT_FILE = "dependencyGraph.bin";
+    // Jenkins' temporary directory next to a workspace is named after it with this suffix
+    private static final String TEMPORARY_DIRECTORY_SUFFIX = "@tmp";
+    // suffix of the class file manifest stored next to the snapshot
+    private static final String MANIFEST_SUFFIX = ".manifest";
+
+    private BytecodeDependencyAnalysis() {
+    }
+
+    /**
+     * @return the dependency analyzers for the configuration page
+     */
+    public static ListBoxModel analyzerItems() {
+        ListBoxModel items = new ListBoxModel();
+        items.add("SciTools Understand", UNDERSTAND);
+        items.add("Compiled classes (bytecode)", BYTECODE);
+        return items;
+    }
+
+    /**
+     * @param analyzer configured analyzer; null or empty for Understand
+     * @return true if the bytecode analyzer is used
+     */
+    public static boolean isBytecode(String analyzer) {
+        return BYTECODE.equals(analyzer);
+    }
+
+    /**
+     * @param workspace root directory of the build workspace
+     * @param classDirs comma-separated directories of compiled classes, relative to the workspace
+     * @return the directories as files
+     */
+    public static ArrayList<File> classDirectories(File workspace, String classDirs) {
+        ArrayList<File> directories = new ArrayList<>();
+        for (String dir : classDirs.split(",")) {
+            if (!dir.trim().isEmpty())
+                directories.add(new File(workspace, dir.trim()));
+        }
+        return directories;
+    }
+
+    /**
+     * @param workspace root directory of the build workspace
+     * @return the dependency graph snapshot file in the temporary directory Jenkins keeps next to the workspace,
+     *         on the node that owns the workspace and its compiled classes
+     */
+    public static File snapshotFile(File workspace) {
+        File directory = new File(workspace.getParentFile(), workspace.getName() + TEMPORARY_DIRECTORY_SUFFIX);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            return new File(workspace, SNAPSHOT_FILE);
+        return new File(directory, SNAPSHOT_FILE);
+    }
+
+    /**
+     * Runs the dependency analysis on the node that owns the workspace
+     *
+     * @param workspace FilePath of build workspace
+     * @param classDirs comma-separated directories of compiled classes, relative to the workspace
+     * @param changedSourceFiles qualified names of the changed classes
+     * @param maxDepth maximum number of references followed from a changed class; 0 for no limit
+     * @return the changed classes followed by their dependents
+     */
+    public static ArrayList<String> getDependentModules(FilePath workspace,
+                                                        String classDirs,
+                                                        List<String> changedSourceFiles,
+                                                        int maxDepth)
+            throws IOException, InterruptedException {
+        return new ArrayList<>(getDependencyDepths(workspace, classDirs, changedSourceFiles, maxDepth).keySet());
+    }
+
+    /**
+     * Runs getDependencyDepths on the node that owns the workspace
+     *
+     * @param workspace FilePath of build workspace
+     * @param classDirs comma-separated directories of compiled classes, relative to the workspace
+     * @param changedSourceFiles qualified names of the changed classes
+     * @param maxDepth maximum number of references followed from a changed class; 0 for no limit
+     * @return the changed classes followed by their dependents, breadth first, each with the number of references
+     *         followed from the nearest changed class
+     */
+    public static LinkedHashMap<String, Integer> getDependencyDepths(FilePath workspace,
+                                                                    String classDirs,
+                                                                    List<String> changedSourceFiles,
+                                                                    int maxDepth)
+            throws IOException, InterruptedException {
+        return workspace.act(new DependencyDepths(classDirs, changedSourceFiles, maxDepth));
+    }
+
+    /**
+     * Finds the dependents in the snapshot as it was last written, without reading the class files compiled
+     * since; runs on the node that owns the workspace
+     *
+     * @param workspace FilePath of build workspace
+     * @param changedSourceFiles qualified names of the changed classes
+     * @param maxDepth maximum number of references followed from a changed class; 0 for no limit
+     * @return the changed classes followed by their dependents, or null if there is no snapshot yet
+     */
+    public static ArrayList<String> getCachedDependentModules(FilePath workspace,
+                                                              final List<String> changedSourceFiles,
+                                                              final int maxDepth)
+            throws IOException, InterruptedException {
+        final ArrayList<String> changed = new ArrayList<>(changedSourceFiles);
+        return workspace.act(new MasterToSlaveFileCallable<ArrayList<String>>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public ArrayList<String> invoke(File workspace, VirtualChannel channel) throws IOException {
+                File snapshotFile = snapshotFile(workspace);
+                if (!snapshotFile.exists())
+                    return null;
+                GraphSnapshot snapshot = GraphSnapshot.map(snapshotFile);
+                return new ArrayList<>(getDependencyDepths(snapshot, changed, maxDepth).keySet());
+            }
+        });
+    }
+
+    /**
+     * @param workspace FilePath of build workspace
+     * @return version of the dependency graph snapshot as it was last written, without reading any class file,
+     *         or -1 if there is no snapshot yet
+     */
+    public static long getSnapshotVersion(FilePath workspace) throws IOException, InterruptedException {
+        return workspace.act(new MasterToSlaveFileCallable<Long>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public Long invoke(File workspace, VirtualChannel channel) throws IOException {
+                File snapshotFile = snapshotFile(workspace);
+                if (!snapshotFile.exists())
+                    return -1L;
+                return GraphSnapshot.map(snapshotFile).getVersion();
+            }
+        });
+    }
+
+    /**
+     * Dependency analysis run on the node that owns the workspace; only the class names travel back
+     */
+    private static class DependencyDepths extends MasterToSlaveFileCallable<LinkedHashMap<String, Integer>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String classDirs;
+        private final ArrayList<String> changedSourceFiles;
+        private final int maxDepth;
+
+        private DependencyDepths(String classDirs, List<String> changedSourceFiles, int maxDepth) {
+            this.classDirs = classDirs;
+            this.changedSourceFiles = new ArrayList<>(changedSourceFiles);
+            this.maxDepth = maxDepth;
+        }
+
+        @Override
+        public LinkedHashMap<String, Integer> invoke(File workspace, VirtualChannel channel) throws IOException {
+            return getDependencyDepths(workspace, classDirs, snapshotFile(workspace), changedSourceFiles, maxDepth);
+        }
+    }
+
+    /**
+     * Maps the snapshot of the dependency graph. The manifest next to the snapshot is brought up to date first,
+     * reading only the class files of the changed classes and parsing only those whose contents changed, and the
+     * snapshot is only rewritten if the references between the classes changed.
+     *
+     * @param classDirectories directories holding compiled classes
+     * @param snapshotFile snapshot of the graph
+     * @param changedClasses qualified names of the changed classes; null to look at every class file
+     * @return the up to date snapshot
+     */
+    public static GraphSnapshot loadSnapshot(List<File> classDirectories,
+                                             File snapshotFile,
+                                             Collection<String> changedClasses) throws IOException {
+        ClassFileManifest manifest = ClassFileManifest.load(new File(snapshotFile.getPath() + MANIFEST_SUFFIX));
+        int changes = changedClasses == null || !snapshotFile.exists()
+                ? manifest.update(classDirectories)
+                : manifest.update(classDirectories, changedClasses);
+
+        if (changes > 0 || !snapshotFile.exists()) {
+            GraphSnapshot.write(manifest.toGraph(), System.currentTimeMillis(), snapshotFile);
+            manifest.save();
+        } else if (manifest.isModified()) {
+            // recompiled classes with the same references; keep their new times so they are not read again
+            manifest.save();
+        }
+        return GraphSnapshot.map(snapshotFile);
+    }
+
+    /**
+     * Finds the changed classes and the classes that depend on them, in the same form as the handoff file
+     * written by DependencyAnalysis: qualified class names. Changed classes given by simple name stand for every
+     * class with that name.
+     *
+     * @param workspace root directory of the build workspace
+     * @param classDirs comma-separated directories of compiled classes, relative to the workspace
+     * @param snapshotFile snapshot of the dependency graph
+     * @param changedSourceFiles qualified names of the changed classes
+     * @param maxDepth maximum number of references followed from a changed class; 0 for no limit
+     * @return the changed classes followed by their dependents, breadth first, each with the number of references
+     *         followed from the nearest changed class
+     */
+    public static LinkedHashMap<String, Integer> getDependencyDepths(File workspace,
+                                                                    String classDirs,
+                                                                    File snapshotFile,
+                                                                    List<String> changedSourceFiles,
+                                                                    int maxDepth)
+            throws IOException {
+        GraphSnapshot snapshot =
+                loadSnapshot(classDirectories(workspace, classDirs), snapshotFile, changedSourceFiles);
+        return getDependencyDepths(snapshot, changedSourceFiles, maxDepth);
+    }
+
+    static LinkedHashMap<String, Integer> getDependencyDepths(GraphSnapshot snapshot,
+                                                              List<String> changedSourceFiles,
+                                                              int maxDepth) {
+        ArrayList<Integer> changedIds = new ArrayList<>();
+        for (String sourceFile : changedSourceFiles) {
+            int id = snapshot.getId(sourceFile);
+            if (id >= 0)
+                changedIds.add(id);
+            else if (!sourceFile.contains("."))
+                changedIds.addAll(snapshot.withSimpleName(sourceFile));
+        }
+
+        final int[] depths = snapshot.getDependentDepths(changedIds, maxDepth);
+        // class IDs follow the class names, so the closure is sorted by depth to list it breadth first
+        ArrayList<Integer> closure = new ArrayList<>();
+        for (int id = 0; id < depths.length; id++) {
+            if (depths[id] >= 0)
+                closure.add(id);
+        }
+        Collections.sort(closure, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int order = Integer.compare(depths[a], depths[b]);
+                return order != 0 ? order : Integer.compare(a, b);
+            }
+        });
+
+        LinkedHashMap<String, Integer> dependencyDepths = new LinkedHashMap<>();
+        for (String sourceFile : changedSourceFiles)
+            dependencyDepths.put(sourceFile, 0);
+        for (int id : closure) {
+            String className = snapshot.getClassName(id);
+            if (!dependencyDepths.containsKey(className))
+                dependencyDepths.put(className, depths[id]);
+        }
+        return dependencyDepths;
+    }
+}
@@ -0,0 +1,369 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Job;
+import hudson.model.Run;
+
+import hudson.scm.ChangeLogSet;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Per-job association between the files changed in a build and the tests that failed in it, mined from the
+ * job's own history, so jobs without dependency analysis still get change-based selection. The association of a
+ * file and a test is their lift: how much more often the test failed in builds changing the file than in builds
+ * in general,
+ *
+ *     lift = (failures with the file changed / builds changing the file) / (failures / builds).
+ *
+ * The matrix is sparse; only file and test pairs that occurred together are kept. Applying a build costs
+ * O(changed files x failed tests).
+ *
+ * The matrix is stored in the job directory. The first line holds the number of builds applied, the build
+ * number through which every build is applied and the applied builds after it; the second line the failing builds
+ * of each test, "id:count ..."; then one line per file, "path builds id:count ...", all tab-separated. Each build
+ * applied since is appended after a DELTAS line as "buildNumber id,id,... path path ...", and the matrix is only
+ * rewritten once MAX_DELTAS builds were appended. A new matrix is seeded from the job's test history index.
+ */
+public class ChangeFailureLift {
+
+    // file in the job directory holding the matrix
+    private static final String LIFT_FILE = "changeFailureLift.txt";
+
+    // tests associated with a change fail at least this many times as often with it as without
+    public static final double MIN_LIFT = 2.0;
+    // a single co-occurrence is too likely to be chance
+    public static final int MIN_SUPPORT = 2;
+
+    // line separating the matrix from the builds appended since it was written
+    private static final String DELTAS = "#deltas";
+    // builds appended before the matrix is rewritten
+    private static final int MAX_DELTAS = 100;
+    // builds completing this far behind the newest applied one are no longer applied
+    static final int MAX_OUT_OF_ORDER = 100;
+    // indexed builds a new matrix is seeded from
+    private static final int SEED_BUILDS = 500;
+
+    // one matrix per job so that updates from concurrent builds are serialized
+    private static final HashMap<String, ChangeFailureLift> MATRICES = new HashMap<>();
+
+    private final File liftFile;
+    private boolean loaded = false;
+
+    // number of builds with test results applied
+    private int builds = 0;
+    // every build up to this one is applied, or too old to be
+    private int appliedThrough = 0;
+    // applied builds after appliedThrough; builds still running or completing out of order leave holes
+    private final TreeSet<Integer> appliedBuilds = new TreeSet<>();
+    // builds appended to the file since the matrix was written
+    private int deltas = 0;
+    // failing builds by test ID
+    private final HashMap<Integer, Integer> testFailures = new HashMap<>();
+    // builds changing each file
+    private final HashMap<String, Integer> fileBuilds = new HashMap<>();
+    // for each file, failing builds changing the file by test ID
+    private final HashMap<String, HashMap<Integer, Integer>> coFailures = new HashMap<>();
+
+    ChangeFailureLift(File liftFile) {
+        this.liftFile = liftFile;
+    }
+
+    /**
+     * @param job The job owning the matrix
+     * @return the matrix stored in the job's directory
+     */
+    public static synchronized ChangeFailureLift forJob(Job<?, ?> job) {
+        File file = new File(job.getRootDir(), LIFT_FILE);
+        ChangeFailureLift lift = MATRICES.get(file.getPath());
+        if (lift == null) {
+            lift = new ChangeFailureLift(file);
+            MATRICES.put(file.getPath(), lift);
+        }
+        return lift;
+    }
+
+    /**
+     * @param build A build
+     * @return the paths changed in version control in the build; empty for builds without a change set
+     */
+    public static ArrayList<String> changedFiles(Run<?, ?> build) {
+        ArrayList<String> changedFiles = new ArrayList<>();
+        if (build instanceof AbstractBuild) {
+            for (ChangeLogSet.Entry entry : ((AbstractBuild<?, ?>) build).getChangeSet()) {
+                if (entry.getAffectedPaths() != null)
+                    changedFiles.addAll(entry.getAffectedPaths());
+            }
+        }
+        return changedFiles;
+    }
+
+    /**
+     * Seeds a matrix that has never been written from the builds in the job's test history index, so the
+     * association is available as soon as it is enabled rather than after months of builds
+     *
+     * @param job The job owning the matrix
+     */
+    public synchronized void seed(Job<?, ?> job) throws IOException {
+        load();
+        if (liftFile.exists())
+            return;
+
+        ArrayList<BuildTestRecord> records = TestHistoryIndex.forJob(job).getNewest(SEED_BUILDS);
+        // oldest first, as the builds completed
+        for (int i = records.size() - 1; i >= 0; i--) {
+            BuildTestRecord record = records.get(i);
+            Run<?, ?> build = job.getBuildByNumber(record.getBuildNumber());
+            if (record.hasResults() && build != null)
+                applyBuild(record.getBuildNumber(), changedFiles(build), record.getFailed());
+        }
+        save();
+    }
+
+    /**
+     * Applies a completed build with test results; builds already applied are ignored
+     *
+     * @param buildNumber number of the build
+     * @param changedFiles paths changed in the build
+     * @param failed IDs of the tests that failed in the build
+     */
+    public synchronized void apply(int buildNumber, Collection<String> changedFiles, BitSet failed)
+            throws IOException {
+        load();
+        if (!applyBuild(buildNumber, changedFiles, failed))
+            return;
+
+        if (!liftFile.exists() || deltas >= MAX_DELTAS) {
+            save();
+            return;
+        }
+
+        try (OutputStream outputStream = new FileOutputStream(liftFile, true);
+             OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+             PrintWriter printWriter = new PrintWriter(outputStreamWriter)) {
+            if (deltas == 0)
+                printWriter.println(DELTAS);
+            StringBuilder line = new StringBuilder().append(buildNumber).append('\t');
+            for (int id = failed.nextSetBit(0); id >= 0; id = failed.nextSetBit(id + 1))
+                line.append(id).append(failed.nextSetBit(id + 1) >= 0 ? "," : "");
+            for (String file : changedFiles)
+                line.append('\t').append(file);
+            printWriter.println(line);
+        }
+        deltas++;
+    }
+
+    /**
+     * @return true if the build was applied, false if it was applied before or is too old
+     */
+    private boolean applyBuild(int buildNumber, Collection<String> changedFiles, BitSet failed) {
+        if (buildNumber <= appliedThrough || appliedBuilds.contains(buildNumber))
+            return false;
+        markApplied(buildNumber);
+
+        builds++;
+        for (int id = failed.nextSetBit(0); id >= 0; id = failed.nextSetBit(id + 1))
+            increment(testFailures, id);
+
+        for (String file : changedFiles) {
+            increment(fileBuilds, file);
+            if (failed.isEmpty())
+                continue;
+
+            HashMap<Integer, Integer> tests = coFailures.get(file);
+            if (tests == null) {
+                tests = new HashMap<>();
+                coFailures.put(file, tests);
+            }
+            for (int id = failed.nextSetBit(0); id >= 0; id = failed.nextSetBit(id + 1))
+                increment(tests, id);
+        }
+        return true;
+    }
+
+    private void markApplied(int buildNumber) {
+        appliedBuilds.add(buildNumber);
+
+        // builds too far behind the newest one are not waited for
+        int oldest = appliedBuilds.last() - MAX_OUT_OF_ORDER;
+        if (appliedThrough < oldest) {
+            appliedThrough = oldest;
+            appliedBuilds.headSet(oldest, true).clear();
+        }
+        while (appliedBuilds.remove(appliedThrough + 1))
+            appliedThrough++;
+    }
+
+    /**
+     * @param changedFiles paths changed in the current build
+     * @param id test ID
+     * @return the highest lift of the test with any of the changed files seen at least MIN_SUPPORT times with a
+     *         failure of the test; 0 if there is none
+     */
+    public synchronized double getLift(Collection<String> changedFiles, int id) throws IOException {
+        load();
+        Integer failures = testFailures.get(id);
+        if (id < 0 || failures == null)
+            return 0;
+
+        double lift = 0;
+        for (String file : changedFiles) {
+            HashMap<Integer, Integer> tests = coFailures.get(file);
+            Integer coOccurrences = tests == null ? null : tests.get(id);
+            if (coOccurrences == null || coOccurrences < MIN_SUPPORT)
+                continue;
+            double failureRateWithFile = coOccurrences / (double) fileBuilds.get(file);
+            double failureRate = failures / (double) builds;
+            lift = Math.max(lift, failureRateWithFile / failureRate);
+        }
+        return lift;
+    }
+
+    /**
+     * @param changedFiles paths changed in the current build
+     * @return IDs of the tests with a lift of at least MIN_LIFT with any of the changed files
+     */
+    public synchronized BitSet getAssociatedTests(Collection<String> changedFiles) throws IOException {
+        load();
+        BitSet associated = new BitSet();
+        for (String file : changedFiles) {
+            HashMap<Integer, Integer> tests = coFailures.get(file);
+            if (tests == null)
+                continue;
+            for (int id : tests.keySet()) {
+                if (!associated.get(id) && getLift(changedFiles, id) >= MIN_LIFT)
+                    associated.set(id);
+            }
+        }
+        return associated;
+    }
+
+    private static <K> void increment(HashMap<K, Integer> counts, K key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    private void load() throws IOException {
+        if (loaded)
+            return;
+        loaded = true;
+        if (!liftFile.exists())
+            return;
+
+        try (InputStream inputStream = new FileInputStream(liftFile);
+             InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charsets.UTF_8);
+             BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
+            String[] header = readFields(bufferedReader);
+            String[] failures = readFields(bufferedReader);
+            if (header == null || header.length < 2 || failures == null)
+                return;
+
+            try {
+                builds = Integer.parseInt(header[0]);
+                // a matrix written before the applied builds were kept has the number of the last one here
+                appliedThrough = Integer.parseInt(header[1]);
+                for (int i = 2; i < header.length; i++)
+                    appliedBuilds.add(Integer.parseInt(header[i]));
+                readCounts(failures, 0, testFailures);
+
+                String[] fields;
+                while ((fields = readFields(bufferedReader)) != null && !fields[0].equals(DELTAS)) {
+                    if (fields.length < 2)
+                        continue;
+                    fileBuilds.put(fields[0], Integer.parseInt(fields[1]));
+                    HashMap<Integer, Integer> tests = new HashMap<>();
+                    readCounts(fields, 2, tests);
+                    if (!tests.isEmpty())
+                        coFailures.put(fields[0], tests);
+                }
+
+                while ((fields = readFields(bufferedReader)) != null) {
+                    BitSet failed = new BitSet();
+                    if (fields.length > 1 && !fields[1].isEmpty()) {
+                        for (String id : fields[1].split(","))
+                            failed.set(Integer.parseInt(id));
+                    }
+                    applyBuild(Integer.parseInt(fields[0]), Arrays.asList(fields).subList(Math.min(2, fields.length),
+                                                                                      fields.length), failed);
+                    deltas++;
+                }
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                // a corrupt file is mined again from the builds that follow
+                builds = 0;
+                appliedThrough = 0;
+                appliedBuilds.clear();
+                deltas = 0;
+                testFailures.clear();
+                fileBuilds.clear();
+                coFailures.clear();
+            }
+        }
+    }
+
+    private static String[] readFields(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        return line == null ? null : line.split("\t");
+    }
+
+    private static void readCounts(String[] fields, int start, HashMap<Integer, Integer> counts) {
+        for (int i = start; i < fields.length; i++) {
+            int separator = fields[i].indexOf(':');
+            if (separator > 0)
+                counts.put(Integer.parseInt(fields[i].substring(0, separator)),
+                           Integer.parseInt(fields[i].substring(separator + 1)));
+        }
+    }
+
+    /**
+     * Rewrites the whole matrix, without deltas, under a temporary name that then replaces the file
+     */
+    private void save() throws IOException {
+        File temporary = AtomicFiles.createTemporary(liftFile);
+        try {
+            try (OutputStream outputStream = new FileOutputStream(temporary);
+                 OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+                 PrintWriter printWriter = new PrintWriter(outputStreamWriter)) {
+                StringBuilder header = new StringBuilder().append(builds).append('\t').append(appliedThrough);
+                for (int buildNumber : appliedBuilds)
+                    header.append('\t').append(buildNumber);
+                printWriter.println(header);
+                printWriter.println(countsLine(new StringBuilder(), testFailures));
+                for (Map.Entry<String, Integer> file : fileBuilds.entrySet()) {
+                    StringBuilder line = new StringBuilder(file.getKey()).append('\t').append(file.getValue());
+                    HashMap<Integer, Integer> tests = coFailures.get(file.getKey());
+                    if (tests != null) {
+                        line.append('\t');
+                        countsLine(line, tests);
+                    }
+                    printWriter.println(line);
+                }
+                if (printWriter.checkError())
+                    throw new IOException("Could not write " + temporary);
+            }
+            AtomicFiles.replace(temporary, liftFile);
+        } finally {
+            AtomicFiles.discard(temporary);
+        }
+        deltas = 0;
+    }
+
+    private static StringBuilder countsLine(StringBuilder line, HashMap<Integer, Integer> counts) {
+        boolean first = true;
+        for (Map.Entry<Integer, Integer> count : counts.entrySet()) {
+            if (!first)
+                line.append('\t');
+            line.append(count.getKey()).append(':').append(count.getValue());
+            first = false;
+        }
+        return line;
+    }
+}
@@ -0,0 +1,110 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lines changed since the previous build, read from the hunks of 'git diff --unified=0' in the workspace.
+ * Used by method-level dependency analysis to find the methods a change touched.
+ */
+public class ChangedLines {
+
+    // environment variables set by the Git plugin
+    private static final String GIT_COMMIT = "GIT_COMMIT";
+    private static final String GIT_PREVIOUS_COMMIT = "GIT_PREVIOUS_COMMIT";
+
+    private static final String NEW_FILE_PREFIX = "+++ ";
+    private static final String HUNK_PREFIX = "@@ ";
+
+    private ChangedLines() {
+    }
+
+    /**
+     * Runs git diff between the previous and the current commit of the build
+     *
+     * @param build The current build
+     * @param launcher Launcher for running git on the node of the workspace
+     * @param listener Listener used for logging to Jenkins console output
+     * @return the changed line ranges of the .java files, or null if they could not be determined
+     */
+    public static ArrayList<String> fromGit(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener)
+            throws IOException, InterruptedException {
+        FilePath workspace = build.getWorkspace();
+        String commit = build.getEnvironment(listener).get(GIT_COMMIT);
+        String previousCommit = build.getEnvironment(listener).get(GIT_PREVIOUS_COMMIT);
+        if (workspace == null || commit == null || previousCommit == null) {
+            listener.getLogger().println("No previous Git commit to compare with");
+            return null;
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int status = launcher.launch()
+                .cmds("git", "diff", "--unified=0", "--no-color", previousCommit, commit, "--", "*.java")
+                .pwd(workspace)
+                .stdout(output)
+                .quiet(true)
+                .join();
+        if (status != 0) {
+            listener.getLogger().println("git diff failed with exit code " + status);
+            return null;
+        }
+
+        ArrayList<String> diffLines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(output.toByteArray()), Charsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                diffLines.add(line);
+        }
+        return parse(diffLines);
+    }
+
+    /**
+     * @param diffLines output of git diff --unified=0
+     * @return one line per hunk of the form "path&lt;TAB&gt;firstLine&lt;TAB&gt;lastLine", with the path relative to the
+     *         repository and the lines numbered in the new version of the file; a hunk that only deletes lines is
+     *         reported as the line preceding the deletion
+     */
+    public static ArrayList<String> parse(List<String> diffLines) {
+        ArrayList<String> ranges = new ArrayList<>();
+        String path = null;
+
+        for (String line : diffLines) {
+            if (line.startsWith(NEW_FILE_PREFIX)) {
+                path = line.substring(NEW_FILE_PREFIX.length()).trim();
+                // deleted files have no lines left to map to methods
+                if (path.equals("/dev/null"))
+                    path = null;
+                else if (path.startsWith("b/"))
+                    path = path.substring(2);
+            } else if (line.startsWith(HUNK_PREFIX) && path != null) {
+                // @@ -oldStart[,oldCount] +newStart[,newCount] @@
+                int plus = line.indexOf(" +");
+                int end = line.indexOf(' ', plus + 2);
+                if (plus < 0 || end < 0)
+                    continue;
+                String[] newRange = line.substring(plus + 2, end).split(",");
+                try {
+                    int start = Integer.parseInt(newRange[0]);
+                    int count = newRange.length > 1 ? Integer.parseInt(newRange[1]) : 1;
+                    if (count == 0)
+                        ranges.add(path + "\t" + Math.max(start, 1) + "\t" + Math.max(start, 1));
+                    else
+                        ranges.add(path + "\t" + start + "\t" + (start + count - 1));
+                } catch (NumberFormatException e) {
+                    // not a hunk header
+                }
+            }
+        }
+
+        return ranges;
+    }
+}
@@ -0,0 +1,131 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class-to-class dependency graph of a project, built from its compiled classes with {@link ClassFileParser}
+ * (see {@link ClassFileManifest}).
+ * Only references between classes of the project are kept, so library classes never show up as dependents.
+ */
+public class ClassDependencyGraph {
+
+    // project classes and the project classes each one references, by top-level class name
+    private final HashMap<String, HashSet<String>> references;
+    // for each class, the classes that reference it
+    private HashMap<String, HashSet<String>> reverseIndex;
+
+    ClassDependencyGraph(HashMap<String, HashSet<String>> references) {
+        this.references = references;
+    }
+
+    /**
+     * @param referencesByClass classes of the project and the classes each one references, including classes
+     *                          outside the project
+     * @return the graph of the classes, keeping only references between classes of the project
+     */
+    public static ClassDependencyGraph fromReferences(Map<String, HashSet<String>> referencesByClass) {
+        HashMap<String, HashSet<String>> references = new HashMap<>();
+        for (Map.Entry<String, HashSet<String>> entry : referencesByClass.entrySet()) {
+            HashSet<String> referenced = new HashSet<>(entry.getValue());
+            referenced.retainAll(referencesByClass.keySet());
+            referenced.remove(entry.getKey());
+            references.put(entry.getKey(), referenced);
+        }
+        return new ClassDependencyGraph(references);
+    }
+
+    /**
+     * @return names of all classes in the graph
+     */
+    public Set<String> getClasses() {
+        return references.keySet();
+    }
+
+    /**
+     * @param className fully qualified name of a class
+     * @return the project classes the class references
+     */
+    public Set<String> getReferences(String className) {
+        HashSet<String> referenced = references.get(className);
+        return referenced == null ? new HashSet<String>() : referenced;
+    }
+
+    /**
+     * @param className fully qualified name of a class
+     * @return the project classes that reference the class
+     */
+    public Set<String> getDependents(String className) {
+        HashSet<String> dependents = getReverseIndex().get(className);
+        return dependents == null ? new HashSet<String>() : dependents;
+    }
+
+    /**
+     * Breadth-first closure over the reverse index, so a change to a low-level class reaches every class that
+     * depends on it through any number of classes
+     *
+     * @param changedClasses fully qualified names of the changed classes
+     * @param maxDepth maximum number of references followed from a changed class; 0 for no limit
+     * @return the changed classes and the classes depending on them
+     */
+    public LinkedHashSet<String> getDependentClosure(Collection<String> changedClasses, int maxDepth) {
+        LinkedHashSet<String> visited = new LinkedHashSet<>(changedClasses);
+        ArrayList<String> level = new ArrayList<>(visited);
+
+        for (int depth = 1; !level.isEmpty() && (maxDepth <= 0 || depth <= maxDepth); depth++) {
+            ArrayList<String> nextLevel = new ArrayList<>();
+            for (String className : level) {
+                for (String dependent : getDependents(className)) {
+                    if (visited.add(dependent))
+                        nextLevel.add(dependent);
+                }
+            }
+            level = nextLevel;
+        }
+
+        return visited;
+    }
+
+    /**
+     * @return for each class, the classes that reference it; built on first use, since the graph never changes
+     */
+    private synchronized HashMap<String, HashSet<String>> getReverseIndex() {
+        if (reverseIndex == null) {
+            reverseIndex = new HashMap<>();
+            for (Map.Entry<String, HashSet<String>> entry : references.entrySet()) {
+                for (String referenced : entry.getValue()) {
+                    if (!reverseIndex.containsKey(referenced))
+                        reverseIndex.put(referenced, new HashSet<String>());
+                    reverseIndex.get(referenced).add(entry.getKey());
+                }
+            }
+        }
+        return reverseIndex;
+    }
+
+    /**
+     * @param simpleName class name without package
+     * @return fully qualified names of the classes in the graph with that simple name
+     */
+    public ArrayList<String> withSimpleName(String simpleName) {
+        ArrayList<String> classes = new ArrayList<>();
+        for (String className : references.keySet()) {
+            if (simpleName(className).equals(simpleName))
+                classes.add(className);
+        }
+        return classes;
+    }
+
+    /**
+     * @param className fully qualified name of a class
+     * @return the name without its package
+     */
+    public static String simpleName(String className) {
+        return className.substring(className.lastIndexOf('.') + 1);
+    }
+}
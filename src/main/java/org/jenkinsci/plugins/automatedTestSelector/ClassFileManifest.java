@@ -0,0 +1,328 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Manifest of the class files the dependency graph was built from: for each file its size, modification time,
+ * content digest, class and references. Updating the manifest only parses class files whose digest changed, so
+ * keeping the graph current costs in proportion to the change rather than to the size of the project.
+ *
+ * Stored next to the graph snapshot: a header line "#manifest formatVersion lastFullScan", then one tab-separated
+ * line per class file, "path size lastModified digest className reference reference ...". The path is relative
+ * to the class directory and starts with the position of that directory in the configured list, so the manifest
+ * stays valid when the workspace moves, e.g. to workspace@2.
+ */
+public class ClassFileManifest {
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    private static final String HEADER = "#manifest";
+    private static final int FORMAT_VERSION = 2;
+    // longest time updates only look at the class files of changed classes; class files compiled from anything
+    // else than the change set, e.g. by a build of another branch in the workspace, are found by the next full scan
+    private static final long FULL_SCAN_INTERVAL = 24L * 60 * 60 * 1000;
+
+    private final File manifestFile;
+
+    // entries by path of the class file relative to its class directory, see above
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    // time of the last update that looked at every class file
+    private long lastFullScan;
+    // true if the last update changed anything, including only the times of recompiled classes
+    private boolean modified;
+
+    private ClassFileManifest(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * A class file and the references read from it
+     */
+    private static class Entry {
+        private long size;
+        private long lastModified;
+        private String digest;
+        private String className;
+        private HashSet<String> references;
+    }
+
+    /**
+     * @param manifestFile manifest file; a missing, unreadable or older manifest is treated as empty
+     * @return the manifest
+     */
+    public static ClassFileManifest load(File manifestFile) throws IOException {
+        ClassFileManifest manifest = new ClassFileManifest(manifestFile);
+        if (!manifestFile.exists())
+            return manifest;
+
+        try (InputStream inputStream = new FileInputStream(manifestFile);
+             InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charsets.UTF_8);
+             BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
+            String header = bufferedReader.readLine();
+            String[] headerFields = header == null ? new String[0] : header.split(" ");
+            if (headerFields.length < 3 || !headerFields[0].equals(HEADER)
+                    || Integer.parseInt(headerFields[1]) != FORMAT_VERSION)
+                return manifest;
+            manifest.lastFullScan = Long.parseLong(headerFields[2]);
+
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length < 5)
+                    continue;
+                Entry entry = new Entry();
+                entry.size = Long.parseLong(fields[1]);
+                entry.lastModified = Long.parseLong(fields[2]);
+                entry.digest = fields[3];
+                entry.className = fields[4];
+                entry.references = new HashSet<>(Arrays.asList(fields).subList(5, fields.length));
+                manifest.entries.put(fields[0], entry);
+            }
+        } catch (NumberFormatException e) {
+            // a corrupt manifest only costs a full re-parse
+            manifest.entries.clear();
+            manifest.lastFullScan = 0;
+        }
+        return manifest;
+    }
+
+    /**
+     * Brings the manifest up to date with the class files of the changed classes only: the top-level class file
+     * of each changed class and the class files of its nested classes. Every class file is looked at instead if
+     * the manifest is empty or its last full scan is older than a day.
+     *
+     * @param classDirectories directories holding compiled classes
+     * @param changedClasses qualified names of the classes whose sources changed
+     * @return number of class files whose class or references were added, changed or removed
+     */
+    public int update(List<File> classDirectories, Collection<String> changedClasses) throws IOException {
+        if (entries.isEmpty() || System.currentTimeMillis() - lastFullScan > FULL_SCAN_INTERVAL)
+            return update(classDirectories);
+
+        int changes = 0;
+        // class files of the changed classes, as paths without the ".class" suffix
+        HashSet<String> changedPaths = new HashSet<>();
+        HashSet<String> found = new HashSet<>();
+        for (int i = 0; i < classDirectories.size(); i++) {
+            for (String className : changedClasses) {
+                String classPath = i + "/" + className.replace('.', '/');
+                changedPaths.add(classPath);
+
+                String simpleName = ClassDependencyGraph.simpleName(className);
+                File packageDirectory =
+                        new File(classDirectories.get(i), className.replace('.', '/')).getParentFile();
+                File[] files = packageDirectory.listFiles();
+                if (files == null)
+                    continue;
+                for (File f : files) {
+                    if (isClassFileOf(f.getName(), simpleName)) {
+                        String path = classPath.substring(0, classPath.length() - simpleName.length()) + f.getName();
+                        found.add(path);
+                        if (update(path, f))
+                            changes++;
+                    }
+                }
+            }
+        }
+
+        for (String path : new HashSet<>(entries.keySet())) {
+            if (!found.contains(path) && isFileOfChangedClass(path, changedPaths)) {
+                entries.remove(path);
+                modified = true;
+                changes++;
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * Brings the manifest up to date with all class files below the directories. Files with the size and
+     * modification time recorded in the manifest are not read; other files are only parsed if their digest changed.
+     *
+     * @param classDirectories directories holding compiled classes
+     * @return number of class files whose class or references were added, changed or removed
+     */
+    public int update(List<File> classDirectories) throws IOException {
+        int changes = 0;
+        HashSet<String> found = new HashSet<>();
+
+        for (int i = 0; i < classDirectories.size(); i++) {
+            // directories below the class directory, and their paths in the manifest
+            LinkedList<File> directories = new LinkedList<>();
+            LinkedList<String> directoryPaths = new LinkedList<>();
+            directories.add(classDirectories.get(i));
+            directoryPaths.add(String.valueOf(i));
+            while (!directories.isEmpty()) {
+                File[] files = directories.poll().listFiles();
+                String directoryPath = directoryPaths.poll();
+                if (files == null)
+                    continue;
+
+                for (File f : files) {
+                    String path = directoryPath + "/" + f.getName();
+                    if (f.isDirectory()) {
+                        directories.add(f);
+                        directoryPaths.add(path);
+                        continue;
+                    }
+                    if (!f.getName().endsWith(".class"))
+                        continue;
+
+                    found.add(path);
+                    if (update(path, f))
+                        changes++;
+                }
+            }
+        }
+
+        for (String path : new HashSet<>(entries.keySet())) {
+            if (!found.contains(path)) {
+                entries.remove(path);
+                modified = true;
+                changes++;
+            }
+        }
+
+        lastFullScan = System.currentTimeMillis();
+        modified = true;
+        return changes;
+    }
+
+    /**
+     * @param path path of the class file in the manifest
+     * @param f the class file
+     * @return true if the class or the references of the file changed
+     */
+    private boolean update(String path, File f) throws IOException {
+        Entry entry = entries.get(path);
+        if (entry != null && entry.size == f.length() && entry.lastModified == f.lastModified())
+            return false;
+
+        boolean changed = false;
+        byte[] contents = readFully(f);
+        String digest = digest(contents);
+        if (entry == null || !entry.digest.equals(digest)) {
+            ClassFileParser parsed = ClassFileParser.parse(new ByteArrayInputStream(contents));
+            // a changed method body keeps the references, and with them the graph
+            changed = entry == null || !entry.className.equals(parsed.getClassName())
+                    || !entry.references.equals(parsed.getReferences());
+            entry = new Entry();
+            entry.digest = digest;
+            entry.className = parsed.getClassName();
+            entry.references = parsed.getReferences();
+            entries.put(path, entry);
+        }
+        // recompiled but identical classes only update the fast path
+        modified = true;
+        entry.size = f.length();
+        entry.lastModified = f.lastModified();
+        return changed;
+    }
+
+    /**
+     * @param fileName name of a class file
+     * @param simpleName name of a top-level class without package
+     * @return true if the file holds the class or one of its nested classes
+     */
+    private static boolean isClassFileOf(String fileName, String simpleName) {
+        return fileName.endsWith(".class")
+                && (fileName.equals(simpleName + ".class") || fileName.startsWith(simpleName + "$"));
+    }
+
+    /**
+     * @param path path of a class file in the manifest
+     * @param changedPaths paths of the changed top-level classes, without the ".class" suffix
+     * @return true if the file holds one of the classes or their nested classes
+     */
+    private static boolean isFileOfChangedClass(String path, Set<String> changedPaths) {
+        int nested = path.indexOf('$', path.lastIndexOf('/'));
+        String classPath = nested >= 0 ? path.substring(0, nested) : path.substring(0, path.length() - 6);
+        return changedPaths.contains(classPath);
+    }
+
+    /**
+     * @return true if the manifest has to be saved to keep the last update
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * @return the dependency graph of the classes in the manifest
+     */
+    public ClassDependencyGraph toGraph() {
+        HashMap<String, HashSet<String>> references = new HashMap<>();
+        for (Entry entry : entries.values()) {
+            // nested classes add their references to their top-level class
+            if (!references.containsKey(entry.className))
+                references.put(entry.className, new HashSet<String>());
+            references.get(entry.className).addAll(entry.references);
+        }
+        return ClassDependencyGraph.fromReferences(references);
+    }
+
+    /**
+     * Writes the manifest under a temporary name and renames it, so a build loading the manifest never reads a
+     * partly written one
+     */
+    public void save() throws IOException {
+        File temporary = AtomicFiles.createTemporary(manifestFile);
+        try {
+            try (OutputStream outputStream = new FileOutputStream(temporary);
+                 OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+                 PrintWriter printWriter = new PrintWriter(outputStreamWriter)) {
+                printWriter.println(HEADER + " " + FORMAT_VERSION + " " + lastFullScan);
+                for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                    Entry entry = mapEntry.getValue();
+                    StringBuilder line = new StringBuilder(mapEntry.getKey())
+                            .append('\t').append(entry.size)
+                            .append('\t').append(entry.lastModified)
+                            .append('\t').append(entry.digest)
+                            .append('\t').append(entry.className);
+                    for (String reference : entry.references)
+                        line.append('\t').append(reference);
+                    printWriter.println(line);
+                }
+                if (printWriter.checkError())
+                    throw new IOException("Could not write " + temporary);
+            }
+            AtomicFiles.replace(temporary, manifestFile);
+        } finally {
+            AtomicFiles.discard(temporary);
+        }
+        modified = false;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(contents);
+        }
+        return contents;
+    }
+
+    private static String digest(byte[] contents) throws IOException {
+        try {
+            byte[] hash = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(contents);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash)
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import java.io.*;
+import java.util.BitSet;
+import java.util.HashSet;
+
+/**
+ * Reads the classes a compiled class references from its constant pool: class entries, and the field, method,
+ * generic signature and annotation descriptors stored as UTF-8 entries. Nested classes are reported as their
+ * top-level class, since sources and tests are matched by top-level class.
+ */
+public class ClassFileParser {
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    // constant pool tags
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int FLOAT = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int FIELD_REF = 9;
+    private static final int METHOD_REF = 10;
+    private static final int INTERFACE_METHOD_REF = 11;
+    private static final int NAME_AND_TYPE = 12;
+    private static final int METHOD_HANDLE = 15;
+    private static final int METHOD_TYPE = 16;
+    private static final int DYNAMIC = 17;
+    private static final int INVOKE_DYNAMIC = 18;
+    private static final int MODULE = 19;
+    private static final int PACKAGE = 20;
+
+    // name of the parsed class and of the classes it references, both top-level and dot-separated
+    private final String className;
+    private final HashSet<String> references = new HashSet<>();
+
+    private ClassFileParser(String className) {
+        this.className = className;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * @return top-level classes referenced by the class, excluding the class itself
+     */
+    public HashSet<String> getReferences() {
+        return references;
+    }
+
+    /**
+     * @param inputStream contents of a .class file
+     * @return the parsed class
+     * @throws IOException if the stream is not a valid class file
+     */
+    public static ClassFileParser parse(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a class file");
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        int[] classNameIndex = new int[count];
+        // UTF-8 entries that are string literals rather than names or descriptors
+        BitSet literals = new BitSet(count);
+
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case UTF8:
+                    utf8[i] = in.readUTF();
+                    break;
+                case CLASS:
+                    classNameIndex[i] = in.readUnsignedShort();
+                    break;
+                case STRING:
+                    literals.set(in.readUnsignedShort());
+                    break;
+                case METHOD_TYPE:
+                case MODULE:
+                case PACKAGE:
+                    in.readUnsignedShort();
+                    break;
+                case METHOD_HANDLE:
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                case INTEGER:
+                case FLOAT:
+                case FIELD_REF:
+                case METHOD_REF:
+                case INTERFACE_METHOD_REF:
+                case NAME_AND_TYPE:
+                case DYNAMIC:
+                case INVOKE_DYNAMIC:
+                    in.readInt();
+                    break;
+                case LONG:
+                case DOUBLE:
+                    in.readLong();
+                    // 8-byte constants take up two entries
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        in.readUnsignedShort(); // access flags
+        int thisClass = in.readUnsignedShort();
+        ClassFileParser parser = new ClassFileParser(topLevel(utf8[classNameIndex[thisClass]]));
+
+        for (int i = 1; i < count; i++) {
+            if (classNameIndex[i] != 0) {
+                String name = utf8[classNameIndex[i]];
+                // array classes are named by their descriptor, e.g. [Lcom/foo/Bar;
+                if (name.startsWith("["))
+                    parser.addDescriptor(name);
+                else
+                    parser.addReference(name);
+            }
+        }
+        for (int i = 1; i < count; i++) {
+            if (utf8[i] != null && !literals.get(i))
+                parser.addDescriptor(utf8[i]);
+        }
+
+        parser.references.remove(parser.className);
+        return parser;
+    }
+
+    /**
+     * Adds the classes named in a descriptor or generic signature, e.g. (Lcom/foo/Bar;I)Ljava/util/List&lt;Lcom/foo/Baz;&gt;;
+     * Names and other strings rarely look like a type, and anything they add is dropped later unless it matches
+     * a class of the project.
+     */
+    private void addDescriptor(String descriptor) {
+        int start = descriptor.indexOf('L');
+        while (start >= 0) {
+            int end = start + 1;
+            while (end < descriptor.length() && descriptor.charAt(end) != ';' && descriptor.charAt(end) != '<')
+                end++;
+            if (end == descriptor.length())
+                return;
+            if (end > start + 1 && isStartOfType(descriptor, start)) {
+                addReference(descriptor.substring(start + 1, end));
+                // continue after the name so letters inside it are not taken for the start of a type
+                start = descriptor.indexOf('L', end);
+            } else {
+                start = descriptor.indexOf('L', start + 1);
+            }
+        }
+    }
+
+    /**
+     * @return true if the character before an 'L' can precede an object type in a descriptor or signature
+     */
+    private static boolean isStartOfType(String descriptor, int index) {
+        if (index == 0)
+            return true;
+        char previous = descriptor.charAt(index - 1);
+        return previous == '(' || previous == ')' || previous == ';' || previous == '[' || previous == '<'
+                || previous == '+' || previous == '-' || previous == ':' || previous == '>'
+                || "BCDFIJSZV".indexOf(previous) >= 0;
+    }
+
+    private void addReference(String internalName) {
+        if (internalName.indexOf(' ') < 0)
+            references.add(topLevel(internalName));
+    }
+
+    /**
+     * @param internalName slash-separated class name, e.g. com/foo/Bar$Inner
+     * @return dot-separated name of the top-level class, e.g. com.foo.Bar
+     */
+    static String topLevel(String internalName) {
+        int simpleNameStart = internalName.lastIndexOf('/') + 1;
+        int nested = internalName.indexOf('$', simpleNameStart);
+        if (nested > simpleNameStart)
+            internalName = internalName.substring(0, nested);
+        return internalName.replace('/', '.');
+    }
+}
@@ -0,0 +1,106 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.FilePath;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Package-qualified class names from the changed path in version control through the dependency graph to the
+ * test in the test suite file, so that classes sharing a simple name (Util, Config, ...) in different packages
+ * are not mistaken for one another.
+ */
+public class ClassNames {
+
+    // source roots of the usual layouts, tried in order when the package cannot be read from the source file
+    private static final String[] SOURCE_ROOTS = { "/java/", "/src/" };
+
+    private static final String PACKAGE_PREFIX = "package ";
+
+    private ClassNames() {
+    }
+
+    /**
+     * @param workspace FilePath of build workspace
+     * @param changedPaths paths changed in version control, relative to the workspace
+     * @return qualified names of the top-level classes of the changed .java files
+     */
+    public static ArrayList<String> fromSourcePaths(FilePath workspace, Collection<String> changedPaths)
+            throws IOException, InterruptedException {
+        ArrayList<String> classNames = new ArrayList<>();
+        for (String path : changedPaths) {
+            if (path.endsWith(".java"))
+                classNames.add(fromSourcePath(workspace, path));
+        }
+        return classNames;
+    }
+
+    /**
+     * Reads the package from the package declaration of the source file. Deleted files are resolved from their
+     * path below the source root instead.
+     *
+     * @param workspace FilePath of build workspace
+     * @param path path of a .java file, relative to the workspace
+     * @return qualified name of the top-level class of the file
+     */
+    public static String fromSourcePath(FilePath workspace, String path) throws IOException, InterruptedException {
+        path = path.replace('\\', '/');
+        String simpleName = path.substring(path.lastIndexOf('/') + 1, path.length() - ".java".length());
+
+        FilePath sourceFile = workspace.child(path);
+        if (sourceFile.exists()) {
+            String packageName = readPackage(sourceFile);
+            return packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+        }
+
+        String relativePath = "/" + path.substring(0, path.length() - ".java".length());
+        for (String root : SOURCE_ROOTS) {
+            int start = relativePath.lastIndexOf(root);
+            if (start >= 0)
+                return relativePath.substring(start + root.length()).replace('/', '.');
+        }
+        return simpleName;
+    }
+
+    /**
+     * @param linesForFile lines of the test suite file
+     * @param tests names of the tests as listed in the @SuiteClasses annotation
+     * @return the tests by qualified class name and, for analyzers that only report simple names, by simple name
+     */
+    public static HashMap<String, String> testsByClassName(List<String> linesForFile, List<String> tests) {
+        ArrayList<String> qualifiedNames = TestOutput.qualifiedNames(linesForFile, tests);
+        HashMap<String, String> testsByClassName = new HashMap<>();
+        for (int i = 0; i < tests.size(); i++) {
+            testsByClassName.put(qualifiedNames.get(i), tests.get(i));
+            String simpleName = ClassDependencyGraph.simpleName(qualifiedNames.get(i));
+            if (!testsByClassName.containsKey(simpleName))
+                testsByClassName.put(simpleName, tests.get(i));
+        }
+        return testsByClassName;
+    }
+
+    /**
+     * @return the package declared in the source file, or the empty string for the default package
+     */
+    private static String readPackage(FilePath sourceFile) throws IOException, InterruptedException {
+        try (InputStream inputStream = sourceFile.read();
+             InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charsets.UTF_8);
+             BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith(PACKAGE_PREFIX) && line.contains(";"))
+                    return line.substring(PACKAGE_PREFIX.length(), line.indexOf(';')).trim();
+                // the package declaration comes before any type
+                if (line.startsWith("import ") || line.contains("class ") || line.contains("interface "))
+                    return "";
+            }
+        }
+        return "";
+    }
+}
@@ -0,0 +1,190 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.model.Job;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-job map from classes to the test classes changed in the same commits, e.g. Parser to ParserEdgeCaseTest,
+ * which a naming heuristic alone would not find. Commits changing more than MAX_COMMIT_CLASSES classes (merges,
+ * renames, formatting) say little about which tests belong to which class and are left out. The map keeps the
+ * MAX_TESTS tests changed most often with each class, for the MAX_CLASSES classes used most recently.
+ *
+ * The map is stored in the job directory, least recently used class first, one class per line:
+ * "class test:count test:count ...", tab-separated.
+ */
+public class CoChangeMap {
+
+    // file in the job directory holding the map
+    private static final String CO_CHANGE_FILE = "coChange.txt";
+
+    private static final int MAX_COMMIT_CLASSES = 50;
+    private static final int MAX_CLASSES = 10000;
+    private static final int MAX_TESTS = 20;
+
+    // one map per job, shared by concurrent builds
+    private static final HashMap<String, CoChangeMap> MAPS = new HashMap<>();
+
+    private final File mapFile;
+
+    // for each class, the number of commits that changed it together with each test class; in access order
+    private final LinkedHashMap<String, HashMap<String, Integer>> coChanges =
+            new LinkedHashMap<String, HashMap<String, Integer>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, HashMap<String, Integer>> eldest) {
+                    return size() > MAX_CLASSES;
+                }
+            };
+    private boolean loaded = false;
+
+    CoChangeMap(File mapFile) {
+        this.mapFile = mapFile;
+    }
+
+    /**
+     * @param job The job owning the map
+     * @return the co-change map stored in the job's directory
+     */
+    public static synchronized CoChangeMap forJob(Job<?, ?> job) {
+        File file = new File(job.getRootDir(), CO_CHANGE_FILE);
+        CoChangeMap map = MAPS.get(file.getPath());
+        if (map == null) {
+            map = new CoChangeMap(file);
+            MAPS.put(file.getPath(), map);
+        }
+        return map;
+    }
+
+    /**
+     * @param className qualified class name
+     * @param testIds test classes of the job
+     * @return true if the class has test results in the job; before there are any, true if it is named like a
+     *         test: FooTest, FooTests or FooIT, but not helpers such as TestUtils or SplIT
+     */
+    static boolean isTest(String className, TestIdTable testIds) throws IOException {
+        if (testIds.size() > 0)
+            return testIds.getId(TestIdTable.testName(className)) >= 0;
+
+        String simpleName = ClassDependencyGraph.simpleName(className);
+        return (simpleName.endsWith("Test") || simpleName.endsWith("Tests")
+                || simpleName.matches(".*[a-z0-9]IT")) && !simpleName.startsWith("Abstract");
+    }
+
+    /**
+     * Counts the test classes changed together with each class and saves the map
+     *
+     * @param commits qualified names of the classes changed by each commit
+     * @param testIds test classes of the job
+     */
+    public synchronized void record(List<? extends Collection<String>> commits, TestIdTable testIds)
+            throws IOException {
+        load();
+
+        boolean recorded = false;
+        for (Collection<String> commit : commits) {
+            if (commit.size() < 2 || commit.size() > MAX_COMMIT_CLASSES)
+                continue;
+
+            for (String test : commit) {
+                if (!isTest(test, testIds))
+                    continue;
+                for (String className : commit) {
+                    if (className.equals(test))
+                        continue;
+                    HashMap<String, Integer> tests = coChanges.get(className);
+                    if (tests == null) {
+                        tests = new HashMap<>();
+                        coChanges.put(className, tests);
+                    }
+                    Integer count = tests.get(test);
+                    tests.put(test, count == null ? 1 : count + 1);
+                    if (tests.size() > MAX_TESTS)
+                        removeLeastCoChanged(tests);
+                    recorded = true;
+                }
+            }
+        }
+
+        if (recorded)
+            save();
+    }
+
+    /**
+     * @param changedClasses qualified names of the changed classes
+     * @return qualified names of the test classes changed together with any of the classes before
+     */
+    public synchronized ArrayList<String> getTests(Collection<String> changedClasses) throws IOException {
+        load();
+
+        LinkedHashSet<String> tests = new LinkedHashSet<>();
+        for (String className : changedClasses) {
+            HashMap<String, Integer> coChangedTests = coChanges.get(className);
+            if (coChangedTests != null)
+                tests.addAll(coChangedTests.keySet());
+        }
+        return new ArrayList<>(tests);
+    }
+
+    /**
+     * Removes a test changed together with the class least often
+     */
+    private static void removeLeastCoChanged(HashMap<String, Integer> tests) {
+        String least = null;
+        for (Map.Entry<String, Integer> test : tests.entrySet()) {
+            if (least == null || test.getValue() <= tests.get(least))
+                least = test.getKey();
+        }
+        tests.remove(least);
+    }
+
+    private void load() throws IOException {
+        if (loaded)
+            return;
+
+        if (mapFile.exists()) {
+            try (InputStream inputStream = new FileInputStream(mapFile);
+                 InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charsets.UTF_8);
+                 BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
+                String line;
+                while ((line = bufferedReader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    HashMap<String, Integer> tests = new HashMap<>();
+                    for (int i = 1; i < fields.length; i++) {
+                        int separator = fields[i].lastIndexOf(':');
+                        try {
+                            tests.put(fields[i].substring(0, separator),
+                                      Integer.parseInt(fields[i].substring(separator + 1)));
+                        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                            // skip a corrupt field; it is counted again by later commits
+                        }
+                    }
+                    if (!tests.isEmpty())
+                        coChanges.put(fields[0], tests);
+                }
+            }
+        }
+        loaded = true;
+    }
+
+    private void save() throws IOException {
+        try (OutputStream outputStream = new FileOutputStream(mapFile);
+             OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+             PrintWriter printWriter = new PrintWriter(outputStreamWriter)) {
+            for (Map.Entry<String, HashMap<String, Integer>> entry : coChanges.entrySet()) {
+                StringBuilder line = new StringBuilder(entry.getKey());
+                for (Map.Entry<String, Integer> test : entry.getValue().entrySet())
+                    line.append('\t').append(test.getKey()).append(':').append(test.getValue());
+                printWriter.println(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+
+import jenkins.security.MasterToSlaveCallable;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client for the dependency analysis service started with 'java DependencyAnalysis --serve'. The service keeps
+ * the Understand database loaded between builds, so a build does not pay for starting a JVM and opening and
+ * enumerating the database as the 'java DependencyAnalysis' subprocess does. The service runs next to the
+ * workspace it analyzes, so requests are sent from the node that owns the workspace, and it rejects requests
+ * for another workspace.
+ */
+public class DependencyAnalysisClient {
+
+    // time allowed for connecting to the service; a service that is not running is detected at once
+    private static final int CONNECT_TIMEOUT = 1000;
+    // time allowed for the analysis, including a re-scan of the database
+    private static final int READ_TIMEOUT = 10 * 60 * 1000;
+
+    private DependencyAnalysisClient() {
+    }
+
+    /**
+     * Sends the request from the node that owns the workspace
+     *
+     * @param workspace FilePath of build workspace
+     * @param port Local port of the service on that node
+     * @param changedSourceFiles Qualified names of the changed classes
+     * @param maxDepth Maximum number of references followed from a changed module; 0 for no limit
+     * @param listener Listener used for logging to Jenkins console output
+     * @return the changed and dependent modules, or null if the service could not be used
+     */
+    public static ArrayList<String> getDependentModules(FilePath workspace,
+                                                        int port,
+                                                        List<String> changedSourceFiles,
+                                                        int maxDepth,
+                                                        TaskListener listener)
+            throws IOException, InterruptedException {
+        return workspace.act(new Request(workspace.getRemote(), port, changedSourceFiles, maxDepth, listener));
+    }
+
+    /**
+     * Request to the service, run on the node that owns the workspace
+     */
+    private static class Request extends MasterToSlaveCallable<ArrayList<String>, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String workspacePath;
+        private final int port;
+        private final ArrayList<String> changedSourceFiles;
+        private final int maxDepth;
+        private final TaskListener listener;
+
+        private Request(String workspacePath,
+                        int port,
+                        List<String> changedSourceFiles,
+                        int maxDepth,
+                        TaskListener listener) {
+            this.workspacePath = workspacePath;
+            this.port = port;
+            this.changedSourceFiles = new ArrayList<>(changedSourceFiles);
+            this.maxDepth = maxDepth;
+            this.listener = listener;
+        }
+
+        @Override
+        public ArrayList<String> call() {
+            return getDependentModules(workspacePath, port, changedSourceFiles, maxDepth, listener);
+        }
+    }
+
+    /**
+     * @param workspacePath Path of the build workspace on this node
+     * @param port Local port of the service
+     * @param changedSourceFiles Qualified names of the changed classes
+     * @param maxDepth Maximum number of references followed from a changed module; 0 for no limit
+     * @param listener Listener used for logging to Jenkins console output
+     * @return the changed and dependent modules, or null if the service could not be used
+     */
+    public static ArrayList<String> getDependentModules(String workspacePath,
+                                                        int port,
+                                                        List<String> changedSourceFiles,
+                                                        int maxDepth,
+                                                        TaskListener listener) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), Charsets.UTF_8));
+            writer.println("WORKSPACE " + workspacePath);
+            writer.println("DEPTH " + maxDepth);
+            for (String sourceFile : changedSourceFiles)
+                writer.println(sourceFile);
+            writer.println();
+            writer.flush();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charsets.UTF_8));
+            String status = reader.readLine();
+            ArrayList<String> lines = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty())
+                lines.add(line);
+
+            if (!"OK".equals(status)) {
+                listener.getLogger().println("Dependency analysis service failed: "
+                        + (lines.isEmpty() ? "no response" : lines.get(0)));
+                return null;
+            }
+
+            listener.getLogger().println("Dependency analysis service returned " + lines.size() + " modules");
+            return lines;
+        } catch (IOException exception) {
+            listener.getLogger().println("Dependency analysis service not available on port " + port + ": "
+                    + exception.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import jenkins.MasterToSlaveFileCallable;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a stand-alone dependency analysis program ('java DependencyAnalysis' or 'java MethodLevelDepAnalysis') on
+ * the node that owns the workspace, handing the input over and the result back in the handoff file. Only the
+ * result lines travel back to the controller; the program's output is streamed to the build log.
+ */
+public class DependencyAnalysisProgram extends MasterToSlaveFileCallable<ArrayList<String>> {
+
+    private static final long serialVersionUID = 1L;
+
+    // stand-alone analysis programs run with 'java'
+    public static final String CLASS_LEVEL = "DependencyAnalysis";
+    public static final String METHOD_LEVEL = "MethodLevelDepAnalysis";
+
+    // handoff files are named uniquely, since an analysis may still run in the background when the next one starts
+    private static final String HANDOFF_PREFIX = "handoff";
+    private static final String HANDOFF_SUFFIX = ".txt";
+
+    private final String program;
+    private final String udbPath;
+    private final ArrayList<String> input;
+    private final int maxDepth;
+    private final TaskListener listener;
+
+    private DependencyAnalysisProgram(String program,
+                                      String udbPath,
+                                      List<String> input,
+                                      int maxDepth,
+                                      TaskListener listener) {
+        this.program = program;
+        this.udbPath = udbPath;
+        this.input = new ArrayList<>(input);
+        this.maxDepth = maxDepth;
+        this.listener = listener;
+    }
+
+    /**
+     * @param workspace FilePath of build workspace
+     * @param program CLASS_LEVEL or METHOD_LEVEL
+     * @param udbPath path of the Understand database
+     * @param input lines of input for the program: qualified names of the changed classes, or the changed line
+     *              ranges for method-level analysis
+     * @param maxDepth maximum number of references followed from a change; 0 for no limit
+     * @param listener listener used for logging to Jenkins console output
+     * @return the lines of output of the program, or null if it failed: it exited with a non-zero status or did
+     *         not replace the input in the handoff file
+     */
+    public static ArrayList<String> run(FilePath workspace,
+                                        String program,
+                                        String udbPath,
+                                        List<String> input,
+                                        int maxDepth,
+                                        TaskListener listener)
+            throws IOException, InterruptedException {
+        return workspace.act(new DependencyAnalysisProgram(program, udbPath, input, maxDepth, listener));
+    }
+
+    @Override
+    public ArrayList<String> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        File handoffFile = File.createTempFile(HANDOFF_PREFIX, HANDOFF_SUFFIX, workspace);
+        try {
+            return analyze(workspace, handoffFile);
+        } finally {
+            handoffFile.delete();
+        }
+    }
+
+    private ArrayList<String> analyze(File workspace, File handoffFile) throws IOException, InterruptedException {
+        // write the input to the handoff file
+        try (OutputStream outputStream = new FileOutputStream(handoffFile);
+             OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+             PrintWriter printWriter = new PrintWriter(outputStreamWriter)) {
+            for (String line : input)
+                printWriter.println(line);
+        }
+        // the program replaces the file with its result; an unchanged time means it never got that far
+        long inputWritten = handoffFile.setLastModified(0) ? 0 : handoffFile.lastModified();
+
+        // output is redirected to the listener for viewing in Jenkins, on a thread of its own so that waiting for
+        // the program can be interrupted even while it prints nothing
+        final Process process = new ProcessBuilder("java", program, udbPath, workspace.getPath(),
+                                                   handoffFile.getPath(), String.valueOf(maxDepth))
+                .redirectErrorStream(true)
+                .start();
+        Thread outputCopier = new Thread(new Runnable() {
+            public void run() {
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(process.getInputStream(), Charsets.UTF_8))) {
+                    String output;
+                    while ((output = reader.readLine()) != null)
+                        listener.getLogger().println(output);
+                } catch (IOException e) {
+                    // the program was destroyed
+                }
+            }
+        }, program + " output");
+        outputCopier.setDaemon(true);
+        outputCopier.start();
+
+        int status;
+        try {
+            status = process.waitFor();
+            // make sure all output is logged before reading the result
+            outputCopier.join();
+        } catch (InterruptedException e) {
+            // the analysis is no longer awaited, e.g. a background analysis that timed out; it must not go on
+            // using the database once the caller runs the analysis itself
+            destroy(process);
+            throw e;
+        }
+        if (status != 0) {
+            listener.getLogger().println(program + " exited with status " + status);
+            return null;
+        }
+        if (handoffFile.lastModified() == inputWritten) {
+            listener.getLogger().println(program + " did not write a result");
+            return null;
+        }
+
+        ArrayList<String> result = new ArrayList<>();
+        try (InputStream inputStream = new FileInputStream(handoffFile);
+             InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charsets.UTF_8);
+             BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
+            String line;
+            while ((line = bufferedReader.readLine()) != null)
+                result.add(line);
+        } catch (IOException exception) {
+            listener.getLogger().println(exception.getMessage());
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Destroys a process and waits until it has exited, even if the waiting thread is interrupted
+     */
+    private static void destroy(Process process) {
+        process.destroy();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                process.waitFor();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
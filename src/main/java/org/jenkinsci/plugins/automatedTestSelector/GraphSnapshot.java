@@ -0,0 +1,428 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Read-only, memory-mapped binary snapshot of a {@link ClassDependencyGraph}. Classes are numbered in sorted
+ * name order; edges are stored as compressed sparse rows for both directions, so loading the snapshot costs
+ * a file mapping rather than a heap copy of the graph, and builds on the same machine share the page cache.
+ *
+ * Layout, all integers big-endian:
+ *   header:       magic, format version, graph version (long), class count n, edge count m
+ *   string table: n + 1 byte offsets, then the UTF-8 bytes of the class names in sorted order
+ *   simple names: n class IDs sorted by simple name
+ *   forward:      n + 1 edge offsets, then m referenced class IDs
+ *   reverse:      n + 1 edge offsets, then m referencing class IDs
+ */
+public class GraphSnapshot {
+
+    private static final int MAGIC = 0x54534753;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+
+    // snapshots kept mapped by this JVM, e.g. one per workspace of a busy node
+    private static final int MAX_MAPPED = 16;
+    // snapshots mapped by this JVM, by path, least recently used first; reused while the file is unchanged
+    private static final LinkedHashMap<String, GraphSnapshot> MAPPED =
+            new LinkedHashMap<String, GraphSnapshot>(MAX_MAPPED, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, GraphSnapshot> eldest) {
+                    // the mapping itself is released once no build holds the evicted snapshot any more
+                    return size() > MAX_MAPPED;
+                }
+            };
+
+    // level size from which the closure forks; also the number of classes each task expands on its own
+    private static final int PARALLEL_THRESHOLD = 256;
+    private static ForkJoinPool pool;
+
+    // modification time and length of the mapped file
+    private final long lastModified;
+    private final long length;
+    private final long version;
+    private final int classCount;
+
+    private final IntBuffer nameOffsets;
+    private final ByteBuffer nameBytes;
+    private final IntBuffer bySimpleName;
+    private final IntBuffer forwardOffsets;
+    private final IntBuffer forwardEdges;
+    private final IntBuffer reverseOffsets;
+    private final IntBuffer reverseEdges;
+
+    private GraphSnapshot(MappedByteBuffer buffer, long lastModified) throws IOException {
+        this.lastModified = lastModified;
+        this.length = buffer.capacity();
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION)
+            throw new IOException("Not a dependency graph snapshot of format version " + FORMAT_VERSION);
+        version = buffer.getLong(8);
+        classCount = buffer.getInt(16);
+        int edgeCount = buffer.getInt(20);
+
+        int position = HEADER_SIZE;
+        nameOffsets = ints(buffer, position, classCount + 1);
+        position += 4 * (classCount + 1);
+        int nameLength = nameOffsets.get(classCount);
+        nameBytes = bytes(buffer, position, nameLength);
+        position += nameLength;
+        bySimpleName = ints(buffer, position, classCount);
+        position += 4 * classCount;
+        forwardOffsets = ints(buffer, position, classCount + 1);
+        position += 4 * (classCount + 1);
+        forwardEdges = ints(buffer, position, edgeCount);
+        position += 4 * edgeCount;
+        reverseOffsets = ints(buffer, position, classCount + 1);
+        position += 4 * (classCount + 1);
+        reverseEdges = ints(buffer, position, edgeCount);
+    }
+
+    /**
+     * Maps a snapshot file, reusing the mapping of an earlier call if the file has not changed since
+     *
+     * @param file snapshot file written by {@link #write}
+     * @return the mapped snapshot
+     */
+    public static GraphSnapshot map(File file) throws IOException {
+        synchronized (MAPPED) {
+            GraphSnapshot snapshot = MAPPED.get(file.getPath());
+            if (snapshot != null && snapshot.lastModified == file.lastModified() && snapshot.length == file.length())
+                return snapshot;
+
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                 FileChannel channel = randomAccessFile.getChannel()) {
+                // the mapping stays valid after the channel is closed
+                snapshot = new GraphSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                                             file.lastModified());
+            }
+            MAPPED.put(file.getPath(), snapshot);
+            return snapshot;
+        }
+    }
+
+    /**
+     * Writes a graph as a snapshot. The file is written under a temporary name unique to this call and renamed,
+     * so builds mapping the previous snapshot never see a partly written file, and concurrent builds of the job
+     * never write to the same file.
+     *
+     * @param graph graph to write
+     * @param version version of the graph, e.g. the time it was built
+     * @param file snapshot file
+     */
+    public static void write(ClassDependencyGraph graph, long version, File file) throws IOException {
+        final ArrayList<String> names = new ArrayList<>(graph.getClasses());
+        Collections.sort(names);
+        HashMap<String, Integer> ids = new HashMap<>();
+        for (int id = 0; id < names.size(); id++)
+            ids.put(names.get(id), id);
+
+        int n = names.size();
+        byte[][] encodedNames = new byte[n][];
+        int[] nameOffsets = new int[n + 1];
+        for (int id = 0; id < n; id++) {
+            encodedNames[id] = names.get(id).getBytes(Charsets.UTF_8);
+            nameOffsets[id + 1] = nameOffsets[id] + encodedNames[id].length;
+        }
+
+        Integer[] bySimpleName = new Integer[n];
+        for (int id = 0; id < n; id++)
+            bySimpleName[id] = id;
+        Arrays.sort(bySimpleName, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return ClassDependencyGraph.simpleName(names.get(a))
+                        .compareTo(ClassDependencyGraph.simpleName(names.get(b)));
+            }
+        });
+
+        // forward rows in ID order; reverse rows are counted first, then filled
+        int[] forwardOffsets = new int[n + 1];
+        int[] reverseCounts = new int[n + 1];
+        ArrayList<int[]> forwardRows = new ArrayList<>();
+        for (int id = 0; id < n; id++) {
+            Set<String> referenced = graph.getReferences(names.get(id));
+            int[] row = new int[referenced.size()];
+            int i = 0;
+            for (String name : referenced)
+                row[i++] = ids.get(name);
+            Arrays.sort(row);
+            forwardRows.add(row);
+            forwardOffsets[id + 1] = forwardOffsets[id] + row.length;
+            for (int target : row)
+                reverseCounts[target + 1]++;
+        }
+        int m = forwardOffsets[n];
+
+        int[] reverseOffsets = new int[n + 1];
+        for (int id = 0; id < n; id++)
+            reverseOffsets[id + 1] = reverseOffsets[id] + reverseCounts[id + 1];
+        int[] reverseEdges = new int[m];
+        int[] fill = Arrays.copyOf(reverseOffsets, n);
+        for (int id = 0; id < n; id++) {
+            for (int target : forwardRows.get(id))
+                reverseEdges[fill[target]++] = id;
+        }
+
+        File temporary = AtomicFiles.createTemporary(file);
+        try {
+            try (OutputStream outputStream = new FileOutputStream(temporary);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(version);
+                out.writeInt(n);
+                out.writeInt(m);
+
+                for (int offset : nameOffsets)
+                    out.writeInt(offset);
+                for (byte[] encodedName : encodedNames)
+                    out.write(encodedName);
+                for (int id : bySimpleName)
+                    out.writeInt(id);
+
+                for (int offset : forwardOffsets)
+                    out.writeInt(offset);
+                for (int[] row : forwardRows) {
+                    for (int target : row)
+                        out.writeInt(target);
+                }
+
+                for (int offset : reverseOffsets)
+                    out.writeInt(offset);
+                for (int source : reverseEdges)
+                    out.writeInt(source);
+            }
+            AtomicFiles.replace(temporary, file);
+        } finally {
+            AtomicFiles.discard(temporary);
+        }
+    }
+
+    /**
+     * @return version of the graph the snapshot was written from
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * @param id class ID
+     * @return fully qualified name of the class
+     */
+    public String getClassName(int id) {
+        int start = nameOffsets.get(id);
+        byte[] bytes = new byte[nameOffsets.get(id + 1) - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = nameBytes.get(start + i);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    /**
+     * @param className fully qualified name of a class
+     * @return ID of the class, or -1 if it is not in the snapshot
+     */
+    public int getId(String className) {
+        int low = 0;
+        int high = classCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = getClassName(middle).compareTo(className);
+            if (comparison == 0)
+                return middle;
+            if (comparison < 0)
+                low = middle + 1;
+            else
+                high = middle - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @param simpleName class name without package
+     * @return IDs of the classes with that simple name
+     */
+    public ArrayList<Integer> withSimpleName(String simpleName) {
+        // first position whose simple name is not less than the one searched for
+        int low = 0;
+        int high = classCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (simpleNameAt(middle).compareTo(simpleName) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        ArrayList<Integer> ids = new ArrayList<>();
+        for (int i = low; i < classCount && simpleNameAt(i).equals(simpleName); i++)
+            ids.add(bySimpleName.get(i));
+        return ids;
+    }
+
+    /**
+     * @param id class ID
+     * @return IDs of the classes the class references
+     */
+    public int[] getReferences(int id) {
+        return row(forwardOffsets, forwardEdges, id);
+    }
+
+    /**
+     * @param id class ID
+     * @return IDs of the classes that reference the class
+     */
+    public int[] getDependents(int id) {
+        return row(reverseOffsets, reverseEdges, id);
+    }
+
+    /**
+     * Breadth-first closure over the reverse edges, one level at a time. Each level is split into ranges of
+     * class IDs whose unvisited dependents are collected in separate bit sets; a union does not depend on the
+     * order the ranges finish in, so the closure equals {@link ClassDependencyGraph#getDependentClosure}.
+     *
+     * @param changedIds IDs of the changed classes
+     * @param maxDepth maximum number of references followed from a changed class; 0 for no limit
+     * @return for each class ID, the number of references followed from the nearest changed class: 0 for the
+     *         changed classes, -1 for the classes outside the closure
+     */
+    public int[] getDependentDepths(Iterable<Integer> changedIds, int maxDepth) {
+        int[] depths = new int[classCount];
+        Arrays.fill(depths, -1);
+        BitSet visited = new BitSet(classCount);
+        for (int id : changedIds) {
+            visited.set(id);
+            depths[id] = 0;
+        }
+        int[] level = toArray(visited);
+
+        for (int depth = 1; level.length > 0 && (maxDepth <= 0 || depth <= maxDepth); depth++) {
+            BitSet nextLevel = level.length < PARALLEL_THRESHOLD
+                    ? new ExpandLevel(this, level, 0, level.length, visited).compute()
+                    : pool().invoke(new ExpandLevel(this, level, 0, level.length, visited));
+            visited.or(nextLevel);
+            level = toArray(nextLevel);
+            for (int id : level)
+                depths[id] = depth;
+        }
+
+        return depths;
+    }
+
+    /**
+     * @param changedIds IDs of the changed classes
+     * @param maxDepth maximum number of references followed from a changed class; 0 for no limit
+     * @return IDs of the changed classes and the classes depending on them
+     */
+    public BitSet getDependentClosure(Iterable<Integer> changedIds, int maxDepth) {
+        int[] depths = getDependentDepths(changedIds, maxDepth);
+        BitSet closure = new BitSet(classCount);
+        for (int id = 0; id < depths.length; id++) {
+            if (depths[id] >= 0)
+                closure.set(id);
+        }
+        return closure;
+    }
+
+    /**
+     * Collects the dependents of part of a BFS level that are not visited yet. The visited set is only read
+     * while a level is expanded.
+     */
+    private static class ExpandLevel extends RecursiveTask<BitSet> {
+        private static final long serialVersionUID = 1L;
+
+        private final GraphSnapshot snapshot;
+        private final int[] level;
+        private final int from;
+        private final int to;
+        private final BitSet visited;
+
+        private ExpandLevel(GraphSnapshot snapshot, int[] level, int from, int to, BitSet visited) {
+            this.snapshot = snapshot;
+            this.level = level;
+            this.from = from;
+            this.to = to;
+            this.visited = visited;
+        }
+
+        @Override
+        protected BitSet compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                BitSet dependents = new BitSet(snapshot.classCount);
+                for (int i = from; i < to; i++) {
+                    for (int dependent : snapshot.getDependents(level[i])) {
+                        if (!visited.get(dependent))
+                            dependents.set(dependent);
+                    }
+                }
+                return dependents;
+            }
+
+            int middle = (from + to) >>> 1;
+            ExpandLevel second = new ExpandLevel(snapshot, level, middle, to, visited);
+            second.fork();
+            BitSet dependents = new ExpandLevel(snapshot, level, from, middle, visited).compute();
+            dependents.or(second.join());
+            return dependents;
+        }
+    }
+
+    /**
+     * @return the pool expanding large BFS levels, created on first use
+     */
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null)
+            pool = new ForkJoinPool();
+        return pool;
+    }
+
+    private static int[] toArray(BitSet bits) {
+        int[] ids = new int[bits.cardinality()];
+        int i = 0;
+        for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1))
+            ids[i++] = id;
+        return ids;
+    }
+
+    private String simpleNameAt(int position) {
+        return ClassDependencyGraph.simpleName(getClassName(bySimpleName.get(position)));
+    }
+
+    private static int[] row(IntBuffer offsets, IntBuffer edges, int id) {
+        int start = offsets.get(id);
+        int[] row = new int[offsets.get(id + 1) - start];
+        for (int i = 0; i < row.length; i++)
+            row[i] = edges.get(start + i);
+        return row;
+    }
+
+    private static IntBuffer ints(MappedByteBuffer buffer, int position, int count) {
+        return bytes(buffer, position, 4 * count).asIntBuffer();
+    }
+
+    private static ByteBuffer bytes(MappedByteBuffer buffer, int position, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.limit(position + length);
+        return duplicate.slice();
+    }
+}
@@ -0,0 +1,254 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.Extension;
+import hudson.FilePath;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Project;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.SCMListener;
+
+import hudson.scm.ChangeLogSet;
+import hudson.scm.SCM;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Starts the Understand dependency analysis of a build in the background as soon as the change log of its checkout
+ * is parsed, so the database rescan overlaps with compilation instead of adding to the test selection step. The
+ * build step awaits the result with a timeout, and runs the analysis itself if there is no result in time, once
+ * the background analysis and its program have stopped.
+ *
+ * The output of the background analysis is buffered and written to the build log when the step awaits it, so it
+ * is not interleaved with the output of the compilation.
+ */
+@Extension
+public class PreAnalysis extends SCMListener {
+
+    // analyses started at checkout, by build
+    private static final HashMap<String, Pending> PENDING = new HashMap<>();
+
+    // analysis programs running at once; further analyses wait, and the step runs its own if they wait too long
+    private static final int MAX_RUNNING = 2;
+
+    private static ExecutorService executor;
+
+    /**
+     * An analysis running in the background and the inputs it was started with
+     */
+    private static class Pending {
+        private final String key;
+        private final Future<ArrayList<String>> result;
+        private final ByteArrayOutputStream log;
+        // set when the analysis starts, or when it is stopped before it started
+        private final AtomicBoolean started;
+        // counted down when a started analysis has returned, with its program exited
+        private final CountDownLatch finished;
+
+        private Pending(String key,
+                        Future<ArrayList<String>> result,
+                        ByteArrayOutputStream log,
+                        AtomicBoolean started,
+                        CountDownLatch finished) {
+            this.key = key;
+            this.result = result;
+            this.log = log;
+            this.started = started;
+            this.finished = finished;
+        }
+
+        /**
+         * Cancels the analysis and waits until it has stopped, so the step can run the analysis on the same
+         * database without the background analysis still using it
+         */
+        private void stop() throws InterruptedException {
+            result.cancel(true);
+            if (!started.compareAndSet(false, true))
+                finished.await();
+        }
+    }
+
+    @Override
+    public void onChangeLogParsed(Run<?, ?> build, SCM scm, TaskListener listener, ChangeLogSet<?> changelog)
+            throws Exception {
+        if (!(build instanceof AbstractBuild) || !TestHistoryListener.usesTestSelector(build.getParent()))
+            return;
+
+        Project<?, ?> project = (Project<?, ?>) build.getParent();
+        TestCasePrioritizer prioritizer = project.getBuildersList().get(TestCasePrioritizer.class);
+        RegressionTestSelector selector = project.getBuildersList().get(RegressionTestSelector.class);
+
+        // the bytecode analyzer reads classes that are only compiled after the checkout
+        if (prioritizer != null && prioritizer.getUseDepAnalysis() && prioritizer.getPreAnalysisTimeout() > 0
+                && !BytecodeDependencyAnalysis.isBytecode(prioritizer.getDependencyAnalyzer())) {
+            start((AbstractBuild<?, ?>) build, changelog, prioritizer.getUdbPath(),
+                  prioritizer.getAnalysisServicePort(), prioritizer.getMaxDependencyDepth(), listener);
+        } else if (selector != null && selector.getUseDepAnalysis() && selector.getPreAnalysisTimeout() > 0
+                && !BytecodeDependencyAnalysis.isBytecode(selector.getDependencyAnalyzer())
+                && !selector.getMethodLevel()) {
+            start((AbstractBuild<?, ?>) build, changelog, selector.getUdbPath(),
+                  selector.getAnalysisServicePort(), selector.getMaxDependencyDepth(), listener);
+        }
+    }
+
+    /**
+     * Waits for the analysis started at checkout
+     *
+     * @param build The current build
+     * @param changedClasses qualified names of the changed classes the step would analyze
+     * @param udbPath path of the Understand database the step would analyze
+     * @param maxDepth maximum dependency depth the step would analyze with
+     * @param timeout seconds to wait for the analysis
+     * @param listener listener used for logging to Jenkins console output
+     * @return the dependent modules, or null if no analysis of the same inputs finished in time
+     */
+    public static ArrayList<String> await(Run<?, ?> build,
+                                          List<String> changedClasses,
+                                          String udbPath,
+                                          int maxDepth,
+                                          int timeout,
+                                          TaskListener listener)
+            throws InterruptedException {
+        Pending pending;
+        synchronized (PENDING) {
+            pending = PENDING.remove(build.getExternalizableId());
+        }
+        if (pending == null)
+            return null;
+
+        if (!pending.key.equals(key(changedClasses, udbPath, maxDepth))) {
+            listener.getLogger().println("Background dependency analysis was started for other changes");
+            pending.stop();
+            return null;
+        }
+
+        try {
+            ArrayList<String> dependentModules = pending.result.get(timeout, TimeUnit.SECONDS);
+            listener.getLogger().println("Using the dependency analysis started at checkout");
+            return dependentModules;
+        } catch (TimeoutException e) {
+            listener.getLogger().println("Background dependency analysis did not finish within " + timeout
+                    + " seconds; running the analysis now");
+            pending.stop();
+            return null;
+        } catch (ExecutionException e) {
+            listener.getLogger().println("Background dependency analysis failed: " + e.getCause().getMessage());
+            return null;
+        } finally {
+            byte[] log = pending.log.toByteArray();
+            listener.getLogger().write(log, 0, log.length);
+        }
+    }
+
+    /**
+     * Stops the analysis started at checkout of a build, if the build did not await it
+     *
+     * @param build A build
+     */
+    public static void discard(Run<?, ?> build) {
+        Pending pending;
+        synchronized (PENDING) {
+            pending = PENDING.remove(build.getExternalizableId());
+        }
+        if (pending != null)
+            pending.result.cancel(true);
+    }
+
+    private static void start(AbstractBuild<?, ?> build,
+                              ChangeLogSet<?> changelog,
+                              final String udbPath,
+                              final int analysisServicePort,
+                              final int maxDepth,
+                              TaskListener listener)
+            throws IOException, InterruptedException {
+        final FilePath workspace = build.getWorkspace();
+        if (workspace == null)
+            return;
+
+        ArrayList<String> changedPaths = new ArrayList<>();
+        for (ChangeLogSet.Entry entry : changelog) {
+            if (entry.getAffectedPaths() != null)
+                changedPaths.addAll(entry.getAffectedPaths());
+        }
+        final ArrayList<String> changedClasses = ClassNames.fromSourcePaths(workspace, changedPaths);
+        if (changedClasses.isEmpty())
+            return;
+
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        final TaskListener logListener = new StreamTaskListener(log, Charsets.UTF_8);
+        final AtomicBoolean started = new AtomicBoolean();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        // the analysis program gets a handoff file of its own, see DependencyAnalysisProgram, and is destroyed
+        // when the analysis is cancelled
+        Future<ArrayList<String>> result = executor().submit(new Callable<ArrayList<String>>() {
+            public ArrayList<String> call() throws IOException, InterruptedException {
+                if (!started.compareAndSet(false, true))
+                    return null;
+                try {
+                    // ask the long-lived analysis service first; run the analysis program if it is not available
+                    ArrayList<String> dependentModules = analysisServicePort > 0
+                            ? DependencyAnalysisClient.getDependentModules(workspace, analysisServicePort,
+                                    changedClasses, maxDepth, logListener)
+                            : null;
+                    if (dependentModules == null)
+                        dependentModules = DependencyAnalysisProgram.run(workspace,
+                                DependencyAnalysisProgram.CLASS_LEVEL, udbPath, changedClasses, maxDepth,
+                                logListener);
+                    return dependentModules;
+                } finally {
+                    finished.countDown();
+                }
+            }
+        });
+
+        Pending previous;
+        synchronized (PENDING) {
+            previous = PENDING.put(build.getExternalizableId(),
+                    new Pending(key(changedClasses, udbPath, maxDepth), result, log, started, finished));
+        }
+        // a checkout repeated within the build replaces the analysis of the earlier one
+        if (previous != null)
+            previous.stop();
+        listener.getLogger().println("Started dependency analysis of " + changedClasses.size()
+                + " changed classes in the background");
+    }
+
+    /**
+     * @return a key of the inputs of an analysis
+     */
+    private static String key(List<String> changedClasses, String udbPath, int maxDepth) {
+        return changedClasses + "\t" + udbPath + "\t" + maxDepth;
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_RUNNING, MAX_RUNNING, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "Dependency pre-analysis"));
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+}
@@ -1,7 +1,5 @@
 package org.jenkinsci.plugins.automatedTestSelector;
 
-import com.google.common.collect.ImmutableSet;
-
 import hudson.AbortException;
 import hudson.Launcher;
 import hudson.Extension;
@@ -13,19 +11,26 @@ import hudson.scm.ChangeLogSet.Entry;
 
 import hudson.tasks.Builder;
 import hudson.tasks.BuildStepDescriptor;
-import hudson.tasks.junit.ClassResult;
-import hudson.tasks.test.AbstractTestResultAction;
-import hudson.tasks.test.TabulatedResult;
-import hudson.tasks.test.TestResult;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.StreamTaskListener;
 
 import org.apache.commons.io.Charsets;
+
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
 import javax.servlet.ServletException;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Taylor Ecton
@@ -33,12 +38,8 @@ import java.util.ArrayList;
 
 public class RegressionTestSelector extends Builder {
 
-    private static final ImmutableSet<Result> RESULTS_TO_CONSIDER = ImmutableSet.of(Result.SUCCESS, Result.UNSTABLE, Result.FAILURE);
-    private static final String ANNOTATION_START_1 = "@SuiteClasses({";
-    private static final String ANNOTATION_START_2 = "@Suite.SuiteClasses({";
-    private static final String ANNOTATION_END = "})";
-
-    private static final String HANDOFF_FILE = "handoff.txt";
+    // lower bound on predicted test durations in seconds; keeps very fast tests from dividing by zero
+    private static final double MIN_DURATION = 0.001;
 
     private final int failureWindow;
     private final int executionWindow;
@@ -49,13 +50,55 @@ public class RegressionTestSelector extends Builder {
     private final boolean useDepAnalysis;
     private final String udbPath;
 
+    private final int historyLoadThreads;
+
+    private final int timeBudget;
+
+    private final int shardCount;
+
+    private final String outputFormat;
+
+    private final String outputFile;
+
+    private final int analysisServicePort;
+
+    private final String dependencyAnalyzer;
+
+    private final String classDirs;
+
+    private final int maxDependencyDepth;
+
+    private final boolean methodLevel;
+
+    // seconds to wait for the dependency analysis started at checkout; 0 disables it
+    private final int preAnalysisTimeout;
+
+    // seconds the dependency analysis may take before a cheaper tier is used; 0 always waits for the full analysis
+    private final int analysisLatencyBudget;
+
+    // selects tests that failed unusually often in builds changing the same files
+    private final boolean useChangeHistory;
+
     @DataBoundConstructor
     public RegressionTestSelector(int failureWindow,
                                   int executionWindow,
                                   String testReportDir,
                                   String testSuiteFile,
                                   boolean useDepAnalysis,
-                                  String udbPath) {
+                                  String udbPath,
+                                  int historyLoadThreads,
+                                  int timeBudget,
+                                  int shardCount,
+                                  String outputFormat,
+                                  String outputFile,
+                                  int analysisServicePort,
+                                  String dependencyAnalyzer,
+                                  String classDirs,
+                                  int maxDependencyDepth,
+                                  boolean methodLevel,
+                                  int preAnalysisTimeout,
+                                  int analysisLatencyBudget,
+                                  boolean useChangeHistory) {
         this.executionWindow = executionWindow;
         this.failureWindow = failureWindow;
 
@@ -64,6 +107,32 @@ public class RegressionTestSelector extends Builder {
 
         this.useDepAnalysis = useDepAnalysis;
         this.udbPath = udbPath;
+
+        this.historyLoadThreads = historyLoadThreads;
+
+        this.timeBudget = timeBudget;
+
+        this.shardCount = shardCount;
+
+        this.outputFormat = outputFormat;
+
+        this.outputFile = outputFile;
+
+        this.analysisServicePort = analysisServicePort;
+
+        this.dependencyAnalyzer = dependencyAnalyzer;
+
+        this.classDirs = classDirs;
+
+        this.maxDependencyDepth = maxDependencyDepth;
+
+        this.methodLevel = methodLevel;
+
+        this.preAnalysisTimeout = preAnalysisTimeout;
+
+        this.analysisLatencyBudget = analysisLatencyBudget;
+
+        this.useChangeHistory = useChangeHistory;
     }
 
     /**
@@ -93,6 +162,58 @@ public class RegressionTestSelector extends Builder {
         return udbPath;
     }
 
+    public int getHistoryLoadThreads() {
+        return historyLoadThreads;
+    }
+
+    public int getTimeBudget() {
+        return timeBudget;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    public String getOutputFile() {
+        return outputFile;
+    }
+
+    public int getAnalysisServicePort() {
+        return analysisServicePort;
+    }
+
+    public String getDependencyAnalyzer() {
+        return dependencyAnalyzer;
+    }
+
+    public String getClassDirs() {
+        return classDirs;
+    }
+
+    public int getMaxDependencyDepth() {
+        return maxDependencyDepth;
+    }
+
+    public boolean getMethodLevel() {
+        return methodLevel;
+    }
+
+    public int getPreAnalysisTimeout() {
+        return preAnalysisTimeout;
+    }
+
+    public int getAnalysisLatencyBudget() {
+        return analysisLatencyBudget;
+    }
+
+    public boolean getUseChangeHistory() {
+        return useChangeHistory;
+    }
+
     /**
      * main function of the regression test selector
      */
@@ -102,6 +223,13 @@ public class RegressionTestSelector extends Builder {
         listener.getLogger().println("Running regression test selector...");
         listener.getLogger().println("Failure window is set to: " + failureWindow);
         listener.getLogger().println("Execution window is set to: " + executionWindow);
+        listener.getLogger().println("History load threads is set to: " + historyLoadThreads);
+        if (timeBudget > 0) listener.getLogger().println("Time budget is set to: " + timeBudget + " seconds");
+        if (shardCount > 1) listener.getLogger().println("Shard count is set to: " + shardCount);
+        if (!TestOutput.isSuite(outputFormat)) listener.getLogger().println("Writing " + outputFormat + " output to: " + outputFile);
+        if (methodLevel) listener.getLogger().println("Method-level dependency analysis is enabled");
+        if (analysisLatencyBudget > 0) listener.getLogger().println("Analysis latency budget is set to: " + analysisLatencyBudget + " seconds");
+        if (useChangeHistory) listener.getLogger().println("Selecting tests by change history");
 
         FilePath workspace = build.getWorkspace();
         if (workspace == null)
@@ -112,15 +240,54 @@ public class RegressionTestSelector extends Builder {
 
         ArrayList<String> linesForFile = new ArrayList<>();
         ArrayList<String> allTests = getAllTests(workspace, linesForFile);
-        ArrayList<String> selectedTests = selectTests(build, listener, allTests);
-
-        if (useDepAnalysis) {
-            selectedTests = doDependencyAnalysis(build, listener, selectedTests);
+        ArrayList<String> selectedTests;
+        // test methods to run of the selected tests, from method-level analysis; other tests run as a whole
+        HashMap<String, ArrayList<String>> testMethods = new HashMap<>();
+
+        if (timeBudget > 0) {
+            // with a budget every test is a candidate; relevance to the changes only adds to its value
+            ArrayList<String> relevantTests = new ArrayList<>();
+            if (useDepAnalysis)
+                relevantTests = doDependencyAnalysis(build, launcher, listener, allTests, linesForFile,
+                                                     testMethods);
+            if (useChangeHistory)
+                addChangeHistoryTests(build, listener, allTests, linesForFile, relevantTests, testMethods);
+            selectedTests = selectWithinBudget(build, listener, allTests, linesForFile, relevantTests);
+        } else {
+            selectedTests = selectTests(build, listener, allTests, linesForFile);
+
+            if (useDepAnalysis) {
+                selectedTests = doDependencyAnalysis(build, launcher, listener, selectedTests, linesForFile,
+                                                     testMethods);
+            }
+            if (useChangeHistory)
+                addChangeHistoryTests(build, listener, allTests, linesForFile, selectedTests, testMethods);
         }
 
         listener.getLogger().println(selectedTests.size() + " out of " + allTests.size() + " selected for execution");
-
-        buildTestSuiteFile(workspace, selectedTests, linesForFile);
+        if (!testMethods.isEmpty() && TestOutput.isSuite(outputFormat))
+            listener.getLogger().println("The test suite file lists whole classes; selected test methods are not written");
+
+        writeTests(workspace, selectedTests, testMethods, linesForFile, 0);
+
+        // write one suite per parallel executor
+        if (shardCount > 1) {
+            HashMap<String, Integer> testIds = TestIdTable.forJob(build.getParent())
+                    .getSuiteIds(linesForFile, selectedTests);
+            TestHistoryWindow history = TestHistoryIndex.forJob(build.getParent())
+                    .getWindow(build, executionWindow, historyLoadThreads);
+            double[] durations = history.predictDurations(testIds, selectedTests);
+
+            double[] shardDurations = new double[shardCount];
+            ArrayList<ArrayList<String>> shards =
+                    TestShards.partition(selectedTests, durations, shardCount, shardDurations);
+
+            for (int shard = 1; shard <= shardCount; shard++) {
+                String shardFile = writeTests(workspace, shards.get(shard - 1), testMethods, linesForFile, shard);
+                listener.getLogger().println(shardFile + ": " + shards.get(shard - 1).size()
+                        + " tests, predicted duration " + shardDurations[shard - 1] + " seconds");
+            }
+        }
 
         return true;
     }
@@ -130,13 +297,19 @@ public class RegressionTestSelector extends Builder {
      * changes made in version control
      *
      * @param build The current build
+     * @param launcher Launcher used for running git for method-level analysis
      * @param listener BuildListener used for logging to Jenkins console output
      * @param selectedTests list of tests selected for execution
+     * @param linesForFile lines of the test suite file, part of the key of cached analysis results
+     * @param testMethods receives the test methods of the relevant tests found by method-level analysis
      * @return List of tests within selected tests that are relevant to the current code changes
      */
     private ArrayList<String> doDependencyAnalysis(AbstractBuild<?,?> build,
+                                                   Launcher launcher,
                                                    BuildListener listener,
-                                                   ArrayList<String> selectedTests)
+                                                   ArrayList<String> selectedTests,
+                                                   ArrayList<String> linesForFile,
+                                                   HashMap<String, ArrayList<String>> testMethods)
             throws IOException, InterruptedException {
         // ------------ DEPENDENCY ANALYSIS CLASS MOVED TO STAND-ALONE PROGRAM -----------------------------
         // ------------ due to bug that has not yet been resolved... ---------------------------------------
@@ -145,7 +318,6 @@ public class RegressionTestSelector extends Builder {
         ArrayList<String> relevantTests = new ArrayList<>();
         ArrayList<String> allChangedFiles = new ArrayList<>();
         ArrayList<String> changedSourceFiles = new ArrayList<>();
-        ArrayList<String> dependentModules = new ArrayList<>();
 
         listener.getLogger().println("**----------------------------------**"); // <-- for debugging
         listener.getLogger().println("Running dependency analysis code..."); // <-- for debugging
@@ -158,32 +330,29 @@ public class RegressionTestSelector extends Builder {
         if (!allChangedFiles.isEmpty()) {
             listener.getLogger().println("-------------------------------"); // <-- for debugging
             listener.getLogger().println("All changed files: "); // <-- for debugging
-            for (String file : allChangedFiles) {
+            for (String file : allChangedFiles)
                 listener.getLogger().println(file); // <-- for debugging
-                if (file.contains(".java")) {
-                    String[] pathComponents = file.split("/");
-                    file = pathComponents[pathComponents.length - 1];
-                    file = file.replace(".java", "");
-                    changedSourceFiles.add(file);
-                }
-            }
             listener.getLogger().println("-------------------------------"); // <-- for debugging
 
+            // package-qualified, so classes sharing a simple name in other packages are not taken as changed
+            FilePath workspace = build.getWorkspace();
+            if (workspace == null)
+                throw new AbortException("No workspace");
+            changedSourceFiles.addAll(ClassNames.fromSourcePaths(workspace, allChangedFiles));
+
             if (!changedSourceFiles.isEmpty()) {
                 // --------------- DEPENDENCY ANALYSIS CLASS MOVED TO STAND-ALONE PROGRAM -------
                 // --------------- due to issue opening Understand database more than once ------
                 // dependentModules = dependencyAnalysis.getDependentModules(changedSourceFiles);
 
-                runDependencyAnalysisJava(build, listener, changedSourceFiles, dependentModules);
+                ArrayList<String> analysisTests = analysisLatencyBudget > 0
+                        ? doTieredAnalysis(build, launcher, listener, workspace, allChangedFiles,
+                                           changedSourceFiles, linesForFile)
+                        : getAnalysisTestsLocked(build, launcher, listener, workspace, allChangedFiles,
+                                                 changedSourceFiles, linesForFile);
 
-                listener.getLogger().println("All dependent files: "); // <-- for debugging
-                for (String file : dependentModules) {
-                    listener.getLogger().println(file);
-                    file += ".class";
-                    if (selectedTests.contains(file)) {
-                        relevantTests.add(file);
-                    }
-                }
+                relevantTests = relevantAnalysisTests(analysisTests, selectedTests,
+                        ClassNames.testsByClassName(linesForFile, selectedTests), testMethods);
             } else {
                 listener.getLogger().println("No changed source code files. Utilizing all tests for prioritization.");
                 relevantTests = selectedTests;
@@ -200,91 +369,324 @@ public class RegressionTestSelector extends Builder {
         return relevantTests;
     }
 
-    private void runDependencyAnalysisJava(AbstractBuild<?,?> build,
-                                           BuildListener listener,
-                                           ArrayList<String> changedSourceFiles,
-                                           ArrayList<String> dependentModules)
+    /**
+     * Runs dependency analysis of the changes, unless the same changes were analyzed before
+     *
+     * @param build The current build
+     * @param launcher Launcher used for running git for method-level analysis
+     * @param listener listener used for logging to Jenkins console output
+     * @param workspace FilePath of build workspace
+     * @param allChangedFiles paths changed in version control
+     * @param changedSourceFiles qualified names of the changed classes
+     * @param linesForFile lines of the test suite file, part of the key of cached analysis results
+     * @return the tests found by the analysis: "TestClass#method" for a test method found by method-level
+     *         analysis, or a class name for a whole class
+     */
+    private ArrayList<String> getAnalysisTests(AbstractBuild<?,?> build,
+                                               Launcher launcher,
+                                               TaskListener listener,
+                                               FilePath workspace,
+                                               ArrayList<String> allChangedFiles,
+                                               ArrayList<String> changedSourceFiles,
+                                               ArrayList<String> linesForFile)
             throws IOException, InterruptedException {
+        ArrayList<String> dependentModules = new ArrayList<>();
 
-        // wokspacePath is the absolute path of the build workspace for this Jenkins job
-        String workspacePath;
-        try {
-            workspacePath = build.getWorkspace().getRemote();
-        } catch (NullPointerException e) {
-            throw new AbortException("getRemote returned null");
+        // rebuilds and retries of the same changes reuse the result of the first analysis; without a version of
+        // the analyzed code there is nothing to tell a rebuild from new code with the same change set
+        SelectionCache selectionCache = SelectionCache.forJob(build.getParent());
+        String graphVersion = graphVersion(build, listener);
+        ArrayList<String> analysisTests = graphVersion == null ? null : selectionCache.get(
+                SelectionCache.fingerprint(allChangedFiles, graphVersion, linesForFile,
+                                           analysisConfiguration(build, listener)));
+
+        if (analysisTests != null) {
+            listener.getLogger().println("Using cached dependency analysis of the same changes");
+            PreAnalysis.discard(build);
+        } else {
+            ArrayList<String> methodLevelTests =
+                    methodLevel && !BytecodeDependencyAnalysis.isBytecode(dependencyAnalyzer)
+                    ? doMethodLevelAnalysis(build, launcher, listener) : null;
+
+            if (methodLevelTests != null) {
+                analysisTests = methodLevelTests;
+            } else {
+                if (BytecodeDependencyAnalysis.isBytecode(dependencyAnalyzer)) {
+                    // read the references between the compiled classes; no external analyzer needed
+                    dependentModules.addAll(BytecodeDependencyAnalysis.getDependentModules(
+                            workspace, classDirs, changedSourceFiles, maxDependencyDepth));
+                } else {
+                    // use the analysis started at checkout if it finishes in time; otherwise ask the long-lived
+                    // analysis service, and run the analysis program if it is not available
+                    ArrayList<String> analyzedModules = preAnalysisTimeout > 0
+                            ? PreAnalysis.await(build, changedSourceFiles, udbPath, maxDependencyDepth,
+                                                preAnalysisTimeout, listener)
+                            : null;
+                    if (analyzedModules == null && analysisServicePort > 0)
+                        analyzedModules = DependencyAnalysisClient.getDependentModules(workspace, analysisServicePort,
+                                changedSourceFiles, maxDependencyDepth, listener);
+                    if (analyzedModules == null)
+                        analyzedModules = DependencyAnalysisProgram.run(workspace,
+                                DependencyAnalysisProgram.CLASS_LEVEL, udbPath, changedSourceFiles,
+                                maxDependencyDepth, listener);
+                    // a failed analysis finds nothing, so every selected test runs and nothing is cached
+                    if (analyzedModules != null)
+                        dependentModules.addAll(analyzedModules);
+                }
+
+                listener.getLogger().println("All dependent files: "); // <-- for debugging
+                for (String file : dependentModules)
+                    listener.getLogger().println(file);
+                // dependent test classes run as a whole
+                analysisTests = dependentModules;
+            }
+
+            // an empty result is more likely a failed analysis than unrelated changes; don't keep it. The
+            // snapshot may have been updated by the analysis, so the result is kept under the version it used
+            graphVersion = graphVersion(build, listener);
+            if (!analysisTests.isEmpty() && graphVersion != null)
+                selectionCache.put(SelectionCache.fingerprint(allChangedFiles, graphVersion, linesForFile,
+                                                              analysisConfiguration(build, listener)),
+                                   analysisTests);
         }
-        // concatenate workspacePath and HANDOFF_FILE to get path of handoff file
-        String handoffPath = workspacePath + "/" + HANDOFF_FILE;
 
-        // listener.getLogger().println("handoffpath = " + handoffPath); // <-- for debugging
+        return analysisTests;
+    }
 
-        // create the handoff file; if there is an old one, delete it first
+    /**
+     * Runs getAnalysisTests while holding the lock of the workspace, so it does not run at the same time as a full
+     * analysis left running by an earlier build, and a later build does not check out its changes while it runs
+     */
+    private ArrayList<String> getAnalysisTestsLocked(AbstractBuild<?,?> build,
+                                                     Launcher launcher,
+                                                     TaskListener listener,
+                                                     FilePath workspace,
+                                                     ArrayList<String> allChangedFiles,
+                                                     ArrayList<String> changedSourceFiles,
+                                                     ArrayList<String> linesForFile)
+            throws IOException, InterruptedException {
+        ReentrantLock workspaceLock = TieredSelection.workspaceLock(workspace);
+        workspaceLock.lockInterruptibly();
         try {
-            File file = new File(handoffPath);
-            if (file.exists()) {
+            return getAnalysisTests(build, launcher, listener, workspace, allChangedFiles, changedSourceFiles,
+                                    linesForFile);
+        } finally {
+            workspaceLock.unlock();
+        }
+    }
 
-                listener.getLogger().println("Deleting old handoff file..."); // <-- for debugging
+    /**
+     * Picks the most precise tier of dependency analysis that finishes within analysisLatencyBudget; see
+     * {@link TieredSelection}
+     *
+     * @param build The current build
+     * @param launcher Launcher used for running git for method-level analysis
+     * @param listener BuildListener used for logging to Jenkins console output
+     * @param workspace FilePath of build workspace
+     * @param allChangedFiles paths changed in version control
+     * @param changedSourceFiles qualified names of the changed classes
+     * @param linesForFile lines of the test suite file, part of the key of cached analysis results
+     * @return the tests found by the tier used
+     */
+    private ArrayList<String> doTieredAnalysis(final AbstractBuild<?,?> build,
+                                               final Launcher launcher,
+                                               BuildListener listener,
+                                               final FilePath workspace,
+                                               final ArrayList<String> allChangedFiles,
+                                               final ArrayList<String> changedSourceFiles,
+                                               final ArrayList<String> linesForFile)
+            throws IOException, InterruptedException {
+        long startTime = System.currentTimeMillis();
+        long deadline = startTime + analysisLatencyBudget * 1000L;
+
+        // tier 2 may go on after the step, so its output is only written to the build log if it is used
+        ByteArrayOutputStream fullLog = new ByteArrayOutputStream();
+        final TaskListener fullListener = new StreamTaskListener(fullLog, Charsets.UTF_8);
+        Future<ArrayList<String>> fullTier = TieredSelection.submit(new Callable<ArrayList<String>>() {
+            public ArrayList<String> call() throws IOException, InterruptedException {
+                return getAnalysisTestsLocked(build, launcher, fullListener, workspace, allChangedFiles,
+                                              changedSourceFiles, linesForFile);
+            }
+        });
 
-                if (file.delete()) listener.getLogger().println("File deleted.");
+        Future<ArrayList<String>> snapshotTier = null;
+        int tier = TieredSelection.NAMING;
+        ArrayList<String> analysisTests;
+        try {
+            if (BytecodeDependencyAnalysis.isBytecode(dependencyAnalyzer)) {
+                snapshotTier = TieredSelection.submit(new Callable<ArrayList<String>>() {
+                    public ArrayList<String> call() throws IOException, InterruptedException {
+                        return BytecodeDependencyAnalysis.getCachedDependentModules(workspace, changedSourceFiles,
+                                                                                    maxDependencyDepth);
+                    }
+                });
             }
 
-            OutputStream outputStream = new FileOutputStream(handoffPath);
-            OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream, Charsets.UTF_8);
-            PrintWriter printWriter = new PrintWriter(outputStreamWriter);
+            analysisTests = TieredSelection.namingTier(changedSourceFiles, CoChangeMap.forJob(build.getParent()));
 
-            listener.getLogger().println("Writing new handoff file..."); // <-- for debugging
+            ArrayList<String> fullTests = TieredSelection.await(fullTier, deadline, listener);
+            ArrayList<String> snapshotTests = fullTests == null && snapshotTier != null
+                    ? TieredSelection.await(snapshotTier, deadline, listener) : null;
+
+            if (fullTests != null) {
+                tier = TieredSelection.FULL;
+                analysisTests = fullTests;
+                byte[] log = fullLog.toByteArray();
+                listener.getLogger().write(log, 0, log.length);
+            } else if (snapshotTests != null) {
+                tier = TieredSelection.SNAPSHOT;
+                analysisTests = snapshotTests;
+            }
+        } finally {
+            // tier 2 goes on, holding the lock of the workspace, and caches its result for later builds of the
+            // same changes; tier 1 is of no use after the step
+            if (!fullTier.isDone())
+                TieredSelection.detach(build.getParent().getFullName(), fullTier);
+            if (snapshotTier != null)
+                TieredSelection.stop(snapshotTier);
+        }
 
-            // write each changed source file to the handoff file
-            for (String sourceFile : changedSourceFiles)
-                printWriter.println(sourceFile);
+        listener.getLogger().println("Selected tests by " + TieredSelection.describe(tier) + " in "
+                + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+        if (tier != TieredSelection.FULL)
+            listener.getLogger().println("The full dependency analysis did not finish in time; it goes on in the "
+                                         + "background and caches its result for later builds of the same changes");
+        return analysisTests;
+    }
 
-            printWriter.close();
-        } catch (IOException exception) {
-            listener.getLogger().println(exception.getMessage());
+    /**
+     * Finds the test methods that reach the methods changed since the previous Git commit
+     *
+     * @param build The current build
+     * @param launcher Launcher used for running git
+     * @param listener listener used for logging to Jenkins console output
+     * @return the tests, "TestClass#method" or "TestClass" for a whole class, or null if the changed lines
+     *         could not be determined or the analysis failed
+     */
+    private ArrayList<String> doMethodLevelAnalysis(AbstractBuild<?,?> build,
+                                                    Launcher launcher,
+                                                    TaskListener listener)
+            throws IOException, InterruptedException {
+        ArrayList<String> changedLines = ChangedLines.fromGit(build, launcher, listener);
+        if (changedLines == null) {
+            listener.getLogger().println("Falling back to class-level dependency analysis");
+            return null;
         }
 
-        // command is the shell command to run DependencyAnalysis program
-        String command = "java DependencyAnalysis " + udbPath + " " + workspacePath + " " + handoffPath;
+        FilePath workspace = build.getWorkspace();
+        if (workspace == null)
+            throw new AbortException("No workspace");
+        ArrayList<String> tests = DependencyAnalysisProgram.run(workspace, DependencyAnalysisProgram.METHOD_LEVEL,
+                                                                udbPath, changedLines, maxDependencyDepth, listener);
+        if (tests == null)
+            listener.getLogger().println("Falling back to class-level dependency analysis");
+        return tests;
+    }
 
-        // listener.getLogger().println("command = " + command); // <-- for debugging
+    /**
+     * @return the version of the code the analysis runs on: the built commit, or for the bytecode analyzer without
+     *         Git the version of the snapshot as it was last written; null if there is neither, e.g. for Understand
+     *         without Git, since the database is updated by the analysis itself
+     */
+    private String graphVersion(AbstractBuild<?,?> build, TaskListener listener)
+            throws IOException, InterruptedException {
+        String commit = build.getEnvironment(listener).get("GIT_COMMIT");
+        if (commit != null)
+            return "commit " + commit;
 
-        // run command using exec; output is redirected to listener.getLogger() for viewing in Jenkins
-        Process dependencyAnalysis = Runtime.getRuntime().exec(command);
-        String output;
-        BufferedReader depAnalysisReader = new BufferedReader(
-                new InputStreamReader(dependencyAnalysis.getInputStream(), Charsets.UTF_8) );
-        while ((output = depAnalysisReader.readLine()) != null) {
-            listener.getLogger().println(output);
+        FilePath workspace = build.getWorkspace();
+        if (workspace == null)
+            throw new AbortException("No workspace");
+        if (BytecodeDependencyAnalysis.isBytecode(dependencyAnalyzer)) {
+            long version = BytecodeDependencyAnalysis.getSnapshotVersion(workspace);
+            return version < 0 ? null : "snapshot " + version;
         }
-        depAnalysisReader.close();
+        return null;
+    }
 
-        // make sure dependencyAnalysis process terminates before proceeding
-        dependencyAnalysis.waitFor();
+    /**
+     * @return the settings that change the result of the analysis for the same changes and graph
+     */
+    private String analysisConfiguration(AbstractBuild<?,?> build, TaskListener listener)
+            throws IOException, InterruptedException {
+        String configuration = dependencyAnalyzer + " " + udbPath + " " + classDirs + " " + maxDependencyDepth;
+        // method-level analysis diffs against the previous commit rather than using the change set
+        if (methodLevel)
+            configuration += " methods " + build.getEnvironment(listener).get("GIT_PREVIOUS_COMMIT");
+        return configuration;
+    }
 
-        // try to read information from the handoff file; should now contain information from
-        // dependency analysis program
-        try {
-            InputStream inputStream;
-            try {
-                inputStream = build.getWorkspace().child(HANDOFF_FILE).read();
-            } catch (NullPointerException e) {
-                throw new AbortException("inputStream is null");
+    /**
+     * @param analysisTests tests found by dependency analysis: "TestClass#method" for a test method found by
+     *                      method-level analysis, or the name of a class that runs as a whole
+     * @param selectedTests list of tests selected for execution
+     * @param testsByClassName selected tests by class name, see ClassNames.testsByClassName
+     * @param testMethods receives the test methods of each relevant test that does not have to run as a whole
+     * @return List of tests within selected tests that are relevant to the current code changes
+     */
+    private static ArrayList<String> relevantAnalysisTests(ArrayList<String> analysisTests,
+                                                           ArrayList<String> selectedTests,
+                                                           HashMap<String, String> testsByClassName,
+                                                           HashMap<String, ArrayList<String>> testMethods) {
+        ArrayList<String> relevantTests = new ArrayList<>();
+        HashSet<String> wholeClasses = new HashSet<>();
+
+        for (String test : analysisTests) {
+            int separator = test.indexOf('#');
+            String testClass = testsByClassName.get(separator < 0 ? test : test.substring(0, separator));
+            if (testClass == null || !selectedTests.contains(testClass))
+                continue;
+            if (!relevantTests.contains(testClass))
+                relevantTests.add(testClass);
+
+            if (separator < 0) {
+                wholeClasses.add(testClass);
+            } else {
+                if (!testMethods.containsKey(testClass))
+                    testMethods.put(testClass, new ArrayList<String>());
+                testMethods.get(testClass).add(test.substring(separator + 1));
             }
-            InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charsets.UTF_8);
-            BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
+        }
 
-            String line;
-            while((line = bufferedReader.readLine()) != null)
-                dependentModules.add(line);
+        for (String testClass : wholeClasses)
+            testMethods.remove(testClass);
 
-            bufferedReader.close();
-            inputStreamReader.close();
-            inputStream.close();
-        } catch (IOException exception) {
-            listener.getLogger().println(exception.getMessage());
-        }
+        return relevantTests;
     }
 
+    /**
+     * Adds the tests that failed unusually often in earlier builds changing the files changed in this build;
+     * see {@link ChangeFailureLift}
+     *
+     * @param build The current build
+     * @param listener listener used for logging to Jenkins console output
+     * @param tests List of all tests found in test suite file
+     * @param linesForFile lines of the test suite file, used to resolve the package of each test
+     * @param selectedTests receives the tests not selected yet
+     * @param testMethods test methods of the selected tests; the added tests run as a whole
+     */
+    private static void addChangeHistoryTests(Run<?, ?> build,
+                                              TaskListener listener,
+                                              ArrayList<String> tests,
+                                              ArrayList<String> linesForFile,
+                                              ArrayList<String> selectedTests,
+                                              HashMap<String, ArrayList<String>> testMethods)
+            throws IOException {
+        HashMap<String, Integer> testIds = TestIdTable.forJob(build.getParent()).getSuiteIds(linesForFile, tests);
+        BitSet associatedTests = ChangeFailureLift.forJob(build.getParent())
+                .getAssociatedTests(ChangeFailureLift.changedFiles(build));
+
+        for (String test : tests) {
+            int id = testIds.get(test);
+            if (id < 0 || !associatedTests.get(id))
+                continue;
+
+            listener.getLogger().println(test + " failed in earlier builds changing the same files"); // <-- for debugging
+            testMethods.remove(test);
+            if (!selectedTests.contains(test))
+                selectedTests.add(test);
+        }
+    }
 
     /**
      * Gets all tests from the test suite file
@@ -296,30 +698,7 @@ public class RegressionTestSelector extends Builder {
     private ArrayList<String> getAllTests(FilePath workspace, ArrayList<String> linesForFile)
             throws IOException, InterruptedException {
 
-        ArrayList<String> allTests = new ArrayList<>();
-
-        // try to read the file, read in all of the test names and add them to the list
-        try (InputStream inputStream = workspace.child(testSuiteFile).read();
-             InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charsets.UTF_8);
-             BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                linesForFile.add(line);
-                if (line.trim().equals(ANNOTATION_START_1) || line.trim().equals(ANNOTATION_START_2)) {
-                    line = bufferedReader.readLine();
-                    while (line != null && !line.trim().equals(ANNOTATION_END)) {
-                        line = line.trim();
-                        if (line.contains(","))
-                            line = line.replace(",", "");
-                        allTests.add(line);
-                        line = bufferedReader.readLine();
-                    }
-                }
-            }
-            bufferedReader.close();
-        }
-
-        return allTests;
+        return TestSuiteFile.read(workspace, testSuiteFile, linesForFile);
     }
 
     /**
@@ -328,120 +707,185 @@ public class RegressionTestSelector extends Builder {
      * @param build Current build
      * @param listener BuildListener used for logging to Jenkins console output
      * @param tests List of all tests found in test suite file
+     * @param linesForFile lines of the test suite file, used to resolve the package of each test
      *
      * @return List of tests selected for execution
      */
-    private ArrayList<String> selectTests(Run<?, ?> build, TaskListener listener, ArrayList<String> tests) {
+    private ArrayList<String> selectTests(Run<?, ?> build,
+                                          TaskListener listener,
+                                          ArrayList<String> tests,
+                                          ArrayList<String> linesForFile)
+            throws IOException, InterruptedException {
         ArrayList<String> selectedTests = new ArrayList<>();
-        ArrayList<String> foundTests = new ArrayList<>();
+        HashSet<String> selectedNames = new HashSet<>();
 
-        // continue iterating until i reaches failureWindow or executionWindow, whichever is larger
-        for (int i = 0; i < this.getFailureWindow() || i < this.getExecutionWindow(); i++) {
-            build = build.getPreviousBuild();
+        // read the previous builds within failureWindow or executionWindow, whichever is larger
+        HashMap<String, Integer> testIds = TestIdTable.forJob(build.getParent()).getSuiteIds(linesForFile, tests);
+        TestHistoryIndex historyIndex = TestHistoryIndex.forJob(build.getParent());
+        TestHistoryWindow history = historyIndex.getWindow(build,
+                Math.max(this.getFailureWindow(), this.getExecutionWindow()), this.getHistoryLoadThreads());
 
-            if (build == null) break;
-            if (!RESULTS_TO_CONSIDER.contains(build.getResult())) continue; // build failed = no test results
+        // IDs of the tests executed within the execution window and failed within the failure window
+        BitSet foundTests = history.executedWithin(this.getExecutionWindow());
+        BitSet failedTests = history.failedWithin(this.getFailureWindow());
 
-            AbstractTestResultAction testResultAction = build.getAction(AbstractTestResultAction.class);
-            if (testResultAction == null) continue;
+        // failing tests within failure window should be selected, by their name in the suite file
+        for (String test : tests) {
+            int id = testIds.get(test);
+            if (id >= 0 && failedTests.get(id) && selectedNames.add(test))
+                selectedTests.add(test);
+        }
 
-            Object object = testResultAction.getResult();
-            if (object instanceof TestResult) {
-                TestResult result = (TestResult) object;
-                ArrayList<String> testsFailedThisBuild = new ArrayList<>();
+        // tests not found have not been executed within execution window and should be selected; don't add duplicates
+        for (String test : tests) {
+            int id = testIds.get(test);
+            if ((id < 0 || !foundTests.get(id)) && selectedNames.add(test))
+                selectedTests.add(test);
+        }
 
-                Boolean withinExecutionWindow = i < this.getExecutionWindow();
-                Boolean withinFailureWindow = i < this.getFailureWindow();
-                collect(result, testsFailedThisBuild, foundTests, withinExecutionWindow, withinFailureWindow);
+        return selectedTests;
+    }
 
-                // failing tests within failure window should be selected; don't add duplicates
-                for (String testName : testsFailedThisBuild) {
-                    if (!selectedTests.contains(testName))
-                        selectedTests.add(testName);
-                }
+    /**
+     * Selects the most valuable tests whose predicted total duration fits the time budget. The value of a test is
+     * its failure rate within the failure window, plus its staleness within the execution window, plus 1 if it is
+     * relevant to the changes. Tests are taken greedily by value per second; if the single most valuable test that
+     * fits is worth more than the greedy selection, it is taken instead.
+     *
+     * @param build Current build
+     * @param listener BuildListener used for logging to Jenkins console output
+     * @param tests List of all tests found in test suite file
+     * @param linesForFile lines of the test suite file, used to resolve the package of each test
+     * @param relevantTests Tests relevant to the changes, from dependency analysis
+     *
+     * @return List of tests selected for execution, most valuable per second first
+     */
+    private ArrayList<String> selectWithinBudget(AbstractBuild<?, ?> build,
+                                                 TaskListener listener,
+                                                 ArrayList<String> tests,
+                                                 ArrayList<String> linesForFile,
+                                                 ArrayList<String> relevantTests)
+            throws IOException, InterruptedException {
+        HashMap<String, Integer> testIds = TestIdTable.forJob(build.getParent()).getSuiteIds(linesForFile, tests);
+        TestHistoryIndex historyIndex = TestHistoryIndex.forJob(build.getParent());
+        TestHistoryWindow history = historyIndex.getWindow(build,
+                Math.max(this.getFailureWindow(), this.getExecutionWindow()), this.getHistoryLoadThreads());
+
+        int[] executionCounts = history.executionCounts(this.getFailureWindow());
+        int[] failureCounts = history.failureCounts(this.getFailureWindow());
+        int[] buildsSinceExecuted = history.buildsSinceExecuted();
+        HashSet<String> relevant = new HashSet<>(relevantTests);
+
+        final double[] values = new double[tests.size()];
+        final double[] durations = history.predictDurations(testIds, tests);
+
+        for (int i = 0; i < tests.size(); i++) {
+            int id = testIds.get(tests.get(i));
+            int executions = id >= 0 && id < executionCounts.length ? executionCounts[id] : 0;
+            int failures = id >= 0 && id < failureCounts.length ? failureCounts[id] : 0;
+            int age = id >= 0 && id < buildsSinceExecuted.length ? buildsSinceExecuted[id] : -1;
+
+            // Laplace-smoothed failure rate within the failure window
+            double failureRate = (failures + 1.0) / (executions + 2.0);
+            // 1 for tests not executed within the execution window, growing towards 1 as a test ages otherwise
+            double staleness = age < 0 || age > this.getExecutionWindow()
+                    ? 1 : (double) age / Math.max(1, this.getExecutionWindow());
+            values[i] = failureRate + staleness + (relevant.contains(tests.get(i)) ? 1 : 0);
+        }
+
+        // greedy knapsack: most value per second first
+        ArrayList<Integer> order = new ArrayList<>();
+        for (int i = 0; i < tests.size(); i++)
+            order.add(i);
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(values[b] / Math.max(durations[b], MIN_DURATION),
+                                      values[a] / Math.max(durations[a], MIN_DURATION));
+            }
+        });
+
+        ArrayList<Integer> chosen = new ArrayList<>();
+        double chosenDuration = 0;
+        double chosenValue = 0;
+        int bestSingle = -1;
+        for (int i : order) {
+            if (durations[i] > timeBudget)
+                continue;
+            if (bestSingle < 0 || values[i] > values[bestSingle])
+                bestSingle = i;
+            if (chosenDuration + durations[i] <= timeBudget) {
+                chosen.add(i);
+                chosenDuration += durations[i];
+                chosenValue += values[i];
             }
         }
 
-        // tests not found have not been executed within execution window and should be selected
-        for (String test : tests) {
-            if (!foundTests.contains(test))
-                selectedTests.add(test);
+        if (bestSingle >= 0 && values[bestSingle] > chosenValue) {
+            chosen.clear();
+            chosen.add(bestSingle);
+            chosenDuration = durations[bestSingle];
         }
 
+        ArrayList<String> selectedTests = new ArrayList<>();
+        for (int i : chosen)
+            selectedTests.add(tests.get(i));
+
+        listener.getLogger().println("Predicted duration of selected tests: " + chosenDuration + " seconds");
+        build.addAction(new TestDurationPrediction(selectedTests.size(), chosenDuration));
+
         return selectedTests;
     }
 
     /**
-     * Rewrites the test suite file to include only selected tests
+     * Writes the selected tests in the configured output format
      *
      * @param workspace FilePath of current project workspace
      * @param selectedTests List of tests selected for execution
+     * @param testMethods Test methods to run of the selected tests; not written to the test suite file
      * @param linesForFile List containing lines from the test suite file
+     * @param shard Shard number starting at 1, or 0 if the tests are not sharded
+     *
+     * @return Path of the written file, relative to the workspace
      */
-    private void buildTestSuiteFile(FilePath workspace,
-                                    ArrayList<String> selectedTests,
-                                    ArrayList<String> linesForFile)
+    private String writeTests(FilePath workspace,
+                              ArrayList<String> selectedTests,
+                              HashMap<String, ArrayList<String>> testMethods,
+                              ArrayList<String> linesForFile,
+                              int shard)
             throws IOException, InterruptedException {
-
-        try (OutputStream osSuiteFile = workspace.child(testSuiteFile).write();
-             OutputStreamWriter oswSuiteFile = new OutputStreamWriter(osSuiteFile, Charsets.UTF_8);
-             PrintWriter pwSuiteFile = new PrintWriter(oswSuiteFile)) {
-
-            for (String line : linesForFile) {
-                pwSuiteFile.println(line);
-
-                if (line.equals(ANNOTATION_START_1) || line.equals(ANNOTATION_START_2)) {
-                    String testName;
-                    for (int i = 0; i < selectedTests.size() - 1; i++) {
-                        testName = selectedTests.get(i);
-                        pwSuiteFile.println(testName + ",");
-                    }
-                    testName = selectedTests.get(selectedTests.size()-1);
-                    pwSuiteFile.println(testName);
-                    pwSuiteFile.println(ANNOTATION_END);
-                }
+        if (TestOutput.isSuite(outputFormat)) {
+            if (shard == 0) {
+                buildTestSuiteFile(workspace, testSuiteFile, selectedTests, linesForFile);
+                return testSuiteFile;
             }
-
-            pwSuiteFile.close();
+            String shardFile = TestShards.shardFile(testSuiteFile, shard);
+            buildTestSuiteFile(workspace, shardFile, selectedTests,
+                    TestShards.shardLines(linesForFile, testSuiteFile, shard));
+            return shardFile;
         }
+
+        // the test suite file is left untouched so the test sources need not be recompiled
+        String file = shard == 0 ? outputFile : TestShards.shardFile(outputFile, shard);
+        TestOutput.write(workspace, file, outputFormat, TestOutput.withMethods(selectedTests,
+                TestOutput.qualifiedNames(linesForFile, selectedTests), testMethods));
+        return file;
     }
 
     /**
-     * Collects tests into appropriate lists
+     * Rewrites the test suite file to include only selected tests
      *
-     * @param testResult TestResult from a build
-     * @param failed List of tests that have been found to fail
-     * @param found List of all found tests
-     * @param withinExWindow Boolean representing if build is withinn execution window
-     * @param withinFailWindow Boolean representing if build is within failure window
+     * @param workspace FilePath of current project workspace
+     * @param suiteFile Path of the suite file to write, relative to the workspace
+     * @param selectedTests List of tests selected for execution
+     * @param linesForFile List containing lines from the test suite file
      */
-    static private void collect(TestResult testResult, ArrayList<String> failed, ArrayList<String> found,
-                                Boolean withinExWindow, Boolean withinFailWindow) {
-        if (testResult instanceof ClassResult) {
-            ClassResult classResult = (ClassResult) testResult;
-            String className;
-            String pkgName = classResult.getParent().getName();
-
-            if (pkgName.equals("(root)"))
-                pkgName = "";
-            else
-                pkgName += '.';
-            className = pkgName + classResult.getName() + ".class";
-
-            if (withinExWindow && !found.contains(className)) // don't add if outside of execution window
-                found.add(className);
-
-            if (withinFailWindow && classResult.getFailCount() > 0) // don't add if outside of failure window
-                failed.add(className);
-
-            return; // no need to go deeper
-        }
-        if (testResult instanceof TabulatedResult) {
-            TabulatedResult tabulatedResult = (TabulatedResult) testResult;
-            for (TestResult child : tabulatedResult.getChildren()) {
-                collect(child, failed, found, withinExWindow, withinFailWindow);
-            }
-        }
+    private void buildTestSuiteFile(FilePath workspace,
+                                    String suiteFile,
+                                    ArrayList<String> selectedTests,
+                                    ArrayList<String> linesForFile)
+            throws IOException, InterruptedException {
+
+        TestSuiteFile.write(workspace, suiteFile, linesForFile, selectedTests);
     }
 
     @Override
@@ -482,6 +926,129 @@ public class RegressionTestSelector extends Builder {
             }
          }
 
+        public FormValidation doCheckHistoryLoadThreads(@QueryParameter String value)
+                throws IOException, ServletException {
+            try {
+                int input = Integer.parseInt(value);
+                if (input >= 0)
+                    return FormValidation.ok();
+                else
+                    return FormValidation.error("History load threads must be a positive number.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("History load threads must be a number.");
+            }
+        }
+
+        public FormValidation doCheckTimeBudget(@QueryParameter String value)
+                throws IOException, ServletException {
+            try {
+                int input = Integer.parseInt(value);
+                if (input >= 0)
+                    return FormValidation.ok();
+                else
+                    return FormValidation.error("Time budget must be a positive number.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Time budget must be a number.");
+            }
+        }
+
+        public FormValidation doCheckShardCount(@QueryParameter String value)
+                throws IOException, ServletException {
+            try {
+                int input = Integer.parseInt(value);
+                if (input >= 0)
+                    return FormValidation.ok();
+                else
+                    return FormValidation.error("Shard count must be a positive number.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Shard count must be a number.");
+            }
+        }
+
+        public ListBoxModel doFillOutputFormatItems() {
+            return TestOutput.formatItems();
+        }
+
+        public FormValidation doCheckOutputFile(@QueryParameter String value,
+                                                @QueryParameter String outputFormat)
+                throws IOException, ServletException {
+
+            if (!TestOutput.isSuite(outputFormat)) {
+                if (value.length() == 0)
+                    return FormValidation.error("To use this output format, you must set this value.");
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckAnalysisServicePort(@QueryParameter String value)
+                throws IOException, ServletException {
+            try {
+                int input = Integer.parseInt(value);
+                if (input >= 0 && input <= 65535)
+                    return FormValidation.ok();
+                else
+                    return FormValidation.error("Port must be between 0 and 65535.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Port must be a number.");
+            }
+        }
+
+        public ListBoxModel doFillDependencyAnalyzerItems() {
+            return BytecodeDependencyAnalysis.analyzerItems();
+        }
+
+        public FormValidation doCheckClassDirs(@QueryParameter String value,
+                                               @QueryParameter String dependencyAnalyzer)
+                throws IOException, ServletException {
+
+            if (BytecodeDependencyAnalysis.isBytecode(dependencyAnalyzer)) {
+                if (value.length() == 0)
+                    return FormValidation.error("To use the compiled classes analyzer, you must set this value.");
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckMaxDependencyDepth(@QueryParameter String value)
+                throws IOException, ServletException {
+            try {
+                int input = Integer.parseInt(value);
+                if (input >= 0)
+                    return FormValidation.ok();
+                else
+                    return FormValidation.error("Maximum dependency depth must be a positive number.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Maximum dependency depth must be a number.");
+            }
+        }
+
+        public FormValidation doCheckPreAnalysisTimeout(@QueryParameter String value)
+                throws IOException, ServletException {
+            try {
+                int input = Integer.parseInt(value);
+                if (input >= 0)
+                    return FormValidation.ok();
+                else
+                    return FormValidation.error("Background analysis timeout must be a positive number.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Background analysis timeout must be a number.");
+            }
+        }
+
+        public FormValidation doCheckAnalysisLatencyBudget(@QueryParameter String value)
+                throws IOException, ServletException {
+            try {
+                int input = Integer.parseInt(value);
+                if (input >= 0)
+                    return FormValidation.ok();
+                else
+                    return FormValidation.error("Analysis latency budget must be a positive number.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Analysis latency budget must be a number.");
+            }
+        }
+
         public FormValidation doCheckTestSuiteFile(@QueryParameter String value)
                 throws IOException, ServletException {
             if (value.length() == 0)
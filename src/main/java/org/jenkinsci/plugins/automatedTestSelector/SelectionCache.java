@@ -0,0 +1,203 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.model.Job;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-job cache of dependency analysis results, so rebuilds and retries of the same changes do not repeat the
+ * analysis. Each configuration of a matrix job is a job of its own and has its own cache. Results are keyed by a
+ * fingerprint of the changed paths, the version of the analyzed code, the test suite file and the analysis
+ * configuration. The least recently used results are
+ * evicted beyond MAX_ENTRIES, and results older than MAX_AGE are dropped.
+ *
+ * The cache is stored in the job directory, least recently used first, with one result per line:
+ * "fingerprint time test test ...", tab-separated.
+ */
+public class SelectionCache {
+
+    // file in the job directory holding the cache
+    private static final String CACHE_FILE = "selectionCache.txt";
+
+    private static final int MAX_ENTRIES = 64;
+    // a week in milliseconds
+    private static final long MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    // one cache per job so that concurrent builds share results
+    private static final HashMap<String, SelectionCache> CACHES = new HashMap<>();
+
+    private final File cacheFile;
+
+    // results by fingerprint, in access order
+    private final LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private boolean loaded = false;
+
+    SelectionCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * A cached analysis result and the time it was computed
+     */
+    private static class Result {
+        private final long time;
+        private final ArrayList<String> tests;
+
+        private Result(long time, ArrayList<String> tests) {
+            this.time = time;
+            this.tests = tests;
+        }
+    }
+
+    /**
+     * @param job The job owning the cache
+     * @return the selection cache stored in the job's directory
+     */
+    public static synchronized SelectionCache forJob(Job<?, ?> job) {
+        File file = new File(job.getRootDir(), CACHE_FILE);
+        SelectionCache cache = CACHES.get(file.getPath());
+        if (cache == null) {
+            cache = new SelectionCache(file);
+            CACHES.put(file.getPath(), cache);
+        }
+        return cache;
+    }
+
+    /**
+     * @param changedPaths paths changed in version control
+     * @param graphVersion version of the code the dependency graph was built from, e.g. the commit
+     * @param suiteLines lines of the test suite file
+     * @param configuration analysis settings that affect the result
+     * @return fingerprint of the inputs of the analysis
+     */
+    public static String fingerprint(Collection<String> changedPaths,
+                                     String graphVersion,
+                                     List<String> suiteLines,
+                                     String configuration) throws IOException {
+        // the order of the change set does not change the analysis
+        ArrayList<String> sortedPaths = new ArrayList<>(changedPaths);
+        Collections.sort(sortedPaths);
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            update(digest, sortedPaths);
+            update(digest, Arrays.asList(graphVersion, configuration));
+            update(digest, suiteLines);
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest())
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @param fingerprint fingerprint of the inputs of the analysis
+     * @return the cached result, or null if there is none or it has expired
+     */
+    public synchronized ArrayList<String> get(String fingerprint) throws IOException {
+        load();
+        Result result = results.get(fingerprint);
+        if (result == null || System.currentTimeMillis() - result.time > MAX_AGE)
+            return null;
+        return new ArrayList<>(result.tests);
+    }
+
+    /**
+     * Caches a result, evicting expired and least recently used results
+     *
+     * @param fingerprint fingerprint of the inputs of the analysis
+     * @param tests result of the analysis
+     */
+    public synchronized void put(String fingerprint, List<String> tests) throws IOException {
+        load();
+        results.put(fingerprint, new Result(System.currentTimeMillis(), new ArrayList<>(tests)));
+
+        Iterator<Result> iterator = results.values().iterator();
+        while (iterator.hasNext()) {
+            if (System.currentTimeMillis() - iterator.next().time > MAX_AGE)
+                iterator.remove();
+        }
+
+        save();
+    }
+
+    /**
+     * Writes the cache under a temporary name that then replaces the file, so a crash while writing keeps the
+     * previous results
+     */
+    private void save() throws IOException {
+        File temporary = AtomicFiles.createTemporary(cacheFile);
+        try {
+            try (OutputStream outputStream = new FileOutputStream(temporary);
+                 OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+                 PrintWriter printWriter = new PrintWriter(outputStreamWriter)) {
+                for (Map.Entry<String, Result> entry : results.entrySet()) {
+                    StringBuilder line = new StringBuilder(entry.getKey()).append('\t').append(entry.getValue().time);
+                    for (String test : entry.getValue().tests)
+                        line.append('\t').append(test);
+                    printWriter.println(line);
+                }
+                if (printWriter.checkError())
+                    throw new IOException("Could not write " + temporary);
+            }
+            AtomicFiles.replace(temporary, cacheFile);
+        } finally {
+            AtomicFiles.discard(temporary);
+        }
+    }
+
+    private static void update(MessageDigest digest, List<String> lines) {
+        for (String line : lines) {
+            digest.update(line.getBytes(Charsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        // separates the groups of lines
+        digest.update((byte) 0);
+    }
+
+    private void load() throws IOException {
+        if (loaded)
+            return;
+
+        if (cacheFile.exists()) {
+            try (InputStream inputStream = new FileInputStream(cacheFile);
+                 InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charsets.UTF_8);
+                 BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
+                String line;
+                while ((line = bufferedReader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length < 2)
+                        continue;
+                    try {
+                        ArrayList<String> tests = new ArrayList<>(Arrays.asList(fields).subList(2, fields.length));
+                        results.put(fields[0], new Result(Long.parseLong(fields[1]), tests));
+                    } catch (NumberFormatException e) {
+                        // skip a corrupt line; the result is computed again
+                    }
+                }
+            }
+        }
+        loaded = true;
+    }
+}
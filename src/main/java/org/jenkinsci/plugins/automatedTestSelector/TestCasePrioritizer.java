@@ -1,7 +1,5 @@
 package org.jenkinsci.plugins.automatedTestSelector;
 
-import com.google.common.collect.ImmutableSet;
-
 import hudson.AbortException;
 import hudson.Launcher;
 import hudson.Extension;
@@ -13,11 +11,11 @@ import hudson.scm.ChangeLogSet.Entry;
 
 import hudson.tasks.Builder;
 import hudson.tasks.BuildStepDescriptor;
-import hudson.tasks.junit.ClassResult;
-import hudson.tasks.test.AbstractTestResultAction;
-import hudson.tasks.test.TabulatedResult;
-import hudson.tasks.test.TestResult;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
 
 import org.apache.commons.io.Charsets;
 
@@ -28,8 +26,18 @@ import javax.servlet.ServletException;
 import java.io.*;
 import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Taylor Ecton
@@ -37,19 +45,18 @@ import java.util.TreeMap;
 
 public class TestCasePrioritizer extends Builder {
 
-    // set of build results to consider; currently set to only consider successful and unstable builds
-    private static final ImmutableSet<Result> RESULTS_TO_CONSIDER = ImmutableSet.of(Result.SUCCESS, Result.UNSTABLE, Result.FAILURE);
-
-    // possible starts of @SuiteClasses annotation in test suite file, and the end of the annotation
-    private static final String ANNOTATION_START_1 = "@SuiteClasses({";
-    private static final String ANNOTATION_START_2 = "@Suite.SuiteClasses({";
-    private static final String ANNOTATION_END = "})";
-
     // file to contain information about when a test was last prioritized
     private static final String LAST_PRIORITIZED_FILE = "build_when_previously_prioritized.txt";
 
-    // file for passing information between plugin and stand-alone dependency analysis program
-    private static final String HANDOFF_FILE = "handoff.txt";
+    // lower bound on expected test durations in seconds; keeps very fast tests from dividing by zero
+    private static final double MIN_DURATION = 0.001;
+
+    // files in the workspace read by the PrioritizedSuite runner
+    private static final String RANKING_FILE = "testRanking.txt";
+    private static final String CO_FAILURES_FILE = "testCoFailures.txt";
+
+    // runs the phases of perform() that do not depend on the dependency analysis
+    private static ExecutorService phaseExecutor;
 
     // parameters used for prioritizing tests
     private final int failureWindow;
@@ -65,6 +72,48 @@ public class TestCasePrioritizer extends Builder {
     // path of Understand Database if dependency analysis is used
     private final String udbPath;
 
+    // number of threads used to load previous builds missing from the test history index
+    private final int historyLoadThreads;
+
+    // half-life in builds of the decayed failure and execution statistics; 0 uses the fixed windows
+    private final int decayHalfLife;
+
+    // boolean indicating if tests are ranked by failure likelihood per second of expected duration
+    private final boolean rankByDuration;
+
+    // number of suites the prioritized tests are split into for parallel executors; 0 or 1 for none
+    private final int shardCount;
+
+    // format the prioritized tests are written in; see TestOutput
+    private final String outputFormat;
+
+    // file the tests are written to when not rewriting the test suite file
+    private final String outputFile;
+
+    // boolean indicating if the ranking and co-failure files read by PrioritizedSuite are written
+    private final boolean writeRankingFiles;
+
+    // local port of the dependency analysis service; 0 to run DependencyAnalysis for every build
+    private final int analysisServicePort;
+
+    // analyzer used for dependency analysis; see BytecodeDependencyAnalysis
+    private final String dependencyAnalyzer;
+
+    // comma-separated directories of compiled classes read by the bytecode analyzer
+    private final String classDirs;
+
+    // maximum number of references followed from a changed class in dependency analysis; 0 for no limit
+    private final int maxDependencyDepth;
+
+    // seconds to wait for the dependency analysis started at checkout; 0 disables it
+    private final int preAnalysisTimeout;
+
+    // prioritizes tests that failed unusually often in builds changing the same files
+    private final boolean useChangeHistory;
+
+    // weights of the signals of each test's score, e.g. "failure=3, staleness=1"
+    private final String scoreWeights;
+
     @DataBoundConstructor
     public TestCasePrioritizer(int failureWindow,
                                int executionWindow,
@@ -72,7 +121,21 @@ public class TestCasePrioritizer extends Builder {
                                String testSuiteFile,
                                String testReportDir,
                                boolean useDepAnalysis,
-                               String udbPath) {
+                               String udbPath,
+                               int historyLoadThreads,
+                               int decayHalfLife,
+                               boolean rankByDuration,
+                               int shardCount,
+                               String outputFormat,
+                               String outputFile,
+                               boolean writeRankingFiles,
+                               int analysisServicePort,
+                               String dependencyAnalyzer,
+                               String classDirs,
+                               int maxDependencyDepth,
+                               int preAnalysisTimeout,
+                               boolean useChangeHistory,
+                               String scoreWeights) {
         this.executionWindow = executionWindow;
         this.failureWindow = failureWindow;
         this.priorityWindow = priorityWindow;
@@ -82,6 +145,34 @@ public class TestCasePrioritizer extends Builder {
 
         this.useDepAnalysis = useDepAnalysis;
         this.udbPath = udbPath;
+
+        this.historyLoadThreads = historyLoadThreads;
+
+        this.decayHalfLife = decayHalfLife;
+
+        this.rankByDuration = rankByDuration;
+
+        this.shardCount = shardCount;
+
+        this.outputFormat = outputFormat;
+
+        this.outputFile = outputFile;
+
+        this.writeRankingFiles = writeRankingFiles;
+
+        this.analysisServicePort = analysisServicePort;
+
+        this.dependencyAnalyzer = dependencyAnalyzer;
+
+        this.classDirs = classDirs;
+
+        this.maxDependencyDepth = maxDependencyDepth;
+
+        this.preAnalysisTimeout = preAnalysisTimeout;
+
+        this.useChangeHistory = useChangeHistory;
+
+        this.scoreWeights = scoreWeights;
     }
 
     /**
@@ -107,19 +198,75 @@ public class TestCasePrioritizer extends Builder {
         return testReportDir;
     }
 
-    /* public boolean getUseDepAnalysis() {
+    public boolean getUseDepAnalysis() {
         return useDepAnalysis;
-    } */
+    }
 
     public String getUdbPath() {
         return udbPath;
     }
 
+    public int getHistoryLoadThreads() {
+        return historyLoadThreads;
+    }
+
+    public int getDecayHalfLife() {
+        return decayHalfLife;
+    }
+
+    public boolean getRankByDuration() {
+        return rankByDuration;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    public String getOutputFile() {
+        return outputFile;
+    }
+
+    public boolean getWriteRankingFiles() {
+        return writeRankingFiles;
+    }
+
+    public int getAnalysisServicePort() {
+        return analysisServicePort;
+    }
+
+    public String getDependencyAnalyzer() {
+        return dependencyAnalyzer;
+    }
+
+    public String getClassDirs() {
+        return classDirs;
+    }
+
+    public int getMaxDependencyDepth() {
+        return maxDependencyDepth;
+    }
+
+    public int getPreAnalysisTimeout() {
+        return preAnalysisTimeout;
+    }
+
+    public boolean getUseChangeHistory() {
+        return useChangeHistory;
+    }
+
+    public String getScoreWeights() {
+        return scoreWeights;
+    }
+
     /**
      * main function of the regression test selector
      */
     @Override
-    public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener)
+    public boolean perform(final AbstractBuild<?,?> build, Launcher launcher, final BuildListener listener)
             throws IOException, InterruptedException {
         long startTime = System.currentTimeMillis();
         long stopTime;
@@ -129,17 +276,35 @@ public class TestCasePrioritizer extends Builder {
         listener.getLogger().println("Running test case prioritizer...");
         listener.getLogger().println("Failure window is set to: " + failureWindow);
         listener.getLogger().println("Execution window is set to: " + executionWindow);
+        listener.getLogger().println("History load threads is set to: " + historyLoadThreads);
         listener.getLogger().println("Prioritization window is set to: " + priorityWindow);
-        if (useDepAnalysis) listener.getLogger().println("UDB Path: " + udbPath);
+        if (decayHalfLife > 0) listener.getLogger().println("Decay half-life is set to: " + decayHalfLife);
+        if (rankByDuration) listener.getLogger().println("Ranking tests by failure likelihood per second");
+        if (shardCount > 1) listener.getLogger().println("Shard count is set to: " + shardCount);
+        if (writeRankingFiles) listener.getLogger().println("Writing runtime ranking files");
+        if (!TestOutput.isSuite(outputFormat)) listener.getLogger().println("Writing " + outputFormat + " output to: " + outputFile);
+        if (useDepAnalysis && BytecodeDependencyAnalysis.isBytecode(dependencyAnalyzer)) listener.getLogger().println("Class directories: " + classDirs);
+        else if (useDepAnalysis) listener.getLogger().println("UDB Path: " + udbPath);
+        if (useDepAnalysis && analysisServicePort > 0) listener.getLogger().println("Dependency analysis service port: " + analysisServicePort);
+        if (useChangeHistory) listener.getLogger().println("Prioritizing tests by change history");
+        if (!rankByDuration && scoreWeights != null && !scoreWeights.trim().isEmpty()) listener.getLogger().println("Score weights are set to: " + scoreWeights);
         // listener.getLogger().println("Class path: " + System.getProperty("java.class.path")); // <-- for debugging
 
         // get current build number for setting last prioritized build number on tests
-        int currentBuildNum = build.getNumber();
+        final int currentBuildNum = build.getNumber();
         // gets project workspace
-        FilePath workspace = build.getWorkspace();
+        final FilePath workspace = build.getWorkspace();
         if (workspace == null)
             throw new AbortException("No workspace");
 
+        // weight of each signal of the test scores
+        double[] weights;
+        try {
+            weights = TestPriority.parseWeights(scoreWeights);
+        } catch (IllegalArgumentException e) {
+            throw new AbortException("Invalid score weights: " + e.getMessage());
+        }
+
         listener.getLogger().println("remote: " + workspace.getRemote()); // <-- for debugging
 
         // clears the test report directory before running; plugin encounters an error if it does not do this
@@ -147,28 +312,96 @@ public class TestCasePrioritizer extends Builder {
         reportDir.deleteContents();
 
         // linesForFile holds the lines to put in the test suite file, minus the tests
-        ArrayList<String> linesForFile = new ArrayList<>();
+        final ArrayList<String> linesForFile = new ArrayList<>();
         // allTests holds all of the test classes found in the test suite file
-        TreeMap<String, TestPriority> allTests = getAllTests(workspace, linesForFile, listener);
+        TreeMap<String, TestPriority> allTests;
         // relevantTests will hold the tests found to be relevant to current code changes
         TreeMap<String, TestPriority> relevantTests;
+        // the last build number where each test was prioritized, from LAST_PRIORITIZED_FILE
+        HashMap<String, Integer> previousPrioritizedBuildNums;
+        // history of the job; statistics when decaying scores, the window of previous builds otherwise
+        TestStatistics statistics;
+        TestHistoryWindow history;
+
+        // none of the phases depend on each other until the relevant tests are picked from the suite, so the
+        // suite, the state file and the history are read while the dependency analysis runs; their output is
+        // buffered and written to the build log after the analysis, so it is not interleaved with its output
+        final ByteArrayOutputStream phaseLog = new ByteArrayOutputStream();
+        final TaskListener phaseListener = new StreamTaskListener(phaseLog, Charsets.UTF_8);
+        ExecutorService executor = phaseExecutor();
+        ArrayList<Future<?>> phases = new ArrayList<>();
+        try {
+            Future<TreeMap<String, TestPriority>> allTestsFuture = executor.submit(
+                    new Callable<TreeMap<String, TestPriority>>() {
+                        public TreeMap<String, TestPriority> call() throws IOException, InterruptedException {
+                            return getAllTests(workspace, linesForFile);
+                        }
+                    });
+            phases.add(allTestsFuture);
+            Future<HashMap<String, Integer>> previousPrioritizedFuture = executor.submit(
+                    new Callable<HashMap<String, Integer>>() {
+                        public HashMap<String, Integer> call() throws IOException, InterruptedException {
+                            return readPreviousPrioritizedBuildNums(workspace, phaseListener);
+                        }
+                    });
+            phases.add(previousPrioritizedFuture);
+            Future<TestStatistics> statisticsFuture = null;
+            Future<TestHistoryWindow> historyFuture = null;
+            if (decayHalfLife > 0) {
+                statisticsFuture = executor.submit(new Callable<TestStatistics>() {
+                    public TestStatistics call() throws IOException, InterruptedException {
+                        return getStatistics(build, currentBuildNum);
+                    }
+                });
+                phases.add(statisticsFuture);
+            } else {
+                // read the previous builds within failureWindow or executionWindow, whichever is larger
+                historyFuture = executor.submit(new Callable<TestHistoryWindow>() {
+                    public TestHistoryWindow call() throws IOException, InterruptedException {
+                        return TestHistoryIndex.forJob(build.getParent()).getWindow(build,
+                                Math.max(failureWindow, executionWindow), historyLoadThreads);
+                    }
+                });
+                phases.add(historyFuture);
+            }
 
-        // get relevant tests from dependency analysis if useDepAnalysis is true; use allTests otherwise
-        if (useDepAnalysis) {
-            relevantTests = doDependencyAnalysis(build, listener, allTests);
-        } else {
-            relevantTests = allTests;
+            // get the dependent modules from dependency analysis if useDepAnalysis is true, on this thread
+            LinkedHashMap<String, Integer> dependentModules =
+                    useDepAnalysis ? getDependentModules(build, listener) : null;
+
+            allTests = join(allTestsFuture);
+            previousPrioritizedBuildNums = join(previousPrioritizedFuture);
+            statistics = statisticsFuture != null ? join(statisticsFuture) : null;
+            history = historyFuture != null ? join(historyFuture) : null;
+            byte[] log = phaseLog.toByteArray();
+            listener.getLogger().write(log, 0, log.length);
+
+            // use allTests if there is no dependency analysis, or it found no changed source files
+            if (dependentModules != null)
+                relevantTests = getRelevantTests(listener, allTests, linesForFile, dependentModules);
+            else
+                relevantTests = allTests;
+        } finally {
+            // phases still running if the analysis or another phase failed
+            for (Future<?> phase : phases)
+                phase.cancel(true);
         }
 
         /* TODO Remove if/else ---> it should be okay if allTests is empty
         // checks to make sure allTests contains tests
         if (!allTests.isEmpty()) { */
 
-            // read last prioritized build file and set prioritized build number for tests accordingly
-            setPreviousPrioritizedBuildNums(workspace, listener, relevantTests, allTests);
+            // set prioritized build number for tests from the last prioritized build file; relevantTests holds
+            // the same TestPriority objects as allTests
+            for (Map.Entry<String, Integer> entry : previousPrioritizedBuildNums.entrySet()) {
+                if (allTests.containsKey(entry.getKey()))
+                    allTests.get(entry.getKey()).setPreviousPrioritizedBuildNum(entry.getValue());
+            }
 
             // returns tests sorted by priority
-            ArrayList<TestPriority> sortedTests = prioritizeTests(build, currentBuildNum, listener, relevantTests);
+            ArrayList<TestPriority> sortedTests = prioritizeTests(build, currentBuildNum, listener, workspace,
+                                                                  linesForFile, relevantTests, statistics, history,
+                                                                  weights);
 
             // get a list containing all tests with current previous prioritized build numbers
             // used for writing to the previous prioritized build file
@@ -177,6 +410,14 @@ public class TestCasePrioritizer extends Builder {
             // write the test suite file with the sorted tests and write the previous prioritized build file
             // with the list of all tests
             buildFiles(workspace, sortedTests, testList, linesForFile);
+
+            // write the files the PrioritizedSuite runner orders the tests by at launch time
+            if (writeRankingFiles)
+                buildRankingFiles(build, workspace, sortedTests, linesForFile);
+
+            // write one suite per parallel executor
+            if (shardCount > 1)
+                buildShardFiles(build, listener, workspace, sortedTests, linesForFile);
         /* } else {
             // allTests does not contain any values
             listener.getLogger().println("Error: allTests is empty. Cannot prioritize tests.");
@@ -191,29 +432,27 @@ public class TestCasePrioritizer extends Builder {
     }
 
     /**
-     * Uses SciTools Understand to determine which files are relevant to changes made in version control
+     * Uses SciTools Understand, or the compiled classes, to determine which files are relevant to changes made in
+     * version control
      * @param build The current build
      * @param listener BuildListener used to write to Jenkins console output
-     * @param allTests TreeMpa of all tests
-     * @return TreeMap containing only the tests relevant to changes
+     * @return the qualified class names of the files dependent on the changes, breadth first, each with the number
+     *         of references followed from the nearest change if the analysis reports it; or null if no source code
+     *         files changed and all tests should be considered
      */
-    private TreeMap<String, TestPriority> doDependencyAnalysis(AbstractBuild<?,?> build,
-                                                               BuildListener listener,
-                                                               TreeMap<String, TestPriority> allTests)
+    private LinkedHashMap<String, Integer> getDependentModules(AbstractBuild<?,?> build, BuildListener listener)
             throws IOException, InterruptedException {
 
         // ------------ DEPENDENCY ANALYSIS CLASS MOVED TO STAND-ALONE PROGRAM -----------------------------
         // ------------ due to bug that has not yet been resolved... ---------------------------------------
         // DependencyAnalysis dependencyAnalysis = new DependencyAnalysis(udbPath, workspacePath, listener);
 
-        // TreeMap will hold tests relevant to files changed in version control
-        TreeMap<String, TestPriority> relevantTests = new TreeMap<>();
         // allChangedFiles will hold EVERY file changed in version control since previous build
         ArrayList<String> allChangedFiles = new ArrayList<>();
-        // changedSourceFiles will hold only changed .java files
+        // changedSourceFiles will hold the qualified class names of the changed .java files
         ArrayList<String> changedSourceFiles = new ArrayList<>();
         // dependentModules will hold all .java files related to changed files (including non-tests)
-        ArrayList<String> dependentModules = new ArrayList<>();
+        LinkedHashMap<String, Integer> dependentModules = new LinkedHashMap<>();
 
         listener.getLogger().println("**----------------------------------**"); // <-- for debugging
         listener.getLogger().println("Running dependency analysis code..."); // <-- for debugging
@@ -230,156 +469,119 @@ public class TestCasePrioritizer extends Builder {
             listener.getLogger().println("-------------------------------"); // <-- for debugging
             listener.getLogger().println("All changed files: "); // <-- for debugging
 
-            // check each file name to see if it contains '.java'; add to changedSourceFiles if it does
-            for (String file : allChangedFiles) {
-
+            for (String file : allChangedFiles)
                 listener.getLogger().println(file); // <-- for debugging
 
-                if (file.contains(".java")) {
-                    String[] pathComponents = file.split("/");
-                    file = pathComponents[pathComponents.length - 1];
-                    file = file.replace(".java", "");
-                    changedSourceFiles.add(file);
-                }
-            }
-
             listener.getLogger().println("-------------------------------"); // <-- for debugging
 
+            // package-qualified, so classes sharing a simple name in other packages are not taken as changed
+            FilePath workspace = build.getWorkspace();
+            if (workspace == null)
+                throw new AbortException("No workspace");
+            changedSourceFiles.addAll(ClassNames.fromSourcePaths(workspace, allChangedFiles));
+
             // do not enter the following block if none of the changed files are .java files
             if (!changedSourceFiles.isEmpty()) {
                 // --------------- DEPENDENCY ANALYSIS CLASS MOVED TO STAND-ALONE PROGRAM -------
                 // --------------- due to issue opening Understand database more than once ------
                 // dependentModules = dependencyAnalysis.getDependentModules(changedSourceFiles);
 
-                runDependencyAnalysisJava(build, listener, changedSourceFiles, dependentModules);
-
-                listener.getLogger().println("All dependent files: "); // <-- for debugging
-
-                // iterate through dependentModules and add '.class' to the string for use in
-                // the re-written testSuiteFile
-                for (String file : dependentModules) {
-
-                    listener.getLogger().println(file); // <-- for debugging
-
-                    file += ".class";
-
-                    // if the file is a test (determined by checking if it's contained in allTests),
-                    // then add it to relevantTests
-                    if (allTests.containsKey(file)) {
-                        relevantTests.put(file, allTests.get(file));
+                if (BytecodeDependencyAnalysis.isBytecode(dependencyAnalyzer)) {
+                    // read the references between the compiled classes; no external analyzer needed
+                    dependentModules.putAll(BytecodeDependencyAnalysis.getDependencyDepths(
+                            workspace, classDirs, changedSourceFiles, maxDependencyDepth));
+                } else {
+                    // use the analysis started at checkout if it finishes in time; otherwise ask the long-lived
+                    // analysis service, and run the analysis program if it is not available
+                    ArrayList<String> analyzedModules = preAnalysisTimeout > 0
+                            ? PreAnalysis.await(build, changedSourceFiles, udbPath, maxDependencyDepth,
+                                                preAnalysisTimeout, listener)
+                            : null;
+                    if (analyzedModules == null && analysisServicePort > 0)
+                        analyzedModules = DependencyAnalysisClient.getDependentModules(workspace, analysisServicePort,
+                                changedSourceFiles, maxDependencyDepth, listener);
+                    if (analyzedModules == null)
+                        analyzedModules = DependencyAnalysisProgram.run(workspace,
+                                DependencyAnalysisProgram.CLASS_LEVEL, udbPath, changedSourceFiles,
+                                maxDependencyDepth, listener);
+                    if (analyzedModules != null) {
+                        // Understand lists the dependents breadth first, but not how far they are from the changes
+                        for (String module : analyzedModules) {
+                            if (!dependentModules.containsKey(module))
+                                dependentModules.put(module, null);
+                        }
+                    } else {
+                        listener.getLogger().println("Dependency analysis failed. Utilizing all tests for "
+                                                     + "prioritization.");
+                        dependentModules = null;
                     }
                 }
             } else {
                 // No changes found in version control since the previous build
                 listener.getLogger().println("No changed source code files. Utilizing all tests for prioritization.");
-                // set relevant tests to allTests and consider all tests for execution
-                relevantTests = allTests;
+                // consider all tests for execution
+                dependentModules = null;
             }
 
             listener.getLogger().println("**----------------------------------**"); // <-- for debugging
 
         }
 
-        /* ************** Uncomment the following block to use all tests if no relevant tests are found
-        // the following is executed if none of the changed files relate to the tests,
-        // for example: if no changed files are source files
-        if (relevantTests.isEmpty()) {
-            listener.getLogger().println("List of relevant tests is empty. Tests may be unrelated to changes.");
-            listener.getLogger().println("Using all tests in Test Suite File");
-            // set relevant tests to allTests and consider all tests for execution
-            relevantTests = allTests;
-        }
-        */
-
-        return relevantTests;
+        return dependentModules;
     }
 
-    private void runDependencyAnalysisJava(AbstractBuild<?,?> build,
-                                           BuildListener listener,
-                                           ArrayList<String> changedSourceFiles,
-                                           ArrayList<String> dependentModules)
-            throws IOException, InterruptedException {
+    /**
+     * @param listener BuildListener used to write to Jenkins console output
+     * @param allTests TreeMap of all tests
+     * @param linesForFile lines of the test suite file, used to resolve the package of each test
+     * @param dependentModules qualified or simple class names of the files dependent on the changes, the closest
+     *                         to the changes first, each with the number of references followed from the nearest
+     *                         change, or null if only the order is known
+     * @return TreeMap containing only the tests relevant to changes
+     */
+    private TreeMap<String, TestPriority> getRelevantTests(BuildListener listener,
+                                                           TreeMap<String, TestPriority> allTests,
+                                                           ArrayList<String> linesForFile,
+                                                           LinkedHashMap<String, Integer> dependentModules) {
+        // TreeMap will hold tests relevant to files changed in version control
+        TreeMap<String, TestPriority> relevantTests = new TreeMap<>();
 
-        // wokspacePath is the absolute path of the build workspace for this Jenkins job
-        String workspacePath;
-        try {
-            workspacePath = build.getWorkspace().getRemote();
-        } catch (NullPointerException e) {
-            throw new AbortException("getRemote returned null");
-        }
-        // concatenate workspacePath and HANDOFF_FILE to get path of handoff file
-        String handoffPath = workspacePath + "/" + HANDOFF_FILE;
+        listener.getLogger().println("All dependent files: "); // <-- for debugging
 
-        // listener.getLogger().println("handoffpath = " + handoffPath); // <-- for debugging
+        // the tests by the class names the analysis reports, qualified or simple
+        HashMap<String, String> testsByClassName =
+                ClassNames.testsByClassName(linesForFile, new ArrayList<>(allTests.keySet()));
 
-        // create the handoff file; if there is an old one, delete it first
-        try {
-            File file = new File(handoffPath);
-            if (file.exists()) {
+        int i = 0;
+        for (Map.Entry<String, Integer> module : dependentModules.entrySet()) {
+            String file = module.getKey();
 
-                listener.getLogger().println("Deleting old handoff file..."); // <-- for debugging
+            listener.getLogger().println(file); // <-- for debugging
 
-                if (file.delete()) listener.getLogger().println("File deleted.");
+            // if the file is a test (determined by looking it up among the tests of allTests),
+            // then add it to relevantTests
+            String test = testsByClassName.get(file);
+            if (test != null && !relevantTests.containsKey(test)) {
+                TestPriority testPriority = allTests.get(test);
+                testPriority.setSignal(TestPriority.DEPENDENCY_DISTANCE,
+                        TestPriority.dependencyDistance(module.getValue(), i, dependentModules.size()));
+                relevantTests.put(test, testPriority);
             }
-
-            OutputStream outputStream = new FileOutputStream(handoffPath);
-            OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream, Charsets.UTF_8);
-            PrintWriter printWriter = new PrintWriter(outputStreamWriter);
-
-            listener.getLogger().println("Writing new handoff file..."); // <-- for debugging
-
-            // write each changed source file to the handoff file
-            for (String sourceFile : changedSourceFiles)
-                printWriter.println(sourceFile);
-
-            printWriter.close();
-        } catch (IOException exception) {
-            listener.getLogger().println(exception.getMessage());
+            i++;
         }
 
-        // command is the shell command to run DependencyAnalysis program
-        String command = "java DependencyAnalysis " + udbPath + " " + workspacePath + " " + handoffPath;
-
-        // listener.getLogger().println("command = " + command); // <-- for debugging
-
-        // run command using exec; output is redirected to listener.getLogger() for viewing in Jenkins
-        Process dependencyAnalysis = Runtime.getRuntime().exec(command);
-        String output;
-        BufferedReader depAnalysisReader = new BufferedReader(
-                new InputStreamReader(dependencyAnalysis.getInputStream(), Charsets.UTF_8) );
-
-        while ((output = depAnalysisReader.readLine()) != null) {
-            listener.getLogger().println(output);
+        /* ************** Uncomment the following block to use all tests if no relevant tests are found
+        // the following is executed if none of the changed files relate to the tests,
+        // for example: if no changed files are source files
+        if (relevantTests.isEmpty()) {
+            listener.getLogger().println("List of relevant tests is empty. Tests may be unrelated to changes.");
+            listener.getLogger().println("Using all tests in Test Suite File");
+            // set relevant tests to allTests and consider all tests for execution
+            relevantTests = allTests;
         }
+        */
 
-        // make sure dependencyAnalysis process terminates before proceeding
-        dependencyAnalysis.waitFor();
-        depAnalysisReader.close();
-
-        listener.getLogger().println("Dependency analysis should have finished."); // <-- for debugging
-
-        // try to read information from the handoff file; should now contain information from
-        // dependency analysis program
-        try {
-            InputStream inputStream;
-            try {
-                inputStream = build.getWorkspace().child(HANDOFF_FILE).read();
-            } catch (NullPointerException e) {
-                throw new AbortException("inputStream is null");
-            }
-            InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charsets.UTF_8);
-            BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-
-            String line;
-            while((line = bufferedReader.readLine()) != null)
-                dependentModules.add(line);
-
-            bufferedReader.close();
-            inputStreamReader.close();
-            inputStream.close();
-        } catch (IOException exception) {
-            listener.getLogger().println(exception.getMessage());
-        }
+        return relevantTests;
     }
 
     /**
@@ -389,51 +591,11 @@ public class TestCasePrioritizer extends Builder {
      * @param linesForFile list containing lines from the test suite file; used to rewrite the file later
      * @return A TreeMap of all tests found in the test suite file
      */
-    private TreeMap<String, TestPriority> getAllTests(FilePath workspace, ArrayList<String> linesForFile, BuildListener listener)
+    private TreeMap<String, TestPriority> getAllTests(FilePath workspace, ArrayList<String> linesForFile)
             throws IOException, InterruptedException {
-
         TreeMap<String, TestPriority> allTests = new TreeMap<>();
-
-        listener.getLogger().println("All tests: "); // <-- for debugging
-
-        // try to read the file, read in all of the test names and add them to the list
-        try (InputStream inputStream = workspace.child(testSuiteFile).read();
-             InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charsets.UTF_8);
-             BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                if (line.startsWith("//")) // ignore comment lines
-                    continue;
-
-                linesForFile.add(line);
-                if (line.trim().equals(ANNOTATION_START_1) || line.trim().equals(ANNOTATION_START_2)) {
-                    line = bufferedReader.readLine();
-                    while (line != null && !line.trim().equals(ANNOTATION_END)) {
-                        if (!line.contains(".class")) // ignore potential blank lines
-                            continue;
-
-                        line = line.trim();
-                        if (line.contains(","))
-                            line = line.replace(",", "");
-                        TestPriority testPriority = new TestPriority(line);
-                        allTests.put(line, testPriority);
-
-                        listener.getLogger().println(line); // <-- for debugging
-
-                        line = bufferedReader.readLine();
-                    }
-                }
-            }
-            bufferedReader.close();
-            inputStreamReader.close();
-            inputStream.close();
-        }
-
-        /* FOR DEBUG
-        for (String line : linesForFile)
-            System.out.println(line);
-        */
-
+        for (String test : TestSuiteFile.read(workspace, testSuiteFile, linesForFile))
+            allTests.put(test, new TestPriority(test));
         return allTests;
     }
 
@@ -467,93 +629,345 @@ public class TestCasePrioritizer extends Builder {
      * @param build The current build
      * @param currentBuildNumber The build number of the current build
      * @param listener BuildListener used for writing to logger
+     * @param workspace FilePath of build workspace
+     * @param linesForFile lines of the test suite file, used to resolve the package of each test
      * @param tests TreeMap of all the tests being considered for prioritization
+     * @param statistics decayed statistics of the job if decayHalfLife is set; null otherwise
+     * @param history records of the builds within the failure and execution windows if decayHalfLife is not set;
+     *                null otherwise
+     * @param weights weight of each signal of the test scores
      *
      * @return ArrayList of TestPriority objects sorted with high priority tests at the beginning of the list
      */
     private ArrayList<TestPriority> prioritizeTests(Run<?, ?> build,
                                                     int currentBuildNumber,
                                                     BuildListener listener,
-                                                    TreeMap<String, TestPriority> tests) {
-        ArrayList<String> foundTests = new ArrayList<>();
-        ArrayList<String> testNames = new ArrayList<>(tests.keySet());
+                                                    FilePath workspace,
+                                                    ArrayList<String> linesForFile,
+                                                    TreeMap<String, TestPriority> tests,
+                                                    TestStatistics statistics,
+                                                    TestHistoryWindow history,
+                                                    double[] weights)
+            throws IOException, InterruptedException {
+        // the suite file may list tests without the package their results are recorded under
+        HashMap<String, Integer> testIds = TestIdTable.forJob(build.getParent())
+                .getSuiteIds(linesForFile, new ArrayList<>(tests.keySet()));
+        ArrayList<TestPriority> sortedTests = new ArrayList<>(tests.values());
 
-        /* DEBUG CODE
-        for (String t : testNames)
-            listener.getLogger().println("keys: " + t);
-        */
+        // expected failure likelihood and duration of each test in sortedTests
+        double[] likelihoods = new double[sortedTests.size()];
+        double[] durations = new double[sortedTests.size()];
+
+        // mark tests from their history and set the failure and staleness signals
+        if (statistics != null) {
+            scoreByDecayedStatistics(currentBuildNumber, testIds, statistics, tests);
+            for (int i = 0; i < sortedTests.size(); i++) {
+                int id = testIds.get(sortedTests.get(i).getClassName());
+                likelihoods[i] = statistics.getFailureLikelihood(id, currentBuildNumber);
+                durations[i] = statistics.getSmoothedDuration(id);
+            }
+        } else {
+            prioritizeByWindows(currentBuildNumber, listener, testIds, history, tests);
+            estimateFromWindow(testIds, history, sortedTests, likelihoods, durations);
+        }
+        setDurationSignals(sortedTests, durations);
+        setNewOrModifiedSignals(build, workspace, testIds, linesForFile, tests);
 
-        // continue iterating until i reaches failureWindow or executionWindow, whichever is larger
-        for (int i = 0; i < failureWindow || i < executionWindow; i++) {
-            build = build.getPreviousBuild();
+        if (useChangeHistory)
+            prioritizeByChangeHistory(build, listener, testIds, tests);
 
-            if (build == null) break;
-            if (!RESULTS_TO_CONSIDER.contains(build.getResult())) continue; // build failed = no test results
+        for (TestPriority testPriority : sortedTests) {
+            if ((currentBuildNumber - testPriority.getPreviousPrioritizedBuildNum()) > priorityWindow) {
+                // test has not been prioritized within priorityWindow
 
-            AbstractTestResultAction testResultAction = build.getAction(AbstractTestResultAction.class);
-            if (testResultAction == null) continue;
+                listener.getLogger().println(testPriority.getClassName() + " not prioritized w/in window"); // <-- for debugging
+                listener.getLogger().println("Prioritizing " + testPriority.getClassName());                // <-- for debugging
+                listener.getLogger().println();                                                             // <-- for debugging
 
-            Object object = testResultAction.getResult();
-            if (object instanceof TestResult) {
-                TestResult result = (TestResult) object;
-                ArrayList<String> testsFailedThisBuild = new ArrayList<>();
+                // prioritize test and set previous prioritized build number to currentBuildNum
+                testPriority.setHighPriority();
+                testPriority.setPreviousPrioritizedBuildNum(currentBuildNumber);
+            }
+        }
 
-                Boolean withinExecutionWindow = i < this.getExecutionWindow();
-                Boolean withinFailureWindow = i < this.getFailureWindow();
-                collect(result, testsFailedThisBuild, foundTests, withinExecutionWindow, withinFailureWindow);
+        if (rankByDuration) {
+            // within each priority, rank on expected failures per second of test time
+            scoreByDuration(sortedTests, likelihoods, durations);
+        } else {
+            // within each priority, rank by the weighted signals
+            for (TestPriority testPriority : sortedTests)
+                testPriority.scoreSignals(weights);
+        }
+        Collections.sort(sortedTests);
 
-                // failing tests within failure window should be selected; don't add duplicates
-                for (String testName : testsFailedThisBuild) {
-                    if (tests.containsKey(testName)) {
+        return sortedTests;
+    }
 
-                        listener.getLogger().println(testName + " failed a build"); // <-- for debugging
-                        listener.getLogger().println("Prioritizing " + testName);   // <-- for debugging
-                        listener.getLogger().println();                             // <-- for debugging
+    /**
+     * Prioritizes tests that failed within the failure window or were not executed within the execution window,
+     * and sets their failure and staleness signals from the windows
+     *
+     * @param currentBuildNumber The build number of the current build
+     * @param listener BuildListener used for writing to logger
+     * @param testIds ID of each test by name, see TestIdTable.getSuiteIds
+     * @param history records of the builds within the failure and execution windows
+     * @param tests TreeMap of all the tests being considered for prioritization
+     */
+    private void prioritizeByWindows(int currentBuildNumber,
+                                     BuildListener listener,
+                                     HashMap<String, Integer> testIds,
+                                     TestHistoryWindow history,
+                                     TreeMap<String, TestPriority> tests)
+            throws IOException {
+        // IDs of the tests executed within the execution window and failed within the failure window
+        BitSet foundTests = history.executedWithin(executionWindow);
+        BitSet failedTests = history.failedWithin(failureWindow);
+        int[] executionCounts = history.executionCounts(failureWindow);
+        int[] failureCounts = history.failureCounts(failureWindow);
+        int[] buildsSinceExecuted = history.buildsSinceExecuted();
+
+        for (TestPriority testPriority : tests.values()) {
+            String testName = testPriority.getClassName();
+            int id = testIds.get(testName);
+
+            // failure rate within the failure window; staleness grows to 1 over the execution window, and tests
+            // not executed at all are the most stale
+            int executions = id >= 0 && id < executionCounts.length ? executionCounts[id] : 0;
+            int failures = id >= 0 && id < failureCounts.length ? failureCounts[id] : 0;
+            int age = id >= 0 && id < buildsSinceExecuted.length ? buildsSinceExecuted[id] : -1;
+            testPriority.setSignal(TestPriority.FAILURE, executions > 0 ? failures / (double) executions : 0);
+            testPriority.setSignal(TestPriority.STALENESS,
+                    age < 0 ? 1 : age / (double) Math.max(executionWindow, 1));
+
+            // failing tests within failure window should be prioritized
+            if (id >= 0 && failedTests.get(id)) {
+
+                listener.getLogger().println(testName + " failed a build"); // <-- for debugging
+                listener.getLogger().println("Prioritizing " + testName);   // <-- for debugging
+                listener.getLogger().println();                             // <-- for debugging
 
-                        TestPriority testPriority = tests.get(testName);
-                        testPriority.setHighPriority();
-                        testPriority.setPreviousPrioritizedBuildNum(currentBuildNumber);
-                    }
-                }
+                testPriority.setHighPriority();
+                testPriority.setPreviousPrioritizedBuildNum(currentBuildNumber);
             }
-        }
 
-        // tests not found have not been executed within execution window and should be selected
-        for (String test : testNames) {
-            if (!foundTests.contains(test) && tests.containsKey(test)) {
+            // tests not found have not been executed within execution window and should be selected
+            if (id < 0 || !foundTests.get(id)) {
 
-                listener.getLogger().println(test + " not found within execution window"); // <-- for debugging
-                listener.getLogger().println("Prioritizing " + test);                      // <-- for debugging
-                listener.getLogger().println();                                            // <-- for debugging
+                listener.getLogger().println(testName + " not found within execution window"); // <-- for debugging
+                listener.getLogger().println("Prioritizing " + testName);                      // <-- for debugging
+                listener.getLogger().println();                                                // <-- for debugging
 
-                tests.get(test).setHighPriority();
+                testPriority.setHighPriority();
             }
         }
+    }
 
-        ArrayList<TestPriority> sortedTests = new ArrayList<>(tests.values());
+    /**
+     * Prioritizes tests that failed unusually often in earlier builds changing the files changed in this build;
+     * see {@link ChangeFailureLift}
+     *
+     * @param build The current build
+     * @param listener BuildListener used for writing to logger
+     * @param testIds ID of each test by name, see TestIdTable.getSuiteIds
+     * @param tests TreeMap of all the tests being considered for prioritization
+     */
+    private void prioritizeByChangeHistory(Run<?, ?> build,
+                                           BuildListener listener,
+                                           HashMap<String, Integer> testIds,
+                                           TreeMap<String, TestPriority> tests)
+            throws IOException {
+        BitSet associatedTests = ChangeFailureLift.forJob(build.getParent())
+                .getAssociatedTests(ChangeFailureLift.changedFiles(build));
+
+        for (TestPriority testPriority : tests.values()) {
+            String testName = testPriority.getClassName();
+            int id = testIds.get(testName);
+            if (id < 0 || !associatedTests.get(id))
+                continue;
+
+            listener.getLogger().println(testName + " failed in earlier builds changing the same files"); // <-- for debugging
+            listener.getLogger().println("Prioritizing " + testName);                                    // <-- for debugging
+            listener.getLogger().println();                                                              // <-- for debugging
+
+            testPriority.setHighPriority();
+        }
+    }
 
-        for (TestPriority testPriority : sortedTests) {
-            if ((currentBuildNumber - testPriority.getPreviousPrioritizedBuildNum()) > priorityWindow) {
-                // test has not been prioritized within priorityWindow
+    /**
+     * Gets the decayed statistics of the job, applying any builds within the window they have not seen yet
+     * (e.g. builds completed before the half-life was set)
+     *
+     * @param build The current build
+     * @param currentBuildNumber The build number of the current build
+     * @return up to date statistics for the job
+     */
+    private TestStatistics getStatistics(Run<?, ?> build, int currentBuildNumber)
+            throws IOException, InterruptedException {
+        TestStatistics statistics = TestStatistics.forJob(build.getParent());
+
+        // statistics enabled on a job with a long history start from the window rather than the first build
+        int missingBuilds = Math.min(currentBuildNumber - 1 - statistics.getLastBuildNumber(decayHalfLife),
+                                     Math.max(failureWindow, executionWindow));
+        if (missingBuilds > 0) {
+            TestHistoryIndex historyIndex = TestHistoryIndex.forJob(build.getParent());
+            TestHistoryWindow history = historyIndex.getWindow(build, missingBuilds, historyLoadThreads);
+            statistics.apply(history.getRecords(), decayHalfLife);
+        }
 
-                listener.getLogger().println(testPriority.getClassName() + " not prioritized w/in window"); // <-- for debugging
-                listener.getLogger().println("Prioritizing " + testPriority.getClassName());                // <-- for debugging
-                listener.getLogger().println();                                                             // <-- for debugging
+        return statistics;
+    }
 
-                // prioritize test and set previous prioritized build number to currentBuildNum
+    /**
+     * Sets the failure and staleness signals of tests from their decayed failure score and how stale their last
+     * execution is; the statistics are updated incrementally as builds complete, so no window of builds is
+     * re-scanned
+     *
+     * @param currentBuildNumber The build number of the current build
+     * @param testIds ID of each test by name, see TestIdTable.getSuiteIds
+     * @param statistics decayed statistics of the job
+     * @param tests TreeMap of all the tests being considered for prioritization
+     */
+    private void scoreByDecayedStatistics(int currentBuildNumber,
+                                          HashMap<String, Integer> testIds,
+                                          TestStatistics statistics,
+                                          TreeMap<String, TestPriority> tests)
+            throws IOException {
+        double decay = TestStatistics.decayFactor(decayHalfLife);
+        for (TestPriority testPriority : tests.values()) {
+            int id = testIds.get(testPriority.getClassName());
+            double failureScore = statistics.getFailureScore(id, currentBuildNumber);
+
+            // staleness grows from 0 towards 1 while a test is not executed; tests never executed are the most stale
+            int buildsSinceExecuted = statistics.getBuildsSinceExecuted(id, currentBuildNumber);
+            double staleness = buildsSinceExecuted < 0 ? 1 : 1 - Math.pow(decay, buildsSinceExecuted);
+
+            // the failure score is unbounded; map it to between 0 and 1
+            testPriority.setSignal(TestPriority.FAILURE, failureScore / (1 + failureScore));
+            testPriority.setSignal(TestPriority.STALENESS, staleness);
+
+            // a failure within about one half-life, or no execution at all, still puts the test up front
+            if (failureScore >= 0.5) {
                 testPriority.setHighPriority();
                 testPriority.setPreviousPrioritizedBuildNum(currentBuildNumber);
+            } else if (buildsSinceExecuted < 0) {
+                testPriority.setHighPriority();
             }
         }
+    }
 
-        // sort the tests according to priority value
-        Collections.sort(sortedTests);
+    /**
+     * Estimates failure likelihood and duration of each test from the builds within the failure window
+     *
+     * @param testIds ID of each test by name, see TestIdTable.getSuiteIds
+     * @param history records of the previous builds
+     * @param tests tests to estimate
+     * @param likelihoods receives the estimated failure likelihood of each test
+     * @param durations receives the smoothed duration of each test, or -1 if unknown
+     */
+    private void estimateFromWindow(HashMap<String, Integer> testIds,
+                                    TestHistoryWindow history,
+                                    ArrayList<TestPriority> tests,
+                                    double[] likelihoods,
+                                    double[] durations)
+            throws IOException {
+        int[] executionCounts = history.executionCounts(failureWindow);
+        int[] failureCounts = history.failureCounts(failureWindow);
+        double[] smoothedDurations = history.smoothedDurations();
+
+        for (int i = 0; i < tests.size(); i++) {
+            int id = testIds.get(tests.get(i).getClassName());
+            int executions = id >= 0 && id < executionCounts.length ? executionCounts[id] : 0;
+            int failures = id >= 0 && id < failureCounts.length ? failureCounts[id] : 0;
+
+            // Laplace-smoothed failure rate; tests without executions in the window get 0.5
+            likelihoods[i] = (failures + 1.0) / (executions + 2.0);
+            durations[i] = id >= 0 && id < smoothedDurations.length ? smoothedDurations[id] : -1;
+        }
+    }
 
-        return sortedTests;
+    /**
+     * Sets the duration signal of each test: 0.5 for a test of average duration, towards 1 for shorter tests and
+     * towards 0 for longer ones
+     *
+     * @param tests tests to set the signal of
+     * @param durations expected duration of each test in seconds, or -1 if unknown
+     */
+    private static void setDurationSignals(ArrayList<TestPriority> tests, double[] durations) {
+        double totalDuration = 0;
+        int knownDurations = 0;
+        for (double duration : durations) {
+            if (duration >= 0) {
+                totalDuration += duration;
+                knownDurations++;
+            }
+        }
+        double averageDuration = Math.max(knownDurations > 0 ? totalDuration / knownDurations : 1, MIN_DURATION);
+
+        for (int i = 0; i < tests.size(); i++) {
+            // tests without a known duration are expected to take as long as the average test
+            double duration = durations[i] >= 0 ? Math.max(durations[i], MIN_DURATION) : averageDuration;
+            tests.get(i).setSignal(TestPriority.DURATION, averageDuration / (averageDuration + duration));
+        }
+    }
+
+    /**
+     * Sets the new or modified signal of tests that have no history yet or whose source changed in the build
+     *
+     * @param build The current build
+     * @param workspace FilePath of build workspace
+     * @param testIds ID of each test by name, see TestIdTable.getSuiteIds
+     * @param linesForFile lines of the test suite file, used to resolve the package of each test
+     * @param tests TreeMap of all the tests being considered for prioritization
+     */
+    private static void setNewOrModifiedSignals(Run<?, ?> build,
+                                                FilePath workspace,
+                                                HashMap<String, Integer> testIds,
+                                                ArrayList<String> linesForFile,
+                                                TreeMap<String, TestPriority> tests)
+            throws IOException, InterruptedException {
+        HashMap<String, String> testsByClassName =
+                ClassNames.testsByClassName(linesForFile, new ArrayList<>(tests.keySet()));
+        ArrayList<String> changedClasses =
+                ClassNames.fromSourcePaths(workspace, ChangeFailureLift.changedFiles(build));
+
+        for (String className : changedClasses) {
+            String test = testsByClassName.get(className);
+            if (test != null)
+                tests.get(test).setSignal(TestPriority.NEW_OR_MODIFIED, 1);
+        }
+        for (TestPriority testPriority : tests.values()) {
+            if (testIds.get(testPriority.getClassName()) < 0)
+                testPriority.setSignal(TestPriority.NEW_OR_MODIFIED, 1);
+        }
+    }
+
+    /**
+     * Scores each test with its failure likelihood divided by its expected duration
+     *
+     * @param tests tests to score
+     * @param likelihoods estimated failure likelihood of each test
+     * @param durations expected duration of each test in seconds, or -1 if unknown
+     */
+    private static void scoreByDuration(ArrayList<TestPriority> tests, double[] likelihoods, double[] durations) {
+        // tests without a known duration are expected to take as long as the average test
+        double totalDuration = 0;
+        int knownDurations = 0;
+        for (double duration : durations) {
+            if (duration >= 0) {
+                totalDuration += duration;
+                knownDurations++;
+            }
+        }
+        double averageDuration = knownDurations > 0 ? totalDuration / knownDurations : 1;
+
+        for (int i = 0; i < tests.size(); i++) {
+            double duration = durations[i] >= 0 ? durations[i] : averageDuration;
+            tests.get(i).setScore(likelihoods[i] / Math.max(duration, MIN_DURATION));
+        }
     }
 
     /**
-     * Generates includesFile to be used by build script
+     * Writes the prioritized tests in the configured output format and the previous prioritized build file
      *
      * @param workspace FilePath of build workspace
      * @param sortedTests ArrayList of TestPriority objects sorted by priority
@@ -565,38 +979,20 @@ public class TestCasePrioritizer extends Builder {
                             ArrayList<TestPriority> testList,
                             ArrayList<String> linesForFile)
             throws IOException, InterruptedException {
-        // try to re-write the testSuiteFile to use for this build
-        // and update the LAST_PRIORITIZED_FILE
-        try (OutputStream osSuiteFile = workspace.child(testSuiteFile).write();
-             OutputStreamWriter oswSuiteFile = new OutputStreamWriter(osSuiteFile, Charsets.UTF_8);
-             PrintWriter pwSuiteFile = new PrintWriter(oswSuiteFile);
+        if (TestOutput.isSuite(outputFormat)) {
+            // try to re-write the testSuiteFile to use for this build
+            writeSuiteFile(workspace, testSuiteFile, linesForFile, classNames(sortedTests));
+        } else {
+            // the test suite file is left untouched so the test sources need not be recompiled
+            TestOutput.write(workspace, outputFile, outputFormat,
+                    TestOutput.qualifiedNames(linesForFile, classNames(sortedTests)));
+        }
 
-             OutputStream osPriorityWindowFile = workspace.child(LAST_PRIORITIZED_FILE).write();
+        // update the LAST_PRIORITIZED_FILE
+        try (OutputStream osPriorityWindowFile = workspace.child(LAST_PRIORITIZED_FILE).write();
              OutputStreamWriter oswPriorityWindowFile = new OutputStreamWriter(osPriorityWindowFile, Charsets.UTF_8);
              PrintWriter pwPriorityWindowFile = new PrintWriter(oswPriorityWindowFile)) {
 
-            // for each line that was originally in the test suite file, excluding the original ordering
-            // of tests, write the line into the new file
-            for (String line : linesForFile) {
-                pwSuiteFile.println(line);
-
-                // after the start of the SuiteClasses annotation, write the tests in prioritized order
-                if (line.equals(ANNOTATION_START_1) || line.equals(ANNOTATION_START_2)) {
-                    TestPriority testPriority;
-                    if (!sortedTests.isEmpty()) {
-                        for (int i = 0; i < sortedTests.size() - 1; i++) {
-                            testPriority = sortedTests.get(i);
-                            pwSuiteFile.println(testPriority.getClassName() + ",");
-                        }
-                    }
-                    if (!sortedTests.isEmpty()) {
-                        testPriority = sortedTests.get(sortedTests.size() - 1);
-                        pwSuiteFile.println(testPriority.getClassName());
-                    }
-                    pwSuiteFile.println(ANNOTATION_END);
-                }
-            }
-
             // for every test in the project, write the last build it was prioritized to a file
             for (TestPriority test : testList) {
                 pwPriorityWindowFile.println(test.getClassName()
@@ -604,10 +1000,6 @@ public class TestCasePrioritizer extends Builder {
             }
 
             // make sure to close all the things
-            pwSuiteFile.close();
-            oswSuiteFile.close();
-            osSuiteFile.close();
-
             pwPriorityWindowFile.close();
             oswPriorityWindowFile.close();
             osPriorityWindowFile.close();
@@ -615,19 +1007,146 @@ public class TestCasePrioritizer extends Builder {
     }
 
     /**
+     * Writes a test suite file with the tests in its @SuiteClasses annotation
+     *
+     * @param workspace FilePath of build workspace
+     * @param suiteFile path of the suite file to write, relative to the workspace
+     * @param linesForFile ArrayList of lines for test suite file to rewrite the file
+     * @param testNames names of the tests in prioritized order
+     */
+    private static void writeSuiteFile(FilePath workspace,
+                                       String suiteFile,
+                                       ArrayList<String> linesForFile,
+                                       ArrayList<String> testNames)
+            throws IOException, InterruptedException {
+        TestSuiteFile.write(workspace, suiteFile, linesForFile, testNames);
+    }
+
+    private static ArrayList<String> classNames(ArrayList<TestPriority> tests) {
+        ArrayList<String> classNames = new ArrayList<>();
+        for (TestPriority testPriority : tests)
+            classNames.add(testPriority.getClassName());
+        return classNames;
+    }
+
+    /**
+     * Writes the prioritized order of the tests and, for each test, the tests that failed in the same builds
+     * within the failure window, most often first. Both files use fully qualified class names.
+     *
+     * @param build The current build
+     * @param workspace FilePath of build workspace
+     * @param sortedTests ArrayList of TestPriority objects sorted by priority
+     * @param linesForFile ArrayList of lines for test suite file
+     */
+    private void buildRankingFiles(Run<?, ?> build,
+                                   FilePath workspace,
+                                   ArrayList<TestPriority> sortedTests,
+                                   ArrayList<String> linesForFile)
+            throws IOException, InterruptedException {
+        ArrayList<String> testNames = classNames(sortedTests);
+        ArrayList<String> qualifiedNames = TestOutput.qualifiedNames(linesForFile, testNames);
+        TestOutput.write(workspace, RANKING_FILE, TestOutput.LIST, qualifiedNames);
+
+        HashMap<String, Integer> testIds = TestIdTable.forJob(build.getParent())
+                .getSuiteIds(linesForFile, testNames);
+        TestHistoryWindow history = TestHistoryIndex.forJob(build.getParent())
+                .getWindow(build, failureWindow, historyLoadThreads);
+        HashMap<Integer, HashMap<Integer, Integer>> coFailureCounts = history.coFailureCounts(failureWindow);
+
+        // qualified name of each test in the suite by ID; tests no longer in the suite, and tests without an ID
+        // yet, are left out
+        HashMap<Integer, String> qualifiedNamesById = new HashMap<>();
+        for (int i = 0; i < testNames.size(); i++) {
+            int id = testIds.get(testNames.get(i));
+            if (id >= 0)
+                qualifiedNamesById.put(id, qualifiedNames.get(i));
+        }
+
+        try (OutputStream osCoFailuresFile = workspace.child(CO_FAILURES_FILE).write();
+             OutputStreamWriter oswCoFailuresFile = new OutputStreamWriter(osCoFailuresFile, Charsets.UTF_8);
+             PrintWriter pwCoFailuresFile = new PrintWriter(oswCoFailuresFile)) {
+
+            for (Map.Entry<Integer, HashMap<Integer, Integer>> entry : coFailureCounts.entrySet()) {
+                if (!qualifiedNamesById.containsKey(entry.getKey()))
+                    continue;
+
+                final HashMap<Integer, Integer> counts = entry.getValue();
+                ArrayList<Integer> coFailing = new ArrayList<>(counts.keySet());
+                coFailing.retainAll(qualifiedNamesById.keySet());
+                if (coFailing.isEmpty())
+                    continue;
+
+                Collections.sort(coFailing, new Comparator<Integer>() {
+                    public int compare(Integer a, Integer b) {
+                        int byCount = Integer.compare(counts.get(b), counts.get(a));
+                        return byCount != 0 ? byCount : Integer.compare(a, b);
+                    }
+                });
+
+                StringBuilder line = new StringBuilder(qualifiedNamesById.get(entry.getKey())).append(":");
+                for (int i = 0; i < coFailing.size(); i++)
+                    line.append(i == 0 ? "" : " ").append(qualifiedNamesById.get(coFailing.get(i)));
+                pwCoFailuresFile.println(line);
+            }
+        }
+    }
+
+    /**
+     * Splits the prioritized tests into shards of balanced predicted duration and writes a file for each
+     *
+     * @param build The current build
+     * @param listener BuildListener used for writing to logger
+     * @param workspace FilePath of build workspace
+     * @param sortedTests ArrayList of TestPriority objects sorted by priority
+     * @param linesForFile ArrayList of lines for test suite file to rewrite the file
+     */
+    private void buildShardFiles(Run<?, ?> build,
+                                 BuildListener listener,
+                                 FilePath workspace,
+                                 ArrayList<TestPriority> sortedTests,
+                                 ArrayList<String> linesForFile)
+            throws IOException, InterruptedException {
+        ArrayList<String> testNames = classNames(sortedTests);
+
+        HashMap<String, Integer> testIds = TestIdTable.forJob(build.getParent())
+                .getSuiteIds(linesForFile, testNames);
+        TestHistoryWindow history = TestHistoryIndex.forJob(build.getParent())
+                .getWindow(build, executionWindow, historyLoadThreads);
+        double[] durations = history.predictDurations(testIds, testNames);
+
+        double[] shardDurations = new double[shardCount];
+        ArrayList<ArrayList<String>> shards = TestShards.partition(testNames, durations, shardCount, shardDurations);
+
+        for (int shard = 1; shard <= shardCount; shard++) {
+            ArrayList<String> shardTests = shards.get(shard - 1);
+            String shardFile;
+
+            if (TestOutput.isSuite(outputFormat)) {
+                shardFile = TestShards.shardFile(testSuiteFile, shard);
+                writeSuiteFile(workspace, shardFile, TestShards.shardLines(linesForFile, testSuiteFile, shard),
+                        shardTests);
+            } else {
+                shardFile = TestShards.shardFile(outputFile, shard);
+                TestOutput.write(workspace, shardFile, outputFormat,
+                        TestOutput.qualifiedNames(linesForFile, shardTests));
+            }
+
+            listener.getLogger().println(shardFile + ": " + shardTests.size() + " tests, predicted duration "
+                    + shardDurations[shard - 1] + " seconds");
+        }
+    }
+
+    /**
+     * Reads LAST_PRIORITIZED_FILE to get the last build number where each test was prioritized; used for the
+     * priority window check
      *
      * @param workspace FilePath for current build workspace
-     * @param listener BuildListener object; used to write to build's logger
-     * @param relevantTests TreeMap containing tests relevant to changes to version control
-     * @param allTests TreeMap containing all tests found in Test Suite File
+     * @param listener TaskListener object; used to write to build's logger
+     * @return the last prioritized build number by test; empty if the file does not exist
      */
-    private void setPreviousPrioritizedBuildNums(FilePath workspace,
-                                                 BuildListener listener,
-                                                 TreeMap<String, TestPriority> relevantTests,
-                                                 TreeMap<String, TestPriority> allTests)
+    private HashMap<String, Integer> readPreviousPrioritizedBuildNums(FilePath workspace, TaskListener listener)
             throws IOException, InterruptedException {
-        // read LAST_PRIORITIZED_FILE to get the last build number where each test was prioritized
-        // used for the priority window check
+        HashMap<String, Integer> previousPrioritizedBuildNums = new HashMap<>();
         try {
             InputStream inputStream = workspace.child(LAST_PRIORITIZED_FILE).read();
             InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charsets.UTF_8);
@@ -637,11 +1156,7 @@ public class TestCasePrioritizer extends Builder {
             String line;
             while ((line = bufferedReader.readLine()) != null) {
                 String[] splitLine = line.split(":");
-                // set the build number in each of the TreeMaps holding TestPriority objects
-                if (relevantTests.containsKey(splitLine[0]))
-                    relevantTests.get(splitLine[0]).setPreviousPrioritizedBuildNum(Integer.parseInt(splitLine[1]));
-                if (allTests.containsKey(splitLine[0]))
-                    allTests.get(splitLine[0]).setPreviousPrioritizedBuildNum(Integer.parseInt(splitLine[1]));
+                previousPrioritizedBuildNums.put(splitLine[0], Integer.parseInt(splitLine[1]));
             }
             // close all the things
             bufferedReader.close();
@@ -653,47 +1168,35 @@ public class TestCasePrioritizer extends Builder {
         } catch (NoSuchFileException e) {
             listener.getLogger().println("no such file : " + LAST_PRIORITIZED_FILE);
         }
+        return previousPrioritizedBuildNums;
     }
 
     /**
-     * Collect test names from a build into two lists: found and failed
-     *
-     * @param testResult TestResult object from the current build
-     * @param failed ArrayList that will hold names of tests found to be failing
-     * @param found ArrayList holding all tests discovered in the collection process
-     * @param withinExWindow Boolean value specifying if current iteration is within the execution window
-     * @param withinFailWindow Boolean value specifying if iteration is within failure window
+     * @return the threads running the phases of perform(), shared by all builds; idle threads exit after a minute
      */
-    static private void collect(TestResult testResult,
-                                ArrayList<String> failed,
-                                ArrayList<String> found,
-                                Boolean withinExWindow,
-                                Boolean withinFailWindow) {
-        if (testResult instanceof ClassResult) {
-            ClassResult classResult = (ClassResult) testResult;
-            String className;
-            String pkgName = classResult.getParent().getName();
-
-            if (pkgName.equals("(root)"))
-                pkgName = "";
-            else
-                pkgName += '.';
-            className = pkgName + classResult.getName() + ".class";
-            // System.out.println("Collect: " + className); // <-- for debugging
-
-            if (withinExWindow && !found.contains(className)) // don't add if outside of execution window
-                found.add(className);
-
-            if (withinFailWindow && classResult.getFailCount() > 0) // don't add if outside of failure window
-                failed.add(className);
+    private static synchronized ExecutorService phaseExecutor() {
+        if (phaseExecutor == null)
+            phaseExecutor = Executors.newCachedThreadPool(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "Test case prioritization"));
+        return phaseExecutor;
+    }
 
-            return; // no need to go deeper
-        }
-        if (testResult instanceof TabulatedResult) {
-            TabulatedResult tabulatedResult = (TabulatedResult) testResult;
-            for (TestResult child : tabulatedResult.getChildren()) {
-                collect(child, failed, found, withinExWindow, withinFailWindow);
-            }
+    /**
+     * Waits for a phase of perform() run on another thread
+     *
+     * @return the result of the phase
+     */
+    private static <T> T join(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof InterruptedException)
+                throw (InterruptedException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
         }
     }
 
@@ -748,6 +1251,126 @@ public class TestCasePrioritizer extends Builder {
             }
         }
 
+        public FormValidation doCheckHistoryLoadThreads(@QueryParameter String value)
+                throws IOException, ServletException {
+            try {
+                int input = Integer.parseInt(value);
+                if (input >= 0)
+                    return FormValidation.ok();
+                else
+                    return FormValidation.error("History load threads must be a positive number.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("History load threads must be a number.");
+            }
+        }
+
+        public FormValidation doCheckDecayHalfLife(@QueryParameter String value)
+                throws IOException, ServletException {
+            try {
+                int input = Integer.parseInt(value);
+                if (input >= 0)
+                    return FormValidation.ok();
+                else
+                    return FormValidation.error("Decay half-life must be a positive number.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Decay half-life must be a number.");
+            }
+        }
+
+        public FormValidation doCheckShardCount(@QueryParameter String value)
+                throws IOException, ServletException {
+            try {
+                int input = Integer.parseInt(value);
+                if (input >= 0)
+                    return FormValidation.ok();
+                else
+                    return FormValidation.error("Shard count must be a positive number.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Shard count must be a number.");
+            }
+        }
+
+        public ListBoxModel doFillOutputFormatItems() {
+            return TestOutput.formatItems();
+        }
+
+        public FormValidation doCheckOutputFile(@QueryParameter String value,
+                                                @QueryParameter String outputFormat)
+                throws IOException, ServletException {
+
+            if (!TestOutput.isSuite(outputFormat)) {
+                if (value.length() == 0)
+                    return FormValidation.error("To use this output format, you must set this value.");
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckAnalysisServicePort(@QueryParameter String value)
+                throws IOException, ServletException {
+            try {
+                int input = Integer.parseInt(value);
+                if (input >= 0 && input <= 65535)
+                    return FormValidation.ok();
+                else
+                    return FormValidation.error("Port must be between 0 and 65535.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Port must be a number.");
+            }
+        }
+
+        public ListBoxModel doFillDependencyAnalyzerItems() {
+            return BytecodeDependencyAnalysis.analyzerItems();
+        }
+
+        public FormValidation doCheckClassDirs(@QueryParameter String value,
+                                               @QueryParameter String dependencyAnalyzer)
+                throws IOException, ServletException {
+
+            if (BytecodeDependencyAnalysis.isBytecode(dependencyAnalyzer)) {
+                if (value.length() == 0)
+                    return FormValidation.error("To use the compiled classes analyzer, you must set this value.");
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckMaxDependencyDepth(@QueryParameter String value)
+                throws IOException, ServletException {
+            try {
+                int input = Integer.parseInt(value);
+                if (input >= 0)
+                    return FormValidation.ok();
+                else
+                    return FormValidation.error("Maximum dependency depth must be a positive number.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Maximum dependency depth must be a number.");
+            }
+        }
+
+        public FormValidation doCheckPreAnalysisTimeout(@QueryParameter String value)
+                throws IOException, ServletException {
+            try {
+                int input = Integer.parseInt(value);
+                if (input >= 0)
+                    return FormValidation.ok();
+                else
+                    return FormValidation.error("Background analysis timeout must be a positive number.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Background analysis timeout must be a number.");
+            }
+        }
+
+        public FormValidation doCheckScoreWeights(@QueryParameter String value)
+                throws IOException, ServletException {
+            try {
+                TestPriority.parseWeights(value);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
         public FormValidation doCheckTestSuiteFile(@QueryParameter String value)
                 throws IOException, ServletException {
             if (value.length() == 0)
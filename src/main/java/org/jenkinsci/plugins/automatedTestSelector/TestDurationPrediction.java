@@ -0,0 +1,26 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.model.InvisibleAction;
+
+/**
+ * Predicted duration of the tests selected for a build; compared with the actual duration
+ * when the build completes so the duration model can be checked.
+ */
+public class TestDurationPrediction extends InvisibleAction {
+
+    private final int selectedTests;
+    private final double predictedSeconds;
+
+    public TestDurationPrediction(int selectedTests, double predictedSeconds) {
+        this.selectedTests = selectedTests;
+        this.predictedSeconds = predictedSeconds;
+    }
+
+    public int getSelectedTests() {
+        return selectedTests;
+    }
+
+    public double getPredictedSeconds() {
+        return predictedSeconds;
+    }
+}
@@ -0,0 +1,342 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.init.Terminator;
+
+import hudson.model.Job;
+import hudson.model.Run;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Append-only per-job index of test history. Each completed build is stored as one line
+ * (see {@link BuildTestRecord#toLine()}) in the order the builds complete, so the prioritizer and selector can
+ * read their windows from the end of the file instead of loading the test results of old builds. Builds
+ * completing after a newer build, e.g. concurrent builds, are appended when they complete, unless they are more
+ * than MAX_OUT_OF_ORDER builds older than the newest build; a record is therefore at most MAX_OUT_OF_ORDER
+ * records away from its place in build number order.
+ */
+public class TestHistoryIndex {
+
+    // file in the job directory holding the index
+    private static final String INDEX_FILE = "testHistory.log";
+
+    // size of the blocks read when scanning the index backwards
+    private static final int CHUNK_SIZE = 8192;
+
+    // builds older than the newest indexed build by more than this are no longer indexed
+    static final int MAX_OUT_OF_ORDER = 100;
+
+    // one index per job so that appends from concurrent builds are serialized
+    private static final HashMap<String, TestHistoryIndex> INDEXES = new HashMap<>();
+
+    // threads loading the test results of builds missing from the indexes, shared by all jobs
+    private static ExecutorService loaderExecutor;
+
+    // orders records by build number, newest first
+    private static final Comparator<BuildTestRecord> NEWEST_FIRST = new Comparator<BuildTestRecord>() {
+        public int compare(BuildTestRecord a, BuildTestRecord b) {
+            return Integer.compare(b.getBuildNumber(), a.getBuildNumber());
+        }
+    };
+
+    private final File indexFile;
+
+    // build number of the newest record in the index; -1 until the index has been read
+    private int lastBuildNumber = -1;
+    // indexed builds within MAX_OUT_OF_ORDER of the newest one
+    private final TreeSet<Integer> indexedBuilds = new TreeSet<>();
+
+    TestHistoryIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * @param job The job owning the history
+     * @return the history index stored in the job's directory
+     */
+    public static synchronized TestHistoryIndex forJob(Job<?, ?> job) {
+        File file = new File(job.getRootDir(), INDEX_FILE);
+        TestHistoryIndex index = INDEXES.get(file.getPath());
+        if (index == null) {
+            index = new TestHistoryIndex(file);
+            INDEXES.put(file.getPath(), index);
+        }
+        return index;
+    }
+
+    /**
+     * @return build number of the newest record in the index, or 0 if the index is empty
+     */
+    public synchronized int getLastBuildNumber() throws IOException {
+        if (lastBuildNumber < 0) {
+            // every build within MAX_OUT_OF_ORDER of the newest one is among the last 2 * MAX_OUT_OF_ORDER records
+            lastBuildNumber = 0;
+            for (BuildTestRecord record : readBackwards(Integer.MAX_VALUE, 2 * MAX_OUT_OF_ORDER))
+                markIndexed(record.getBuildNumber());
+        }
+        return lastBuildNumber;
+    }
+
+    /**
+     * @param buildNumber number of a build
+     * @return true if the build is in the index, or too old to be indexed any more
+     */
+    synchronized boolean isIndexed(int buildNumber) throws IOException {
+        return buildNumber <= getLastBuildNumber() - MAX_OUT_OF_ORDER || indexedBuilds.contains(buildNumber);
+    }
+
+    /**
+     * @param count maximum number of records to return
+     * @return records of the newest builds in the index, newest first
+     */
+    public synchronized ArrayList<BuildTestRecord> getNewest(int count) throws IOException {
+        return readNewest(Integer.MAX_VALUE, count);
+    }
+
+    /**
+     * Appends a record to the index; records of builds that are indexed already, or too old to be indexed, are
+     * ignored
+     *
+     * @param record record of a completed build
+     */
+    public synchronized void append(BuildTestRecord record) throws IOException {
+        if (isIndexed(record.getBuildNumber()))
+            return;
+
+        try (OutputStream outputStream = new FileOutputStream(indexFile, true);
+             OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+             PrintWriter printWriter = new PrintWriter(outputStreamWriter)) {
+            printWriter.println(record.toLine());
+        }
+        markIndexed(record.getBuildNumber());
+    }
+
+    private void markIndexed(int buildNumber) {
+        indexedBuilds.add(buildNumber);
+        lastBuildNumber = Math.max(lastBuildNumber, buildNumber);
+        indexedBuilds.headSet(lastBuildNumber - MAX_OUT_OF_ORDER, true).clear();
+    }
+
+    /**
+     * Gets the records of the builds preceding a build, newest first. Builds that are missing from the
+     * index are read from their test results once and appended, so that later calls only touch the index.
+     * Every build since the last indexed one is appended, even beyond the window, and so are builds within
+     * MAX_OUT_OF_ORDER of it that completed after it, so the index has no gaps.
+     *
+     * @param build The current build
+     * @param size Number of previous builds to return
+     * @param loaderThreads Number of threads used to load builds missing from the index; 0 or 1 loads them serially
+     * @return records of up to size previous builds, newest first
+     */
+    public synchronized TestHistoryWindow getWindow(Run<?, ?> build, int size, int loaderThreads)
+            throws IOException, InterruptedException {
+        int last = getLastBuildNumber();
+        // an empty index starts with the window; builds older than it are not a gap
+        int limit = last > 0 ? Integer.MAX_VALUE : size;
+
+        // one pass over the builds that are missing from the index: those completed since the last indexed build,
+        // and older ones that completed after it; whether each build is still running is decided here once, for
+        // both loading and appending its record
+        ArrayList<Run<?, ?>> runs = new ArrayList<>();
+        BitSet running = new BitSet();
+        Run<?, ?> previous = build.getPreviousBuild();
+        while (previous != null && runs.size() < limit && previous.getNumber() > last - MAX_OUT_OF_ORDER) {
+            if (!isIndexed(previous.getNumber())) {
+                if (previous.isBuilding())
+                    running.set(runs.size());
+                runs.add(previous);
+            }
+            previous = previous.getPreviousBuild();
+        }
+
+        ArrayList<BuildTestRecord> loaded = loadRecords(runs, running, loaderThreads);
+
+        // builds still running are not appended, so they are loaded again once they have completed
+        ArrayList<BuildTestRecord> window = new ArrayList<>();
+        for (int i = runs.size() - 1; i >= 0; i--) {
+            if (running.get(i))
+                window.add(loaded.get(i));
+            else
+                append(loaded.get(i));
+        }
+
+        // the rest of the window comes from the index
+        window.addAll(readNewest(build.getNumber(), size));
+        Collections.sort(window, NEWEST_FIRST);
+        return new TestHistoryWindow(new ArrayList<>(window.subList(0, Math.min(size, window.size()))));
+    }
+
+    /**
+     * Loads the records of builds from their test results, with up to loaderThreads builds loaded at once on
+     * the shared loader threads. The records are returned in the same order as the builds regardless of which
+     * finishes first.
+     *
+     * @param runs builds to load
+     * @param running indexes of the builds that were still running; they get an empty record
+     * @param loaderThreads maximum number of builds loaded at once
+     * @return one record per build
+     */
+    private static ArrayList<BuildTestRecord> loadRecords(final ArrayList<Run<?, ?>> runs,
+                                                          final BitSet running,
+                                                          int loaderThreads)
+            throws IOException, InterruptedException {
+        final BuildTestRecord[] records = new BuildTestRecord[runs.size()];
+
+        if (loaderThreads <= 1 || runs.size() <= 1) {
+            for (int i = 0; i < runs.size(); i++)
+                records[i] = loadRecord(runs.get(i), running.get(i));
+            return new ArrayList<>(Arrays.asList(records));
+        }
+
+        // each worker takes the next build until none are left
+        final AtomicInteger next = new AtomicInteger();
+        ArrayList<Future<Void>> workers = new ArrayList<>();
+        try {
+            for (int worker = 0; worker < Math.min(loaderThreads, runs.size()); worker++) {
+                workers.add(loaderExecutor().submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        int i;
+                        while ((i = next.getAndIncrement()) < runs.size() && !Thread.interrupted())
+                            records[i] = loadRecord(runs.get(i), running.get(i));
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            for (Future<Void> worker : workers)
+                worker.cancel(true);
+        }
+
+        return new ArrayList<>(Arrays.asList(records));
+    }
+
+    private static BuildTestRecord loadRecord(Run<?, ?> run, boolean running) throws IOException {
+        if (running)
+            return new BuildTestRecord(run.getNumber(), false);
+        return BuildTestRecord.fromBuild(run);
+    }
+
+    private static synchronized ExecutorService loaderExecutor() {
+        // idle threads exit after a minute, so the pool holds no threads between builds
+        if (loaderExecutor == null)
+            loaderExecutor = Executors.newCachedThreadPool(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "Test history loader"));
+        return loaderExecutor;
+    }
+
+    /**
+     * Stops the loader threads when Jenkins shuts down
+     */
+    @Terminator
+    public static synchronized void shutdownLoaders() {
+        if (loaderExecutor != null) {
+            loaderExecutor.shutdownNow();
+            loaderExecutor = null;
+        }
+    }
+
+    /**
+     * Reads the newest records of the index; records appended out of order are at most MAX_OUT_OF_ORDER records
+     * away from their place, so reading that many more records finds all of them
+     *
+     * @param beforeBuildNumber only records of builds older than this are returned
+     * @param count maximum number of records to return
+     * @return up to count records, newest first
+     */
+    private ArrayList<BuildTestRecord> readNewest(int beforeBuildNumber, int count) throws IOException {
+        if (count <= 0)
+            return new ArrayList<>();
+        ArrayList<BuildTestRecord> records = readBackwards(beforeBuildNumber, count + MAX_OUT_OF_ORDER);
+        Collections.sort(records, NEWEST_FIRST);
+        return new ArrayList<>(records.subList(0, Math.min(count, records.size())));
+    }
+
+    /**
+     * Reads records from the end of the index
+     *
+     * @param beforeBuildNumber only records of builds older than this are returned
+     * @param count maximum number of records to return
+     * @return up to count records, the last appended first
+     */
+    private ArrayList<BuildTestRecord> readBackwards(int beforeBuildNumber, int count) throws IOException {
+        ArrayList<BuildTestRecord> records = new ArrayList<>();
+        if (count <= 0 || !indexFile.exists())
+            return records;
+
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+            long position = file.length();
+            byte[] chunk = new byte[CHUNK_SIZE];
+            // bytes of the line currently being read, in reverse order
+            byte[] line = new byte[256];
+            int lineLength = 0;
+
+            while (position > 0 && records.size() < count) {
+                int length = (int) Math.min(CHUNK_SIZE, position);
+                position -= length;
+                file.seek(position);
+                file.readFully(chunk, 0, length);
+
+                for (int i = length - 1; i >= 0 && records.size() < count; i--) {
+                    if (chunk[i] == '\n') {
+                        addRecord(records, line, lineLength, beforeBuildNumber);
+                        lineLength = 0;
+                    } else {
+                        if (lineLength == line.length)
+                            line = Arrays.copyOf(line, line.length * 2);
+                        line[lineLength++] = chunk[i];
+                    }
+                }
+            }
+
+            // first line of the file has no newline in front of it
+            if (position == 0 && records.size() < count)
+                addRecord(records, line, lineLength, beforeBuildNumber);
+        }
+
+        return records;
+    }
+
+    private static void addRecord(ArrayList<BuildTestRecord> records,
+                                  byte[] reversedLine,
+                                  int length,
+                                  int beforeBuildNumber) {
+        if (length == 0)
+            return;
+
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = reversedLine[length - 1 - i];
+
+        BuildTestRecord record = BuildTestRecord.fromLine(new String(bytes, Charsets.UTF_8));
+        if (record != null && record.getBuildNumber() < beforeBuildNumber)
+            records.add(record);
+    }
+}
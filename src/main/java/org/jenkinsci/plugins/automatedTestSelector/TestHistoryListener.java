@@ -0,0 +1,122 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.Extension;
+import hudson.FilePath;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Job;
+import hudson.model.Project;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import hudson.scm.ChangeLogSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Distills the test results of every completed build of a job using the plugin into a
+ * {@link TestOutcomeSummary} and appends it to the job's {@link TestHistoryIndex}, so the next build
+ * does not have to read the full test results of this one.
+ */
+@Extension
+public class TestHistoryListener extends RunListener<Run<?, ?>> {
+
+    @Override
+    public void onCompleted(Run<?, ?> run, TaskListener listener) {
+        // a build failing before its test selection step never awaits the analysis started at checkout
+        PreAnalysis.discard(run);
+
+        Job<?, ?> job = run.getParent();
+        if (!usesTestSelector(job))
+            return;
+
+        try {
+            // the test results of the build are still in memory at this point
+            BuildTestRecord record = BuildTestRecord.fromBuild(run);
+
+            if (record.hasResults()) {
+                run.addAction(TestOutcomeSummary.fromRecord(record));
+                run.save();
+                logPrediction(run, record, listener);
+                ChangeFailureLift lift = ChangeFailureLift.forJob(job);
+                lift.seed(job);
+                lift.apply(run.getNumber(), ChangeFailureLift.changedFiles(run), record.getFailed());
+            }
+
+            TestHistoryIndex.forJob(job).append(record);
+
+            int decayHalfLife = getDecayHalfLife(job);
+            if (decayHalfLife > 0)
+                TestStatistics.forJob(job).apply(Collections.singletonList(record), decayHalfLife);
+
+            if (run instanceof AbstractBuild)
+                CoChangeMap.forJob(job).record(changedClassesByCommit((AbstractBuild<?, ?>) run),
+                                               TestIdTable.forJob(job));
+        } catch (IOException exception) {
+            listener.getLogger().println("Could not record test history: " + exception.getMessage());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param build A completed build
+     * @return qualified names of the classes changed by each commit of the build
+     */
+    private static ArrayList<ArrayList<String>> changedClassesByCommit(AbstractBuild<?, ?> build)
+            throws IOException, InterruptedException {
+        ArrayList<ArrayList<String>> commits = new ArrayList<>();
+        FilePath workspace = build.getWorkspace();
+        if (workspace == null)
+            return commits;
+
+        for (ChangeLogSet.Entry entry : build.getChangeSet()) {
+            if (entry.getAffectedPaths() != null)
+                commits.add(ClassNames.fromSourcePaths(workspace, entry.getAffectedPaths()));
+        }
+        return commits;
+    }
+
+    /**
+     * Logs the predicted duration of the tests selected for a build next to their actual duration
+     */
+    private static void logPrediction(Run<?, ?> run, BuildTestRecord record, TaskListener listener) {
+        TestDurationPrediction prediction = run.getAction(TestDurationPrediction.class);
+        if (prediction == null)
+            return;
+
+        double actualSeconds = 0;
+        for (float duration : record.getDurations())
+            actualSeconds += duration;
+
+        listener.getLogger().println("Selected tests: " + prediction.getSelectedTests()
+                + ", executed test classes: " + record.getExecuted().cardinality());
+        listener.getLogger().println("Predicted test duration: " + prediction.getPredictedSeconds()
+                + " seconds, actual test duration: " + actualSeconds + " seconds");
+    }
+
+    /**
+     * @param job A Jenkins job
+     * @return true if the job has a TestCasePrioritizer or RegressionTestSelector build step
+     */
+    static boolean usesTestSelector(Job<?, ?> job) {
+        if (!(job instanceof Project))
+            return false;
+
+        Project<?, ?> project = (Project<?, ?>) job;
+        return project.getBuildersList().get(TestCasePrioritizer.class) != null
+                || project.getBuildersList().get(RegressionTestSelector.class) != null;
+    }
+
+    /**
+     * @param job A Jenkins job using the plugin
+     * @return decay half-life configured on the job's TestCasePrioritizer, or 0 if it has none
+     */
+    static int getDecayHalfLife(Job<?, ?> job) {
+        TestCasePrioritizer prioritizer = ((Project<?, ?>) job).getBuildersList().get(TestCasePrioritizer.class);
+        return prioritizer == null ? 0 : prioritizer.getDecayHalfLife();
+    }
+}
@@ -0,0 +1,186 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Execution/failure matrix of the builds preceding the current build, newest first.
+ * Window queries are OR-reductions over the per-build bitsets of test IDs.
+ */
+public class TestHistoryWindow {
+
+    private final ArrayList<BuildTestRecord> records;
+
+    public TestHistoryWindow(ArrayList<BuildTestRecord> records) {
+        this.records = records;
+    }
+
+    /**
+     * @return records of the previous builds, newest first
+     */
+    public List<BuildTestRecord> getRecords() {
+        return records;
+    }
+
+    /**
+     * @param window number of previous builds to consider
+     * @return IDs of the test classes executed within the window
+     */
+    public BitSet executedWithin(int window) {
+        BitSet executed = new BitSet();
+        for (int i = 0; i < window && i < records.size(); i++)
+            executed.or(records.get(i).getExecuted());
+        return executed;
+    }
+
+    /**
+     * @param window number of previous builds to consider
+     * @return IDs of the test classes that failed within the window
+     */
+    public BitSet failedWithin(int window) {
+        BitSet failed = new BitSet();
+        for (int i = 0; i < window && i < records.size(); i++)
+            failed.or(records.get(i).getFailed());
+        return failed;
+    }
+
+    /**
+     * @param window number of previous builds to consider
+     * @return number of builds within the window that executed each test, indexed by ID
+     */
+    public int[] executionCounts(int window) {
+        int[] counts = new int[0];
+        for (int i = 0; i < window && i < records.size(); i++) {
+            BitSet executed = records.get(i).getExecuted();
+            if (counts.length < executed.length())
+                counts = Arrays.copyOf(counts, executed.length());
+            for (int id = executed.nextSetBit(0); id >= 0; id = executed.nextSetBit(id + 1))
+                counts[id]++;
+        }
+        return counts;
+    }
+
+    /**
+     * @param window number of previous builds to consider
+     * @return number of builds within the window in which each test failed, indexed by ID
+     */
+    public int[] failureCounts(int window) {
+        int[] counts = new int[0];
+        for (int i = 0; i < window && i < records.size(); i++) {
+            BitSet failed = records.get(i).getFailed();
+            if (counts.length < failed.length())
+                counts = Arrays.copyOf(counts, failed.length());
+            for (int id = failed.nextSetBit(0); id >= 0; id = failed.nextSetBit(id + 1))
+                counts[id]++;
+        }
+        return counts;
+    }
+
+    /**
+     * @return number of builds since each test was last executed, indexed by ID; -1 for tests not executed
+     *         in any build of the window
+     */
+    public int[] buildsSinceExecuted() {
+        int[] age = new int[0];
+        for (int i = records.size() - 1; i >= 0; i--) {
+            BitSet executed = records.get(i).getExecuted();
+            if (age.length < executed.length()) {
+                int oldLength = age.length;
+                age = Arrays.copyOf(age, executed.length());
+                Arrays.fill(age, oldLength, age.length, -1);
+            }
+            // newer builds overwrite older ones; the previous build is 1 build ago
+            for (int id = executed.nextSetBit(0); id >= 0; id = executed.nextSetBit(id + 1))
+                age[id] = i + 1;
+        }
+        return age;
+    }
+
+    /**
+     * @param window number of previous builds to consider
+     * @return for each test ID that failed within the window, the number of builds in which each other test
+     *         failed together with it
+     */
+    public HashMap<Integer, HashMap<Integer, Integer>> coFailureCounts(int window) {
+        HashMap<Integer, HashMap<Integer, Integer>> counts = new HashMap<>();
+        for (int i = 0; i < window && i < records.size(); i++) {
+            BitSet failed = records.get(i).getFailed();
+            for (int id = failed.nextSetBit(0); id >= 0; id = failed.nextSetBit(id + 1)) {
+                for (int other = failed.nextSetBit(0); other >= 0; other = failed.nextSetBit(other + 1)) {
+                    if (other == id)
+                        continue;
+                    if (!counts.containsKey(id))
+                        counts.put(id, new HashMap<Integer, Integer>());
+                    Integer count = counts.get(id).get(other);
+                    counts.get(id).put(other, count == null ? 1 : count + 1);
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Smooths the durations of each test over the window, weighting newer builds more
+     *
+     * @return smoothed duration of each test in seconds, indexed by ID; -1 for tests not executed in the window
+     */
+    public double[] smoothedDurations() {
+        double[] durations = new double[0];
+        // oldest build first so the newest duration has the most weight
+        for (int i = records.size() - 1; i >= 0; i--) {
+            BuildTestRecord record = records.get(i);
+            BitSet executed = record.getExecuted();
+            if (durations.length < executed.length()) {
+                int oldLength = durations.length;
+                durations = Arrays.copyOf(durations, executed.length());
+                Arrays.fill(durations, oldLength, durations.length, -1);
+            }
+
+            int rank = 0;
+            for (int id = executed.nextSetBit(0); id >= 0; id = executed.nextSetBit(id + 1)) {
+                double duration = record.getDurations()[rank++];
+                if (durations[id] < 0)
+                    durations[id] = duration;
+                else
+                    durations[id] += TestStatistics.DURATION_SMOOTHING * (duration - durations[id]);
+            }
+        }
+        return durations;
+    }
+
+    /**
+     * Predicts the duration of tests from their smoothed durations; tests without a recorded duration are
+     * expected to take as long as the average test
+     *
+     * @param testIds ID of each test by name, see TestIdTable.getSuiteIds
+     * @param tests names of the tests
+     * @return predicted duration of each test in seconds
+     */
+    public double[] predictDurations(Map<String, Integer> testIds, List<String> tests) throws IOException {
+        double[] smoothedDurations = smoothedDurations();
+        double[] durations = new double[tests.size()];
+        double totalDuration = 0;
+        int knownDurations = 0;
+
+        for (int i = 0; i < tests.size(); i++) {
+            int id = testIds.get(tests.get(i));
+            durations[i] = id >= 0 && id < smoothedDurations.length ? smoothedDurations[id] : -1;
+            if (durations[i] >= 0) {
+                totalDuration += durations[i];
+                knownDurations++;
+            }
+        }
+
+        double averageDuration = knownDurations > 0 ? totalDuration / knownDurations : 1;
+        for (int i = 0; i < durations.length; i++) {
+            if (durations[i] < 0)
+                durations[i] = averageDuration;
+        }
+        return durations;
+    }
+}
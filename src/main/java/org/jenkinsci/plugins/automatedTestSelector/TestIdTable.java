@@ -0,0 +1,159 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.model.Job;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Per-job symbol table mapping test class names to dense integer IDs. IDs are never reused;
+ * the table is stored in the job directory with one name per line, where the line number is the ID.
+ */
+public class TestIdTable {
+
+    // file in the job directory holding the table
+    private static final String ID_FILE = "testIds.txt";
+
+    // suffix appended to the qualified test class names in the table
+    private static final String CLASS_SUFFIX = ".class";
+
+    // one table per job so that IDs are assigned consistently by concurrent builds
+    private static final HashMap<String, TestIdTable> TABLES = new HashMap<>();
+
+    private final File idFile;
+
+    private final ArrayList<String> names = new ArrayList<>();
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private boolean loaded = false;
+
+    TestIdTable(File idFile) {
+        this.idFile = idFile;
+    }
+
+    /**
+     * @param job The job owning the table
+     * @return the ID table stored in the job's directory
+     */
+    public static synchronized TestIdTable forJob(Job<?, ?> job) {
+        File file = new File(job.getRootDir(), ID_FILE);
+        TestIdTable table = TABLES.get(file.getPath());
+        if (table == null) {
+            table = new TestIdTable(file);
+            TABLES.put(file.getPath(), table);
+        }
+        return table;
+    }
+
+    /**
+     * @param className qualified class name, e.g. "com.foo.BarTest"
+     * @return name of the test class in the table, e.g. "com.foo.BarTest.class"
+     */
+    public static String testName(String className) {
+        return className + CLASS_SUFFIX;
+    }
+
+    /**
+     * @param name test class name in the table, see testName()
+     * @return ID of the test class, or -1 if it has never been interned
+     */
+    public synchronized int getId(String name) throws IOException {
+        load();
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Looks up the tests of a suite file, whose @SuiteClasses annotation may list them without the package their
+     * results are recorded under
+     *
+     * @param linesForFile lines of the test suite file, used to resolve the package of each test
+     * @param tests names of the tests as listed in the @SuiteClasses annotation
+     * @return ID of each test by its name in the annotation, or -1 for tests that have never been interned
+     */
+    public synchronized HashMap<String, Integer> getSuiteIds(List<String> linesForFile, List<String> tests)
+            throws IOException {
+        load();
+        ArrayList<String> qualifiedNames = TestOutput.qualifiedNames(linesForFile, tests);
+        HashMap<String, Integer> suiteIds = new HashMap<>();
+        for (int i = 0; i < tests.size(); i++) {
+            Integer id = ids.get(testName(qualifiedNames.get(i)));
+            suiteIds.put(tests.get(i), id == null ? -1 : id);
+        }
+        return suiteIds;
+    }
+
+    /**
+     * @param id ID returned by intern()
+     * @return the test class name for the ID
+     */
+    public synchronized String getName(int id) throws IOException {
+        load();
+        return names.get(id);
+    }
+
+    /**
+     * @return number of IDs assigned so far
+     */
+    public synchronized int size() throws IOException {
+        load();
+        return names.size();
+    }
+
+    /**
+     * Assigns IDs to test class names; names seen for the first time are appended to the table
+     *
+     * @param classNames names to intern
+     * @return IDs of the names, in the same order
+     */
+    public synchronized int[] intern(Collection<String> classNames) throws IOException {
+        load();
+
+        int[] result = new int[classNames.size()];
+        ArrayList<String> newNames = new ArrayList<>();
+        int i = 0;
+        for (String name : classNames) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = names.size();
+                names.add(name);
+                ids.put(name, id);
+                newNames.add(name);
+            }
+            result[i++] = id;
+        }
+
+        if (!newNames.isEmpty()) {
+            try (OutputStream outputStream = new FileOutputStream(idFile, true);
+                 OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+                 PrintWriter printWriter = new PrintWriter(outputStreamWriter)) {
+                for (String name : newNames)
+                    printWriter.println(name);
+            }
+        }
+
+        return result;
+    }
+
+    private void load() throws IOException {
+        if (loaded)
+            return;
+
+        if (idFile.exists()) {
+            try (InputStream inputStream = new FileInputStream(idFile);
+                 InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charsets.UTF_8);
+                 BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
+                String line;
+                while ((line = bufferedReader.readLine()) != null) {
+                    ids.put(line, names.size());
+                    names.add(line);
+                }
+            }
+        }
+        loaded = true;
+    }
+}
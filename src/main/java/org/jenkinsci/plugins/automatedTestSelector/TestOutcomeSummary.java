@@ -0,0 +1,49 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.model.InvisibleAction;
+
+import java.util.BitSet;
+
+/**
+ * Small per-build summary of the test outcomes, attached to a build when it completes.
+ * Test classes are identified by their IDs in the job's {@link TestIdTable}, so reading this action
+ * never requires the full JUnit result tree of the build.
+ */
+public class TestOutcomeSummary extends InvisibleAction {
+
+    // IDs of the test classes executed and failed by the build
+    private final BitSet executed;
+    private final BitSet failed;
+    // duration in seconds of each executed class, in ascending order of ID
+    private final float[] durations;
+
+    public TestOutcomeSummary(BitSet executed, BitSet failed, float[] durations) {
+        this.executed = executed;
+        this.failed = failed;
+        this.durations = durations;
+    }
+
+    public BitSet getExecuted() {
+        return executed;
+    }
+
+    public BitSet getFailed() {
+        return failed;
+    }
+
+    /**
+     * @param record record of a build with results
+     * @return summary holding the same outcomes as the record
+     */
+    public static TestOutcomeSummary fromRecord(BuildTestRecord record) {
+        return new TestOutcomeSummary(record.getExecuted(), record.getFailed(), record.getDurations());
+    }
+
+    /**
+     * @param buildNumber number of the build the summary belongs to
+     * @return record holding the outcomes of the summary
+     */
+    public BuildTestRecord toRecord(int buildNumber) {
+        return new BuildTestRecord(buildNumber, true, executed, failed, durations);
+    }
+}
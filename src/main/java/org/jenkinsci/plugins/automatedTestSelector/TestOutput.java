@@ -0,0 +1,177 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.FilePath;
+import hudson.util.ListBoxModel;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the prioritized or selected tests in a form a build tool can consume without recompiling
+ * the test sources, as an alternative to rewriting the @SuiteClasses annotation of the test suite file.
+ */
+public class TestOutput {
+
+    // rewrite the @SuiteClasses annotation of the test suite file
+    public static final String SUITE = "suite";
+    // Surefire/Failsafe includesFile, one class file pattern per line
+    public static final String SUREFIRE = "surefire";
+    // Gradle script to apply to the build, filtering the test task to the tests
+    public static final String GRADLE = "gradle";
+    // plain list of fully qualified class names in order
+    public static final String LIST = "list";
+
+    // separates a test class from the test methods to run, e.g. com.foo.BarTest#a+b
+    private static final char METHOD_SEPARATOR = '#';
+
+    // Surefire class pattern no test matches, written when no tests are selected
+    static final String NO_TESTS_PATTERN = "no/tests/Selected.java";
+
+    private TestOutput() {
+    }
+
+    /**
+     * @return the output formats for the configuration page
+     */
+    public static ListBoxModel formatItems() {
+        ListBoxModel items = new ListBoxModel();
+        items.add("Rewrite test suite file", SUITE);
+        items.add("Surefire/Failsafe includes file", SUREFIRE);
+        items.add("Gradle test filter", GRADLE);
+        items.add("Plain class list", LIST);
+        return items;
+    }
+
+    /**
+     * @param format configured output format; null or empty for the test suite file
+     * @return true if the tests are written into the test suite file
+     */
+    public static boolean isSuite(String format) {
+        return format == null || format.isEmpty() || format.equals(SUITE);
+    }
+
+    /**
+     * Resolves the names of tests in the test suite file (e.g. "FooTest.class") to fully qualified class names,
+     * using the imports and the package of the test suite file
+     *
+     * @param linesForFile lines of the test suite file
+     * @param tests names of the tests as listed in the @SuiteClasses annotation
+     * @return fully qualified class name of each test
+     */
+    public static ArrayList<String> qualifiedNames(List<String> linesForFile, List<String> tests) {
+        String packageName = "";
+        HashMap<String, String> imports = new HashMap<>();
+        for (String line : linesForFile) {
+            line = line.trim();
+            if (line.startsWith("package ") && line.endsWith(";")) {
+                packageName = line.substring("package ".length(), line.length() - 1).trim();
+            } else if (line.startsWith("import ") && !line.startsWith("import static ") && line.endsWith(";")) {
+                String importedClass = line.substring("import ".length(), line.length() - 1).trim();
+                imports.put(importedClass.substring(importedClass.lastIndexOf('.') + 1), importedClass);
+            }
+        }
+
+        ArrayList<String> qualifiedNames = new ArrayList<>();
+        for (String test : tests) {
+            String className = test.endsWith(".class") ? test.substring(0, test.length() - ".class".length()) : test;
+            if (imports.containsKey(className))
+                qualifiedNames.add(imports.get(className));
+            else if (!className.contains(".") && !packageName.isEmpty())
+                qualifiedNames.add(packageName + "." + className);
+            else
+                qualifiedNames.add(className);
+        }
+        return qualifiedNames;
+    }
+
+    /**
+     * Appends the test methods to run to the names of tests that do not run as a whole, e.g. "com.foo.BarTest#a+b"
+     *
+     * @param tests names of the tests as listed in the @SuiteClasses annotation
+     * @param qualifiedNames fully qualified class name of each test
+     * @param testMethods test methods to run by test name; tests without an entry run as a whole
+     * @return the qualified names, with the methods appended where given
+     */
+    public static ArrayList<String> withMethods(List<String> tests,
+                                                List<String> qualifiedNames,
+                                                Map<String, ArrayList<String>> testMethods) {
+        ArrayList<String> names = new ArrayList<>();
+        for (int i = 0; i < tests.size(); i++) {
+            List<String> methods = testMethods.get(tests.get(i));
+            if (methods == null || methods.isEmpty()) {
+                names.add(qualifiedNames.get(i));
+                continue;
+            }
+            StringBuilder name = new StringBuilder(qualifiedNames.get(i)).append(METHOD_SEPARATOR);
+            for (int m = 0; m < methods.size(); m++)
+                name.append(m == 0 ? "" : "+").append(methods.get(m));
+            names.add(name.toString());
+        }
+        return names;
+    }
+
+    /**
+     * Writes the tests to a file in the given format. Surefire and Gradle run the included tests in their own
+     * order; only the plain class list keeps the order of the tests.
+     *
+     * @param workspace FilePath of build workspace
+     * @param outputFile path of the file to write, relative to the workspace
+     * @param format SUREFIRE, GRADLE or LIST
+     * @param qualifiedNames fully qualified class names of the tests, in order, optionally followed by the test
+     *                       methods to run (see withMethods)
+     */
+    public static void write(FilePath workspace, String outputFile, String format, List<String> qualifiedNames)
+            throws IOException, InterruptedException {
+        try (OutputStream outputStream = workspace.child(outputFile).write();
+             OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+             PrintWriter printWriter = new PrintWriter(outputStreamWriter)) {
+
+            if (format.equals(SUREFIRE)) {
+                // an empty includes file would run every test, so match nothing instead
+                if (qualifiedNames.isEmpty()) {
+                    printWriter.println("# no tests selected by the automated test selector");
+                    printWriter.println(NO_TESTS_PATTERN);
+                }
+                // Surefire 2.19 and later take the methods after the class pattern, e.g. com/foo/BarTest.java#a+b
+                for (String name : qualifiedNames) {
+                    int separator = name.indexOf(METHOD_SEPARATOR);
+                    if (separator < 0)
+                        printWriter.println(name.replace('.', '/') + ".java");
+                    else
+                        printWriter.println(name.substring(0, separator).replace('.', '/') + ".java"
+                                + name.substring(separator));
+                }
+            } else if (format.equals(GRADLE)) {
+                printWriter.println("// tests selected by the automated test selector; apply with: apply from: '"
+                        + outputFile + "'");
+                printWriter.println("tasks.withType(Test) {");
+                printWriter.println("    filter {");
+                // an empty filter would run every test, so match nothing instead
+                if (qualifiedNames.isEmpty()) {
+                    printWriter.println("        failOnNoMatchingTests = false");
+                    printWriter.println("        includeTestsMatching 'no.tests.Selected'");
+                }
+                for (String name : qualifiedNames) {
+                    int separator = name.indexOf(METHOD_SEPARATOR);
+                    if (separator < 0) {
+                        printWriter.println("        includeTestsMatching '" + name + "'");
+                        continue;
+                    }
+                    String className = name.substring(0, separator);
+                    for (String method : name.substring(separator + 1).split("\\+"))
+                        printWriter.println("        includeTestsMatching '" + className + "." + method + "'");
+                }
+                printWriter.println("    }");
+                printWriter.println("}");
+            } else {
+                for (String name : qualifiedNames)
+                    printWriter.println(name);
+            }
+        }
+    }
+}
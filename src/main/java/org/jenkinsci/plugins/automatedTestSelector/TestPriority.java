@@ -1,17 +1,97 @@
 package org.jenkinsci.plugins.automatedTestSelector;
 
+import java.util.Arrays;
+import java.util.Comparator;
+
 /**
  * Created by taylorecton on 7/12/17.
+ *
+ * Tests are ordered by priority, then by score, highest first, then by class name, so the order is deterministic
+ * however many tests share a priority and score. The score is a weighted sum of signals, each between 0 and 1;
+ * see {@link #parseWeights} for the signals and their weights.
  */
 public class TestPriority implements Comparable<TestPriority> {
+    // orders tests by score alone, highest first
+    public static final Comparator<TestPriority> SCORE_ORDER = new Comparator<TestPriority>() {
+        public int compare(TestPriority a, TestPriority b) {
+            int order = Double.compare(b.score, a.score);
+            return order != 0 ? order : a.className.compareTo(b.className);
+        }
+    };
+
+    // signals of the score
+    public static final int FAILURE = 0;
+    public static final int STALENESS = 1;
+    public static final int DEPENDENCY_DISTANCE = 2;
+    public static final int DURATION = 3;
+    public static final int NEW_OR_MODIFIED = 4;
+
+    // names of the signals in the weights configuration
+    private static final String[] SIGNAL_NAMES = { "failure", "staleness", "distance", "duration", "new" };
+    // weights used for signals left out of the configuration
+    private static final double[] DEFAULT_WEIGHTS = { 3, 1, 2, 0.5, 2 };
+
     private String className;
     private int priority;
     private int previousPrioritizedBuildNum;
+    // orders tests within the same priority; higher scores run first
+    private double score;
+    // signals of the score, indexed by FAILURE, STALENESS, ...
+    private final double[] signals = new double[SIGNAL_NAMES.length];
 
     public TestPriority(String name) {
         className = name;
         priority = 1;
         previousPrioritizedBuildNum = 0;
+        score = 0;
+    }
+
+    /**
+     * Parses weights of the form "failure=3, staleness=1, distance=2, duration=0.5, new=2". The signals are
+     * failure: recent failures of the test; staleness: builds since the test was last executed; distance: how
+     * close the test is to the changes in the dependency graph; duration: how short the test is compared to the
+     * average; new: the test was added or modified by the changes. Signals left out keep their default weight.
+     *
+     * @param weights weights configuration; null or empty for the default weights
+     * @return weight of each signal, indexed by FAILURE, STALENESS, ...
+     * @throws IllegalArgumentException if a signal is unknown or a weight is not a non-negative number
+     */
+    public static double[] parseWeights(String weights) {
+        double[] parsed = DEFAULT_WEIGHTS.clone();
+        if (weights == null || weights.trim().isEmpty())
+            return parsed;
+
+        for (String weight : weights.split(",")) {
+            String[] fields = weight.split("=");
+            if (fields.length != 2)
+                throw new IllegalArgumentException("Expected signal=weight: " + weight.trim());
+
+            int signal = Arrays.asList(SIGNAL_NAMES).indexOf(fields[0].trim());
+            if (signal < 0)
+                throw new IllegalArgumentException("Unknown signal: " + fields[0].trim());
+            try {
+                parsed[signal] = Double.parseDouble(fields[1].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Weight is not a number: " + fields[1].trim());
+            }
+            if (parsed[signal] < 0 || Double.isNaN(parsed[signal]))
+                throw new IllegalArgumentException("Weight must not be negative: " + fields[1].trim());
+        }
+        return parsed;
+    }
+
+    /**
+     * @param depth number of references followed from the nearest changed class to the test, or null if the
+     *              analysis only lists the dependents breadth first
+     * @param position position of the test among the dependents
+     * @param count number of dependents
+     * @return the distance signal: 1 for a changed test, 1/2 for a test referencing a changed class, and so on;
+     *         without the depth, the position among the dependents stands in for it
+     */
+    public static double dependencyDistance(Integer depth, int position, int count) {
+        if (depth != null)
+            return 1 / (1.0 + depth);
+        return 1 - position / (double) count;
     }
 
     public String getClassName() {
@@ -26,6 +106,14 @@ public class TestPriority implements Comparable<TestPriority> {
         return previousPrioritizedBuildNum;
     }
 
+    public double getScore() {
+        return score;
+    }
+
+    public double getSignal(int signal) {
+        return signals[signal];
+    }
+
     public void setHighPriority() {
         priority = 0;
     }
@@ -34,11 +122,33 @@ public class TestPriority implements Comparable<TestPriority> {
         previousPrioritizedBuildNum = buildNum;
     }
 
+    public void setScore(double score) {
+        this.score = score;
+    }
+
+    /**
+     * @param signal FAILURE, STALENESS, DEPENDENCY_DISTANCE, DURATION or NEW_OR_MODIFIED
+     * @param value value of the signal, clamped to between 0 and 1
+     */
+    public void setSignal(int signal, double value) {
+        signals[signal] = Math.max(0, Math.min(1, value));
+    }
+
+    /**
+     * Sets the score to the weighted sum of the signals
+     *
+     * @param weights weight of each signal, from parseWeights
+     */
+    public void scoreSignals(double[] weights) {
+        score = 0;
+        for (int signal = 0; signal < signals.length; signal++)
+            score += weights[signal] * signals[signal];
+    }
+
     public int compareTo(TestPriority that) {
-        int p = this.priority - that.priority;
-        if (p < 0) return -1;
-        if (p > 0) return 1;
-        return 0;
+        int p = Integer.compare(this.priority, that.priority);
+        if (p != 0) return p;
+        return SCORE_ORDER.compare(this, that);
     }
 
     public boolean equals(Object that) {
@@ -48,7 +158,8 @@ public class TestPriority implements Comparable<TestPriority> {
             TestPriority other = (TestPriority) that;
             if ((this.className.equals(other.className)) &&
                     (this.priority == other.priority) &&
-                    (this.previousPrioritizedBuildNum == other.previousPrioritizedBuildNum))
+                    (this.previousPrioritizedBuildNum == other.previousPrioritizedBuildNum) &&
+                    (this.score == other.score))
                 return true;
         }
         return false;
@@ -0,0 +1,103 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Splits an ordered list of test classes into shards of balanced predicted duration for parallel executors.
+ * Each shard is written as its own suite file, named after the test suite file with "Shard" and the shard
+ * number appended (e.g. AllTests.java becomes AllTestsShard1.java).
+ */
+public class TestShards {
+
+    private TestShards() {
+    }
+
+    /**
+     * Partitions tests with longest-processing-time scheduling: tests are assigned longest first, each to the
+     * shard with the least predicted duration so far. Tests keep their original (priority) order within a shard.
+     *
+     * @param tests tests in priority order
+     * @param durations predicted duration of each test in seconds
+     * @param shardCount number of shards
+     * @param loads receives the predicted duration of each shard; must have length shardCount
+     * @return shardCount lists of tests; some may be empty if there are fewer tests than shards
+     */
+    public static ArrayList<ArrayList<String>> partition(List<String> tests,
+                                                         final double[] durations,
+                                                         int shardCount,
+                                                         final double[] loads) {
+        ArrayList<Integer> longestFirst = new ArrayList<>();
+        for (int i = 0; i < tests.size(); i++)
+            longestFirst.add(i);
+        Collections.sort(longestFirst, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int byDuration = Double.compare(durations[b], durations[a]);
+                return byDuration != 0 ? byDuration : Integer.compare(a, b);
+            }
+        });
+
+        // shards ordered by predicted duration, then by shard number so ties are assigned deterministically
+        PriorityQueue<Integer> shardsByLoad = new PriorityQueue<>(shardCount, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int byLoad = Double.compare(loads[a], loads[b]);
+                return byLoad != 0 ? byLoad : Integer.compare(a, b);
+            }
+        });
+        for (int shard = 0; shard < shardCount; shard++)
+            shardsByLoad.add(shard);
+
+        int[] assignedShard = new int[tests.size()];
+        for (int i : longestFirst) {
+            int shard = shardsByLoad.poll();
+            assignedShard[i] = shard;
+            loads[shard] += durations[i];
+            shardsByLoad.add(shard);
+        }
+
+        // walking the tests in their original order preserves the priority order within each shard
+        ArrayList<ArrayList<String>> shards = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++)
+            shards.add(new ArrayList<String>());
+        for (int i = 0; i < tests.size(); i++)
+            shards.get(assignedShard[i]).add(tests.get(i));
+
+        return shards;
+    }
+
+    /**
+     * @param file path of the test suite file or output file relative to the workspace
+     * @param shard shard number, starting at 1
+     * @return path of the file of the shard, with "Shard" and the shard number inserted before the extension
+     */
+    public static String shardFile(String file, int shard) {
+        int extension = file.lastIndexOf('.');
+        if (extension <= file.lastIndexOf('/'))
+            return file + "Shard" + shard;
+        return file.substring(0, extension) + "Shard" + shard + file.substring(extension);
+    }
+
+    /**
+     * Renames the class declared in the lines of the test suite file so they compile as the shard's suite file
+     *
+     * @param linesForFile lines of the test suite file
+     * @param testSuiteFile path of the test suite file relative to the workspace
+     * @param shard shard number, starting at 1
+     * @return lines of the shard's suite file, excluding the tests
+     */
+    public static ArrayList<String> shardLines(List<String> linesForFile, String testSuiteFile, int shard) {
+        String fileName = testSuiteFile.substring(testSuiteFile.lastIndexOf('/') + 1);
+        String className = fileName.substring(0, fileName.length() - ".java".length());
+
+        ArrayList<String> lines = new ArrayList<>();
+        for (String line : linesForFile) {
+            if (line.contains("class " + className))
+                line = line.replace("class " + className, "class " + className + "Shard" + shard);
+            lines.add(line);
+        }
+        return lines;
+    }
+}
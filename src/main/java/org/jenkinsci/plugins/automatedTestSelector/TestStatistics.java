@@ -0,0 +1,327 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.model.Job;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Per-job, per-test statistics with exponentially decaying weight on old builds.
+ * Applying a build costs O(1) per test executed or failed in that build; decay is applied lazily
+ * when a statistic is read, so the statistics cover the whole history at constant memory per test.
+ * Builds may be applied in any order, e.g. as concurrent builds complete; each build is applied once.
+ *
+ * The statistics are stored in the job directory; the records of the builds applied since they were written are
+ * appended after a DELTAS line, and the statistics are only rewritten once MAX_DELTAS builds were appended, so
+ * saving a build costs O(1) per test of the build as well.
+ */
+public class TestStatistics {
+
+    // file in the job directory holding the statistics
+    private static final String STATISTICS_FILE = "testStatistics.txt";
+
+    // weight of the newest duration in the smoothed duration of a test
+    static final double DURATION_SMOOTHING = 0.3;
+
+    // builds completing more than this many builds after a newer one are too old to be applied
+    static final int MAX_OUT_OF_ORDER = 100;
+
+    // line separating the statistics from the builds appended since they were written
+    private static final String DELTAS = "#deltas";
+    // builds appended before the statistics are rewritten
+    private static final int MAX_DELTAS = 100;
+
+    // one instance per job so that updates from concurrent builds are serialized
+    private static final HashMap<String, TestStatistics> STATISTICS = new HashMap<>();
+
+    private final File statisticsFile;
+    private boolean loaded = false;
+
+    // half-life in builds used for the decay; statistics are reset when it changes
+    private int halfLife = 0;
+    // every build up to this number is applied, or too old to be applied
+    private int appliedThrough = 0;
+    // applied builds after appliedThrough; builds still running or completing out of order leave holes
+    private final TreeSet<Integer> appliedBuilds = new TreeSet<>();
+    // builds appended to the file since the statistics were written
+    private int deltas = 0;
+    // set when the file no longer holds the statistics, e.g. after a change of the half-life
+    private boolean rewrite = false;
+
+    // indexed by test ID
+    private int[] lastExecuted = new int[0];
+    private int[] lastFailed = new int[0];
+    // failure score as of lastFailed: sum of decay^(lastFailed - build) over the builds the test failed in
+    private double[] failureScore = new double[0];
+    // exponentially smoothed duration in seconds; -1 if the test was never executed
+    private double[] smoothedDuration = new double[0];
+
+    TestStatistics(File statisticsFile) {
+        this.statisticsFile = statisticsFile;
+    }
+
+    /**
+     * @param job The job owning the statistics
+     * @return the statistics stored in the job's directory
+     */
+    public static synchronized TestStatistics forJob(Job<?, ?> job) {
+        File file = new File(job.getRootDir(), STATISTICS_FILE);
+        TestStatistics statistics = STATISTICS.get(file.getPath());
+        if (statistics == null) {
+            statistics = new TestStatistics(file);
+            STATISTICS.put(file.getPath(), statistics);
+        }
+        return statistics;
+    }
+
+    /**
+     * @param halfLife number of builds after which a failure counts half as much
+     * @return the per-build decay factor for the half-life
+     */
+    public static double decayFactor(int halfLife) {
+        return Math.pow(0.5, 1.0 / halfLife);
+    }
+
+    /**
+     * @param halfLife half-life the caller uses; statistics kept with another half-life are discarded
+     * @return number of the newest build applied to the statistics
+     */
+    public synchronized int getLastBuildNumber(int halfLife) throws IOException {
+        load(halfLife);
+        return appliedBuilds.isEmpty() ? appliedThrough : appliedBuilds.last();
+    }
+
+    /**
+     * Applies the records of builds not applied yet, oldest first. Records without results, e.g. of builds
+     * that were still running when they were read, are left for the record of the completed build.
+     *
+     * @param records build records, newest first
+     * @param halfLife half-life in builds
+     */
+    public synchronized void apply(List<BuildTestRecord> records, int halfLife) throws IOException {
+        load(halfLife);
+
+        ArrayList<BuildTestRecord> applied = new ArrayList<>();
+        for (int i = records.size() - 1; i >= 0; i--) {
+            if (applyRecord(records.get(i)))
+                applied.add(records.get(i));
+        }
+        if (applied.isEmpty())
+            return;
+
+        if (rewrite || !statisticsFile.exists() || deltas + applied.size() > MAX_DELTAS) {
+            save();
+            return;
+        }
+
+        try (OutputStream outputStream = new FileOutputStream(statisticsFile, true);
+             OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+             PrintWriter printWriter = new PrintWriter(outputStreamWriter)) {
+            if (deltas == 0)
+                printWriter.println(DELTAS);
+            for (BuildTestRecord record : applied)
+                printWriter.println(record.toLine());
+        }
+        deltas += applied.size();
+    }
+
+    /**
+     * @param id test ID
+     * @param buildNumber build the score is computed for
+     * @return failure score of the test decayed to the given build; 0 if the test never failed
+     */
+    public synchronized double getFailureScore(int id, int buildNumber) {
+        if (id < 0 || id >= failureScore.length || failureScore[id] == 0)
+            return 0;
+        return failureScore[id] * Math.pow(decayFactor(halfLife), buildNumber - lastFailed[id]);
+    }
+
+    /**
+     * @param id test ID
+     * @param buildNumber build the age is computed for
+     * @return number of builds since the test was last executed, or -1 if it was never executed
+     */
+    public synchronized int getBuildsSinceExecuted(int id, int buildNumber) {
+        if (id < 0 || id >= lastExecuted.length || lastExecuted[id] == 0)
+            return -1;
+        return buildNumber - lastExecuted[id];
+    }
+
+    /**
+     * @param id test ID
+     * @return smoothed duration of the test in seconds, or -1 if it was never executed
+     */
+    public synchronized double getSmoothedDuration(int id) {
+        if (id < 0 || id >= smoothedDuration.length)
+            return -1;
+        return smoothedDuration[id];
+    }
+
+    /**
+     * @param id test ID
+     * @param buildNumber build the likelihood is estimated for
+     * @return estimated probability that the test fails; 0.5 for tests that were never executed
+     */
+    public synchronized double getFailureLikelihood(int id, int buildNumber) {
+        if (getBuildsSinceExecuted(id, buildNumber) < 0)
+            return 0.5;
+        // Laplace-smoothed failure rate; 1 / (1 - decay) is the effective number of builds the decay covers
+        double effectiveBuilds = 1 / (1 - decayFactor(halfLife));
+        return (getFailureScore(id, buildNumber) + 1) / (effectiveBuilds + 2);
+    }
+
+    private boolean applyRecord(BuildTestRecord record) {
+        int buildNumber = record.getBuildNumber();
+        if (!record.hasResults() || buildNumber <= appliedThrough || appliedBuilds.contains(buildNumber))
+            return false;
+
+        BitSet executed = record.getExecuted();
+        BitSet failed = record.getFailed();
+        ensureCapacity(executed.length());
+
+        double decay = decayFactor(halfLife);
+        float[] durations = record.getDurations();
+        int rank = 0;
+        for (int id = executed.nextSetBit(0); id >= 0; id = executed.nextSetBit(id + 1)) {
+            lastExecuted[id] = Math.max(lastExecuted[id], buildNumber);
+            double duration = durations[rank++];
+            if (smoothedDuration[id] < 0)
+                smoothedDuration[id] = duration;
+            else
+                smoothedDuration[id] += DURATION_SMOOTHING * (duration - smoothedDuration[id]);
+        }
+        for (int id = failed.nextSetBit(0); id >= 0; id = failed.nextSetBit(id + 1)) {
+            if (buildNumber > lastFailed[id]) {
+                failureScore[id] = failureScore[id] * Math.pow(decay, buildNumber - lastFailed[id]) + 1;
+                lastFailed[id] = buildNumber;
+            } else {
+                // a build completing out of order adds its failure as of the last failure
+                failureScore[id] += Math.pow(decay, lastFailed[id] - buildNumber);
+            }
+        }
+
+        markApplied(buildNumber);
+        return true;
+    }
+
+    private void markApplied(int buildNumber) {
+        appliedBuilds.add(buildNumber);
+
+        // builds too far behind the newest one are not waited for
+        int oldest = appliedBuilds.last() - MAX_OUT_OF_ORDER;
+        if (appliedThrough < oldest) {
+            appliedThrough = oldest;
+            appliedBuilds.headSet(oldest, true).clear();
+        }
+        while (appliedBuilds.remove(appliedThrough + 1))
+            appliedThrough++;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= lastExecuted.length)
+            return;
+        lastExecuted = Arrays.copyOf(lastExecuted, size);
+        lastFailed = Arrays.copyOf(lastFailed, size);
+        failureScore = Arrays.copyOf(failureScore, size);
+
+        int oldSize = smoothedDuration.length;
+        smoothedDuration = Arrays.copyOf(smoothedDuration, size);
+        Arrays.fill(smoothedDuration, oldSize, size, -1);
+    }
+
+    private void reset(int newHalfLife) {
+        halfLife = newHalfLife;
+        appliedThrough = 0;
+        appliedBuilds.clear();
+        lastExecuted = new int[0];
+        lastFailed = new int[0];
+        failureScore = new double[0];
+        smoothedDuration = new double[0];
+        rewrite = true;
+    }
+
+    /**
+     * Reads the statistics file; the first line holds the half-life, the build number every build up to which
+     * is applied, and the applied builds after it, every other line holds
+     * "id lastExecuted lastFailed failureScore smoothedDuration", up to the DELTAS line; the records after it are
+     * applied again
+     */
+    private void load(int expectedHalfLife) throws IOException {
+        if (!loaded) {
+            loaded = true;
+            if (statisticsFile.exists()) {
+                try (InputStream inputStream = new FileInputStream(statisticsFile);
+                     InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charsets.UTF_8);
+                     BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
+                    String line = bufferedReader.readLine();
+                    if (line != null) {
+                        String[] header = line.split(" ");
+                        halfLife = Integer.parseInt(header[0]);
+                        appliedThrough = Integer.parseInt(header[1]);
+                        for (int i = 2; i < header.length; i++)
+                            appliedBuilds.add(Integer.parseInt(header[i]));
+                    }
+                    while ((line = bufferedReader.readLine()) != null && !line.equals(DELTAS)) {
+                        String[] fields = line.split(" ");
+                        int id = Integer.parseInt(fields[0]);
+                        ensureCapacity(id + 1);
+                        lastExecuted[id] = Integer.parseInt(fields[1]);
+                        lastFailed[id] = Integer.parseInt(fields[2]);
+                        failureScore[id] = Double.parseDouble(fields[3]);
+                        if (fields.length > 4)
+                            smoothedDuration[id] = Double.parseDouble(fields[4]);
+                    }
+                    while ((line = bufferedReader.readLine()) != null) {
+                        BuildTestRecord record = BuildTestRecord.fromLine(line);
+                        if (record == null)
+                            throw new NumberFormatException("Corrupt record: " + line);
+                        applyRecord(record);
+                        deltas++;
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    // corrupt statistics are rebuilt from the history index
+                    reset(expectedHalfLife);
+                }
+            }
+        }
+
+        if (halfLife != expectedHalfLife)
+            reset(expectedHalfLife);
+    }
+
+    /**
+     * Rewrites the statistics, without deltas, under a temporary name that then replaces the file
+     */
+    private void save() throws IOException {
+        File temporary = AtomicFiles.createTemporary(statisticsFile);
+        try {
+            try (OutputStream outputStream = new FileOutputStream(temporary);
+                 OutputStreamWriter outputStreamWriter = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+                 PrintWriter printWriter = new PrintWriter(outputStreamWriter)) {
+                StringBuilder header = new StringBuilder().append(halfLife).append(' ').append(appliedThrough);
+                for (int buildNumber : appliedBuilds)
+                    header.append(' ').append(buildNumber);
+                printWriter.println(header);
+                for (int id = 0; id < lastExecuted.length; id++) {
+                    if (lastExecuted[id] != 0 || lastFailed[id] != 0)
+                        printWriter.println(id + " " + lastExecuted[id] + " " + lastFailed[id] + " "
+                                + failureScore[id] + " " + smoothedDuration[id]);
+                }
+                if (printWriter.checkError())
+                    throw new IOException("Could not write " + temporary);
+            }
+            AtomicFiles.replace(temporary, statisticsFile);
+        } finally {
+            AtomicFiles.discard(temporary);
+        }
+        deltas = 0;
+        rewrite = false;
+    }
+}
@@ -0,0 +1,143 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import jenkins.MasterToSlaveFileCallable;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and rewrites the @SuiteClasses annotation of a test suite file on the node that owns the workspace.
+ * Only the lines of the file and the test names travel between the controller and the node.
+ */
+public class TestSuiteFile {
+
+    public static final String ANNOTATION_START_1 = "@SuiteClasses({";
+    public static final String ANNOTATION_START_2 = "@Suite.SuiteClasses({";
+    public static final String ANNOTATION_END = "})";
+
+    private TestSuiteFile() {
+    }
+
+    /**
+     * @param workspace FilePath of build workspace
+     * @param suiteFile path of the test suite file, relative to the workspace
+     * @param linesForFile receives the lines of the file without the tests and the end of the annotation, used to
+     *                     rewrite the file later
+     * @return the tests listed in the @SuiteClasses annotation, e.g. "FooTest.class", without blank lines and tests
+     *         commented out
+     */
+    public static ArrayList<String> read(FilePath workspace, String suiteFile, List<String> linesForFile)
+            throws IOException, InterruptedException {
+        ArrayList<ArrayList<String>> contents = workspace.act(new Read(suiteFile));
+        linesForFile.addAll(contents.get(0));
+        return contents.get(1);
+    }
+
+    /**
+     * Writes the lines of a test suite file, with the tests listed after the start of the @SuiteClasses annotation
+     *
+     * @param workspace FilePath of build workspace
+     * @param suiteFile path of the suite file to write, relative to the workspace
+     * @param linesForFile lines read from the test suite file
+     * @param tests tests to list, in order
+     */
+    public static void write(FilePath workspace, String suiteFile, List<String> linesForFile, List<String> tests)
+            throws IOException, InterruptedException {
+        workspace.act(new Write(suiteFile, linesForFile, tests));
+    }
+
+    /**
+     * @return true if the line starts the @SuiteClasses annotation
+     */
+    public static boolean isAnnotationStart(String line) {
+        return line.trim().equals(ANNOTATION_START_1) || line.trim().equals(ANNOTATION_START_2);
+    }
+
+    /**
+     * Reads the lines and the tests of a test suite file
+     */
+    private static class Read extends MasterToSlaveFileCallable<ArrayList<ArrayList<String>>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String suiteFile;
+
+        private Read(String suiteFile) {
+            this.suiteFile = suiteFile;
+        }
+
+        @Override
+        public ArrayList<ArrayList<String>> invoke(File workspace, VirtualChannel channel) throws IOException {
+            ArrayList<String> linesForFile = new ArrayList<>();
+            ArrayList<String> tests = new ArrayList<>();
+
+            try (InputStream inputStream = new FileInputStream(new File(workspace, suiteFile));
+                 InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charsets.UTF_8);
+                 BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
+                String line;
+                while ((line = bufferedReader.readLine()) != null) {
+                    linesForFile.add(line);
+                    if (isAnnotationStart(line)) {
+                        line = bufferedReader.readLine();
+                        while (line != null && !line.trim().equals(ANNOTATION_END)) {
+                            line = line.trim();
+                            // ignore blank lines and tests commented out
+                            if (line.contains(".class") && !line.startsWith("//"))
+                                tests.add(line.replace(",", ""));
+                            line = bufferedReader.readLine();
+                        }
+                    }
+                }
+            }
+
+            ArrayList<ArrayList<String>> contents = new ArrayList<>();
+            contents.add(linesForFile);
+            contents.add(tests);
+            return contents;
+        }
+    }
+
+    /**
+     * Writes a test suite file listing the given tests
+     */
+    private static class Write extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final String suiteFile;
+        private final ArrayList<String> linesForFile;
+        private final ArrayList<String> tests;
+
+        private Write(String suiteFile, List<String> linesForFile, List<String> tests) {
+            this.suiteFile = suiteFile;
+            this.linesForFile = new ArrayList<>(linesForFile);
+            this.tests = new ArrayList<>(tests);
+        }
+
+        @Override
+        public Void invoke(File workspace, VirtualChannel channel) throws IOException {
+            try (OutputStream osSuiteFile = new FileOutputStream(new File(workspace, suiteFile));
+                 OutputStreamWriter oswSuiteFile = new OutputStreamWriter(osSuiteFile, Charsets.UTF_8);
+                 PrintWriter pwSuiteFile = new PrintWriter(oswSuiteFile)) {
+
+                for (String line : linesForFile) {
+                    pwSuiteFile.println(line);
+
+                    // after the start of the SuiteClasses annotation, write the tests in order
+                    if (isAnnotationStart(line)) {
+                        for (int i = 0; i < tests.size() - 1; i++)
+                            pwSuiteFile.println(tests.get(i) + ",");
+                        if (!tests.isEmpty())
+                            pwSuiteFile.println(tests.get(tests.size() - 1));
+                        pwSuiteFile.println(ANNOTATION_END);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
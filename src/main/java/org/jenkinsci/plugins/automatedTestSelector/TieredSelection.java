@@ -0,0 +1,228 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.Extension;
+import hudson.FilePath;
+
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.TaskListener;
+import hudson.model.WorkspaceListener;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tiers of dependency analysis for selection within a latency budget, from the cheapest to the most precise:
+ * the naming and co-change heuristic, the dependency graph snapshot as last written, and the full analysis.
+ * The more precise tiers run in the background while the budget lasts. The snapshot tier is stopped when the build
+ * step returns. A full analysis that has not finished by then keeps running, one per job, and only caches its
+ * result for later builds of the same changes. It holds the lock of the workspace while it uses it; a later build
+ * waits for the lock before it uses the workspace, so the analysis never reads the checkout of another build.
+ */
+public class TieredSelection {
+
+    public static final int NAMING = 0;
+    public static final int SNAPSHOT = 1;
+    public static final int FULL = 2;
+
+    private static final String[] TIER_NAMES = {
+            "naming and co-change heuristic", "cached dependency graph", "full dependency analysis" };
+
+    private static ExecutorService executor;
+
+    // full analyses left running after their step, by job
+    private static final HashMap<String, Future<?>> DETACHED = new HashMap<>();
+    // locks held by full analyses while they use a workspace, by path of the workspace on its node
+    private static final HashMap<String, ReentrantLock> WORKSPACE_LOCKS = new HashMap<>();
+
+    /**
+     * A tier running in the background; done once its callable has returned, even if it was cancelled
+     */
+    private static class RunningTier<T> extends FutureTask<T> {
+        private final CountDownLatch stopped = new CountDownLatch(1);
+
+        private RunningTier(Callable<T> tier) {
+            super(tier);
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                stopped.countDown();
+            }
+        }
+    }
+
+    private TieredSelection() {
+    }
+
+    /**
+     * @param tier NAMING, SNAPSHOT or FULL
+     * @return description of the tier for the build log
+     */
+    public static String describe(int tier) {
+        return "tier " + tier + " (" + TIER_NAMES[tier] + ")";
+    }
+
+    /**
+     * Tier 0: the changed classes, the test classes named after them, and the test classes changed in the same
+     * commits as them before; no analysis of the code
+     *
+     * @param changedClasses qualified names of the changed classes
+     * @param coChangeMap co-change map of the job
+     * @return qualified names of the candidate test classes; names without a matching test are ignored later
+     */
+    public static ArrayList<String> namingTier(Collection<String> changedClasses, CoChangeMap coChangeMap)
+            throws IOException {
+        LinkedHashSet<String> tests = new LinkedHashSet<>();
+        for (String className : changedClasses) {
+            // a changed test selects itself
+            tests.add(className);
+
+            int start = className.lastIndexOf('.') + 1;
+            String packagePrefix = className.substring(0, start);
+            String simpleName = className.substring(start);
+            tests.add(className + "Test");
+            tests.add(className + "Tests");
+            tests.add(className + "IT");
+            tests.add(packagePrefix + "Test" + simpleName);
+        }
+        tests.addAll(coChangeMap.getTests(changedClasses));
+        return new ArrayList<>(tests);
+    }
+
+    /**
+     * Runs a tier in the background; see {@link #stop}
+     */
+    public static <T> Future<T> submit(Callable<T> tier) {
+        RunningTier<T> runningTier = new RunningTier<>(tier);
+        executor().execute(runningTier);
+        return runningTier;
+    }
+
+    /**
+     * Cancels a tier and waits until it has stopped using the build, also when the build is being aborted
+     *
+     * @param tier a tier returned by submit
+     */
+    public static void stop(Future<?> tier) {
+        tier.cancel(true);
+        if (!(tier instanceof RunningTier))
+            return;
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                ((RunningTier<?>) tier).stopped.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Leaves a tier running after the step, so its result is cached for later builds of the same changes. Each job
+     * has one such tier at a time; a tier left running by an earlier build of the job is stopped.
+     *
+     * @param jobName full name of the job
+     * @param tier a tier returned by submit
+     */
+    public static void detach(String jobName, Future<?> tier) {
+        Future<?> previous;
+        synchronized (DETACHED) {
+            previous = DETACHED.put(jobName, tier);
+        }
+        if (previous != null && previous != tier)
+            stop(previous);
+    }
+
+    /**
+     * Workspaces with the same path on different nodes share a lock, which only makes their analyses wait for
+     * one another
+     *
+     * @param workspace FilePath of a build workspace
+     * @return the lock held by a full analysis while it uses the workspace
+     */
+    public static ReentrantLock workspaceLock(FilePath workspace) {
+        synchronized (WORKSPACE_LOCKS) {
+            ReentrantLock lock = WORKSPACE_LOCKS.get(workspace.getRemote());
+            if (lock == null) {
+                lock = new ReentrantLock();
+                WORKSPACE_LOCKS.put(workspace.getRemote(), lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Waits for a tier running in the background until the deadline
+     *
+     * @param tier the tier
+     * @param deadline time in milliseconds after which the tier is not awaited
+     * @param listener listener used for logging to Jenkins console output
+     * @return the result of the tier, or null if it failed or did not finish in time
+     */
+    public static <T> T await(Future<T> tier, long deadline, TaskListener listener) throws InterruptedException {
+        try {
+            return tier.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (ExecutionException e) {
+            listener.getLogger().println("Dependency analysis failed: " + e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null)
+            executor = Executors.newCachedThreadPool(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "Tiered test selection"));
+        return executor;
+    }
+
+    /**
+     * Makes a build wait until a full analysis left running by an earlier build has finished using the workspace,
+     * before the build checks out its changes
+     */
+    @Extension
+    public static class WorkspaceGuard extends WorkspaceListener {
+        @Override
+        public void beforeUse(AbstractBuild b, FilePath workspace, BuildListener listener) {
+            ReentrantLock lock = workspaceLock(workspace);
+            if (lock.tryLock()) {
+                lock.unlock();
+                return;
+            }
+
+            listener.getLogger().println("Waiting for the dependency analysis of an earlier build to finish using "
+                                         + "the workspace");
+            try {
+                lock.lockInterruptibly();
+                lock.unlock();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeFailureLiftTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final List<String> PARSER = Collections.singletonList("src/Parser.java");
+    private static final List<String> README = Collections.singletonList("README.md");
+
+    private static BitSet failed(int... ids) {
+        BitSet failed = new BitSet();
+        for (int id : ids)
+            failed.set(id);
+        return failed;
+    }
+
+    // test 0 fails whenever the parser changes, test 1 once without it
+    private static void applyHistory(ChangeFailureLift lift) throws Exception {
+        lift.apply(1, PARSER, failed(0));
+        lift.apply(2, README, failed(1));
+        lift.apply(3, PARSER, failed(0));
+        lift.apply(4, README, failed());
+    }
+
+    @Test
+    public void testsFailingWithAChangeAreAssociatedWithIt() throws Exception {
+        ChangeFailureLift lift = new ChangeFailureLift(new File(folder.getRoot(), "lift.txt"));
+        applyHistory(lift);
+
+        // fails in 2 of 2 builds changing the parser, 2 of 4 builds in general
+        assertEquals(2.0, lift.getLift(PARSER, 0), 1e-9);
+        assertEquals(0, lift.getLift(README, 1), 0);
+        assertEquals(failed(0), lift.getAssociatedTests(PARSER));
+    }
+
+    @Test
+    public void appendedBuildsAreReadBack() throws Exception {
+        File file = new File(folder.getRoot(), "lift.txt");
+        applyHistory(new ChangeFailureLift(file));
+
+        ChangeFailureLift loaded = new ChangeFailureLift(file);
+        assertEquals(2.0, loaded.getLift(PARSER, 0), 1e-9);
+
+        // builds applied before are not counted twice, also after reading them back
+        loaded.apply(3, PARSER, failed(0));
+        assertEquals(2.0, new ChangeFailureLift(file).getLift(PARSER, 0), 1e-9);
+    }
+
+    @Test
+    public void buildsCompletingOutOfOrderAreApplied() throws Exception {
+        File file = new File(folder.getRoot(), "lift.txt");
+        ChangeFailureLift lift = new ChangeFailureLift(file);
+        lift.apply(1, PARSER, failed(0));
+        lift.apply(2, README, failed(1));
+        lift.apply(4, README, failed());
+        lift.apply(3, PARSER, failed(0));
+
+        assertEquals(2.0, new ChangeFailureLift(file).getLift(PARSER, 0), 1e-9);
+    }
+
+    @Test
+    public void matrixIsRewrittenAfterManyBuilds() throws Exception {
+        File file = new File(folder.getRoot(), "lift.txt");
+        ChangeFailureLift lift = new ChangeFailureLift(file);
+        for (int buildNumber = 1; buildNumber <= 250; buildNumber++)
+            lift.apply(buildNumber, buildNumber % 2 == 0 ? PARSER : README,
+                       buildNumber % 2 == 0 ? failed(0) : failed());
+
+        ChangeFailureLift loaded = new ChangeFailureLift(file);
+        assertEquals(2.0, loaded.getLift(PARSER, 0), 1e-9);
+        assertTrue(loaded.getAssociatedTests(Arrays.asList("README.md", "src/Parser.java")).get(0));
+        assertEquals(1, folder.getRoot().list().length);
+    }
+}
@@ -0,0 +1,41 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChangedLinesTest {
+
+    @Test
+    public void hunksBecomeLineRangesOfTheNewFile() {
+        assertEquals(Arrays.asList("src/main/java/com/foo/Bar.java\t12\t14", "src/main/java/com/foo/Bar.java\t30\t30"),
+                ChangedLines.parse(Arrays.asList(
+                        "diff --git a/src/main/java/com/foo/Bar.java b/src/main/java/com/foo/Bar.java",
+                        "--- a/src/main/java/com/foo/Bar.java",
+                        "+++ b/src/main/java/com/foo/Bar.java",
+                        "@@ -10,2 +12,3 @@ public class Bar {",
+                        "+        int a;",
+                        "@@ -40 +30 @@ void run() {")));
+    }
+
+    @Test
+    public void deletionIsReportedAtThePrecedingLine() {
+        assertEquals(Arrays.asList("Bar.java\t7\t7", "Bar.java\t1\t1"),
+                ChangedLines.parse(Arrays.asList(
+                        "+++ b/Bar.java",
+                        "@@ -8,2 +7,0 @@",
+                        "@@ -1 +0,0 @@")));
+    }
+
+    @Test
+    public void deletedFilesHaveNoRanges() {
+        assertEquals(Collections.<String>emptyList(),
+                ChangedLines.parse(Arrays.asList(
+                        "--- a/Gone.java",
+                        "+++ /dev/null",
+                        "@@ -1,20 +0,0 @@")));
+    }
+}
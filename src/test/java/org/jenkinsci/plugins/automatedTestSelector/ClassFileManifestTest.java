@@ -0,0 +1,93 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClassFileManifestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // compiled classes of the parser fixtures, as a build would leave them
+    private File classDirectory(String name) throws IOException {
+        File directory = folder.newFolder(name);
+        for (String classFile : Arrays.asList("ParserFixture.class", "ParserFixture$Nested.class",
+                                              "ParserFixtureDependency.class"))
+            copy(classFile, new File(directory, packagePath() + classFile));
+        return directory;
+    }
+
+    private static String packagePath() {
+        return ClassFileManifestTest.class.getPackage().getName().replace('.', '/') + "/";
+    }
+
+    private static void copy(String classFile, File target) throws IOException {
+        target.getParentFile().mkdirs();
+        try (InputStream in = ClassFileManifestTest.class.getResourceAsStream(classFile);
+             OutputStream out = new FileOutputStream(target)) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0)
+                out.write(buffer, 0, read);
+        }
+    }
+
+    @Test
+    public void unchangedClassesAreNotChanges() throws Exception {
+        List<File> classDirectories = Collections.singletonList(classDirectory("classes"));
+        File manifestFile = new File(folder.getRoot(), "graph.manifest");
+        ClassFileManifest manifest = ClassFileManifest.load(manifestFile);
+
+        assertEquals(3, manifest.update(classDirectories));
+        manifest.save();
+
+        ClassFileManifest loaded = ClassFileManifest.load(manifestFile);
+        assertEquals(0, loaded.update(classDirectories));
+        assertTrue(loaded.toGraph().getReferences(ParserFixture.class.getName())
+                .contains(ParserFixtureDependency.class.getName()));
+    }
+
+    @Test
+    public void pathsAreRelativeToTheClassDirectory() throws Exception {
+        File manifestFile = new File(folder.getRoot(), "graph.manifest");
+        ClassFileManifest manifest = ClassFileManifest.load(manifestFile);
+        manifest.update(Collections.singletonList(classDirectory("workspace")));
+        manifest.save();
+
+        // the same classes in another workspace, e.g. workspace@2, are read but do not change the graph
+        ClassFileManifest moved = ClassFileManifest.load(manifestFile);
+        assertEquals(0, moved.update(Collections.singletonList(classDirectory("workspace@2"))));
+    }
+
+    @Test
+    public void updateOfChangedClassesOnlyLooksAtTheirFiles() throws Exception {
+        File directory = classDirectory("classes");
+        List<File> classDirectories = Collections.singletonList(directory);
+        File manifestFile = new File(folder.getRoot(), "graph.manifest");
+        ClassFileManifest manifest = ClassFileManifest.load(manifestFile);
+        manifest.update(classDirectories);
+        manifest.save();
+
+        assertTrue(new File(directory, packagePath() + "ParserFixture$Nested.class").delete());
+        assertTrue(new File(directory, packagePath() + "ParserFixtureDependency.class").delete());
+
+        ClassFileManifest loaded = ClassFileManifest.load(manifestFile);
+        // only the nested class of the changed class is found to be gone
+        assertEquals(1, loaded.update(classDirectories,
+                                      Collections.singletonList(ParserFixture.class.getName())));
+        assertTrue(loaded.toGraph().getClasses().contains(ParserFixtureDependency.class.getName()));
+    }
+}
@@ -0,0 +1,89 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClassFileParserTest {
+
+    private static ClassFileParser parse(String classFile) throws IOException {
+        try (InputStream inputStream = ClassFileParserTest.class.getResourceAsStream(classFile)) {
+            return ClassFileParser.parse(inputStream);
+        }
+    }
+
+    @Test
+    public void readsTheReferencedClasses() throws IOException {
+        ClassFileParser parser = parse("ParserFixture.class");
+
+        assertEquals(ParserFixture.class.getName(), parser.getClassName());
+        HashSet<String> references = parser.getReferences();
+        // superclass, generic signature, interface and field type
+        assertTrue(references.contains(AbstractList.class.getName()));
+        assertTrue(references.contains(Date.class.getName()));
+        assertTrue(references.contains(Runnable.class.getName()));
+        assertTrue(references.contains(AtomicLong.class.getName()));
+    }
+
+    @Test
+    public void ignoresStringLiteralsAndItself() throws IOException {
+        HashSet<String> references = parse("ParserFixture.class").getReferences();
+
+        assertFalse(references.contains("java.util.Locale"));
+        assertFalse(references.contains(ParserFixture.class.getName()));
+    }
+
+    @Test
+    public void reportsNestedClassesAsTheirTopLevelClass() throws IOException {
+        ClassFileParser parser = parse("ParserFixture$Nested.class");
+
+        assertEquals(ParserFixture.class.getName(), parser.getClassName());
+        assertTrue(parser.getReferences().contains(ParserFixtureDependency.class.getName()));
+        assertEquals("com.foo.Bar", ClassFileParser.topLevel("com/foo/Bar$Baz$1"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        ClassFileParser.parse(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }));
+    }
+}
+
+class ParserFixture extends AbstractList<Date> implements Runnable {
+    private final AtomicLong count = new AtomicLong();
+    private final String literal = "java.util.Locale";
+
+    @Override
+    public Date get(int index) {
+        return new Date(count.get() + index + literal.length());
+    }
+
+    @Override
+    public int size() {
+        return 0;
+    }
+
+    public void run() {
+        new Nested().run();
+    }
+
+    static class Nested {
+        void run() {
+            ParserFixtureDependency.touch();
+        }
+    }
+}
+
+class ParserFixtureDependency {
+    static void touch() {
+    }
+}
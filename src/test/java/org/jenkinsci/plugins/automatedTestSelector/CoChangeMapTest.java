@@ -0,0 +1,50 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CoChangeMapTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final List<List<String>> COMMITS = Arrays.asList(
+            Arrays.asList("com.foo.Parser", "com.foo.ParserEdgeCaseTest"),
+            Arrays.asList("com.foo.Lexer", "com.foo.LexerTest"));
+
+    @Test
+    public void testsWithResultsAreRecorded() throws Exception {
+        TestIdTable testIds = new TestIdTable(new File(folder.getRoot(), "testIds.txt"));
+        testIds.intern(Collections.singletonList("com.foo.ParserEdgeCaseTest.class"));
+        File file = new File(folder.getRoot(), "coChange.txt");
+
+        new CoChangeMap(file).record(COMMITS, testIds);
+
+        // LexerTest is named like a test, but has no results in the job
+        CoChangeMap loaded = new CoChangeMap(file);
+        assertEquals(Collections.singletonList("com.foo.ParserEdgeCaseTest"),
+                     loaded.getTests(Collections.singletonList("com.foo.Parser")));
+        assertEquals(Collections.<String>emptyList(), loaded.getTests(Collections.singletonList("com.foo.Lexer")));
+    }
+
+    @Test
+    public void testsAreTakenByNameBeforeThereAreResults() throws Exception {
+        TestIdTable testIds = new TestIdTable(new File(folder.getRoot(), "testIds.txt"));
+        CoChangeMap map = new CoChangeMap(new File(folder.getRoot(), "coChange.txt"));
+
+        map.record(COMMITS, testIds);
+
+        assertEquals(Collections.singletonList("com.foo.LexerTest"),
+                     map.getTests(Collections.singletonList("com.foo.Lexer")));
+        assertEquals(Collections.singletonList("com.foo.ParserEdgeCaseTest"),
+                     map.getTests(Collections.singletonList("com.foo.Parser")));
+    }
+}
@@ -0,0 +1,156 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GraphSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // a.Core <- b.Service <- c.ServiceTest, and d.Other referencing nothing
+    private static ClassDependencyGraph graph() {
+        HashMap<String, HashSet<String>> references = new HashMap<>();
+        references.put("a.Core", new HashSet<String>());
+        references.put("b.Service", new HashSet<>(Arrays.asList("a.Core", "java.lang.String")));
+        references.put("c.ServiceTest", new HashSet<>(Arrays.asList("b.Service")));
+        references.put("d.Other", new HashSet<String>());
+        return ClassDependencyGraph.fromReferences(references);
+    }
+
+    @Test
+    public void snapshotKeepsTheGraph() throws Exception {
+        File file = new File(folder.getRoot(), "graph.bin");
+        GraphSnapshot.write(graph(), 42, file);
+
+        GraphSnapshot snapshot = GraphSnapshot.map(file);
+
+        assertEquals(42, snapshot.getVersion());
+        assertEquals(4, snapshot.getClassCount());
+        int core = snapshot.getId("a.Core");
+        int service = snapshot.getId("b.Service");
+        assertEquals("a.Core", snapshot.getClassName(core));
+        assertEquals(-1, snapshot.getId("java.lang.String"));
+        assertArrayEquals(new int[] { core }, snapshot.getReferences(service));
+        assertArrayEquals(new int[] { service }, snapshot.getDependents(core));
+        assertEquals(Arrays.asList(service), snapshot.withSimpleName("Service"));
+    }
+
+    @Test
+    public void closureFollowsDependentsUpToTheDepth() throws Exception {
+        File file = new File(folder.getRoot(), "graph.bin");
+        GraphSnapshot.write(graph(), 1, file);
+        GraphSnapshot snapshot = GraphSnapshot.map(file);
+        int core = snapshot.getId("a.Core");
+
+        BitSet all = snapshot.getDependentClosure(Collections.singletonList(core), 0);
+        BitSet direct = snapshot.getDependentClosure(Collections.singletonList(core), 1);
+
+        assertEquals(3, all.cardinality());
+        assertTrue(all.get(snapshot.getId("c.ServiceTest")));
+        assertEquals(2, direct.cardinality());
+        assertTrue(direct.get(snapshot.getId("b.Service")));
+    }
+
+    @Test
+    public void depthsCountTheReferencesFromTheNearestChange() throws Exception {
+        File file = new File(folder.getRoot(), "graph.bin");
+        GraphSnapshot.write(graph(), 1, file);
+        GraphSnapshot snapshot = GraphSnapshot.map(file);
+
+        int[] depths = snapshot.getDependentDepths(Collections.singletonList(snapshot.getId("a.Core")), 0);
+
+        assertEquals(0, depths[snapshot.getId("a.Core")]);
+        assertEquals(1, depths[snapshot.getId("b.Service")]);
+        assertEquals(2, depths[snapshot.getId("c.ServiceTest")]);
+        assertEquals(-1, depths[snapshot.getId("d.Other")]);
+    }
+
+    @Test
+    public void dependentModulesAreListedBreadthFirst() throws Exception {
+        // z.Core sorts after its dependents, so the order of the class IDs is not breadth first
+        HashMap<String, HashSet<String>> references = new HashMap<>();
+        references.put("z.Core", new HashSet<String>());
+        references.put("m.Service", new HashSet<>(Arrays.asList("z.Core")));
+        references.put("a.ServiceTest", new HashSet<>(Arrays.asList("m.Service")));
+        File file = new File(folder.getRoot(), "graph.bin");
+        GraphSnapshot.write(ClassDependencyGraph.fromReferences(references), 1, file);
+
+        LinkedHashMap<String, Integer> depths = BytecodeDependencyAnalysis.getDependencyDepths(
+                GraphSnapshot.map(file), Collections.singletonList("z.Core"), 0);
+
+        assertEquals(Arrays.asList("z.Core", "m.Service", "a.ServiceTest"), new ArrayList<>(depths.keySet()));
+        assertEquals(Arrays.asList(0, 1, 2), new ArrayList<>(depths.values()));
+    }
+
+    @Test
+    public void rewriteReplacesTheSnapshotWithoutLeavingTemporaryFiles() throws Exception {
+        File file = new File(folder.getRoot(), "graph.bin");
+        GraphSnapshot.write(graph(), 1, file);
+        GraphSnapshot.map(file);
+
+        GraphSnapshot.write(ClassDependencyGraph.fromReferences(new HashMap<String, HashSet<String>>()), 2, file);
+        // the rewrite may keep the modification time, but not the length
+        GraphSnapshot snapshot = GraphSnapshot.map(file);
+
+        assertEquals(2, snapshot.getVersion());
+        assertEquals(0, snapshot.getClassCount());
+        assertArrayEquals(new String[] { "graph.bin" }, folder.getRoot().list());
+    }
+
+    @Test
+    public void parallelClosureOfALargeGraphEqualsTheSerialOne() throws Exception {
+        // 50,000 classes with a few references each; 1,000 changed classes make every level large enough to fork
+        int classCount = 50000;
+        Random random = new Random(17);
+        HashMap<String, HashSet<String>> references = new HashMap<>();
+        for (int i = 0; i < classCount; i++) {
+            HashSet<String> referenced = new HashSet<>();
+            for (int j = random.nextInt(4); j > 0; j--)
+                referenced.add(className(random.nextInt(classCount)));
+            references.put(className(i), referenced);
+        }
+        ClassDependencyGraph graph = ClassDependencyGraph.fromReferences(references);
+        File file = new File(folder.getRoot(), "graph.bin");
+        GraphSnapshot.write(graph, 1, file);
+        GraphSnapshot snapshot = GraphSnapshot.map(file);
+
+        ArrayList<String> changed = new ArrayList<>();
+        ArrayList<Integer> changedIds = new ArrayList<>();
+        for (int i = 0; i < classCount; i += 50) {
+            changed.add(className(i));
+            changedIds.add(snapshot.getId(className(i)));
+        }
+
+        for (int maxDepth : new int[] { 0, 1, 3 }) {
+            LinkedHashSet<String> serial = graph.getDependentClosure(changed, maxDepth);
+            BitSet parallel = snapshot.getDependentClosure(changedIds, maxDepth);
+            assertTrue(serial.size() > 2 * changed.size());
+
+            HashSet<String> parallelNames = new HashSet<>();
+            for (int id = parallel.nextSetBit(0); id >= 0; id = parallel.nextSetBit(id + 1))
+                parallelNames.add(snapshot.getClassName(id));
+            assertEquals(new HashSet<>(serial), parallelNames);
+        }
+    }
+
+    private static String className(int i) {
+        return "p" + i % 100 + ".C" + i;
+    }
+}
@@ -0,0 +1,63 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class SelectionCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final List<String> SUITE = Arrays.asList("com.foo.BarTest", "com.foo.BazTest");
+
+    @Test
+    public void orderOfTheChangeSetDoesNotMatter() throws Exception {
+        assertEquals(SelectionCache.fingerprint(Arrays.asList("a/A.java", "b/B.java"), "commit 1", SUITE, "bytecode"),
+                     SelectionCache.fingerprint(Arrays.asList("b/B.java", "a/A.java"), "commit 1", SUITE, "bytecode"));
+    }
+
+    @Test
+    public void everyInputChangesTheFingerprint() throws Exception {
+        String fingerprint = SelectionCache.fingerprint(Arrays.asList("a/A.java"), "commit 1", SUITE, "bytecode");
+
+        assertNotEquals(fingerprint,
+                SelectionCache.fingerprint(Arrays.asList("a/B.java"), "commit 1", SUITE, "bytecode"));
+        assertNotEquals(fingerprint,
+                SelectionCache.fingerprint(Arrays.asList("a/A.java"), "commit 2", SUITE, "bytecode"));
+        assertNotEquals(fingerprint,
+                SelectionCache.fingerprint(Arrays.asList("a/A.java"), "commit 1", SUITE.subList(0, 1), "bytecode"));
+        assertNotEquals(fingerprint,
+                SelectionCache.fingerprint(Arrays.asList("a/A.java"), "commit 1", SUITE, "understand"));
+    }
+
+    @Test
+    public void linesDoNotRunIntoTheNextGroup() throws Exception {
+        // the same lines split differently between the change set and the suite file
+        assertNotEquals(
+                SelectionCache.fingerprint(Arrays.asList("x", "y"), "commit 1", Arrays.asList("z"), "bytecode"),
+                SelectionCache.fingerprint(Arrays.asList("x"), "commit 1", Arrays.asList("y", "z"), "bytecode"));
+    }
+
+    @Test
+    public void resultsAreReadBackWithoutLeavingTemporaryFiles() throws Exception {
+        File file = new File(folder.getRoot(), "selectionCache.txt");
+        new SelectionCache(file).put("a", SUITE);
+        new SelectionCache(file).put("b", SUITE.subList(1, 2));
+
+        SelectionCache loaded = new SelectionCache(file);
+        assertEquals(SUITE, loaded.get("a"));
+        assertEquals(SUITE.subList(1, 2), loaded.get("b"));
+        assertNull(loaded.get("c"));
+        assertArrayEquals(new String[] { "selectionCache.txt" }, folder.getRoot().list());
+    }
+}
@@ -0,0 +1,80 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestHistoryIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<Integer> buildNumbers(List<BuildTestRecord> records) {
+        ArrayList<Integer> buildNumbers = new ArrayList<>();
+        for (BuildTestRecord record : records)
+            buildNumbers.add(record.getBuildNumber());
+        return buildNumbers;
+    }
+
+    @Test
+    public void buildsCompletingOutOfOrderAreIndexed() throws Exception {
+        File file = new File(folder.getRoot(), "testHistory.log");
+        TestHistoryIndex index = new TestHistoryIndex(file);
+        for (int buildNumber : new int[] { 1, 2, 4, 5, 3 })
+            index.append(new BuildTestRecord(buildNumber, false));
+
+        assertEquals(Arrays.asList(5, 4, 3, 2), buildNumbers(index.getNewest(4)));
+
+        TestHistoryIndex loaded = new TestHistoryIndex(file);
+        assertEquals(5, loaded.getLastBuildNumber());
+        assertTrue(loaded.isIndexed(3));
+        assertEquals(Arrays.asList(5, 4, 3, 2, 1), buildNumbers(loaded.getNewest(10)));
+    }
+
+    @Test
+    public void buildsAreIndexedOnce() throws Exception {
+        File file = new File(folder.getRoot(), "testHistory.log");
+        TestHistoryIndex index = new TestHistoryIndex(file);
+        index.append(new BuildTestRecord(1, false));
+        index.append(new BuildTestRecord(2, false));
+
+        new TestHistoryIndex(file).append(new BuildTestRecord(1, false));
+
+        assertEquals(Arrays.asList(2, 1), buildNumbers(new TestHistoryIndex(file).getNewest(10)));
+    }
+
+    @Test
+    public void buildsTooFarBehindAreNotIndexed() throws Exception {
+        TestHistoryIndex index = new TestHistoryIndex(new File(folder.getRoot(), "testHistory.log"));
+        index.append(new BuildTestRecord(1, false));
+        index.append(new BuildTestRecord(3 + TestHistoryIndex.MAX_OUT_OF_ORDER, false));
+
+        assertTrue(index.isIndexed(2));
+        assertFalse(index.isIndexed(4));
+        index.append(new BuildTestRecord(2, false));
+        assertEquals(Arrays.asList(3 + TestHistoryIndex.MAX_OUT_OF_ORDER, 1), buildNumbers(index.getNewest(10)));
+    }
+
+    @Test
+    public void newestRecordsAreFoundAmongManyAppendedOutOfOrder() throws Exception {
+        File file = new File(folder.getRoot(), "testHistory.log");
+        TestHistoryIndex index = new TestHistoryIndex(file);
+        // every even build completes after the odd build following it
+        for (int buildNumber = 1; buildNumber <= 500; buildNumber += 2) {
+            index.append(new BuildTestRecord(buildNumber, false));
+            if (buildNumber > 1)
+                index.append(new BuildTestRecord(buildNumber - 1, false));
+        }
+
+        assertEquals(Arrays.asList(499, 498, 497), buildNumbers(new TestHistoryIndex(file).getNewest(3)));
+    }
+}
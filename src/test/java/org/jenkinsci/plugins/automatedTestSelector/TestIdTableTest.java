@@ -0,0 +1,49 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestIdTableTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final List<String> SUITE = Arrays.asList(
+            "package com.foo.suite;",
+            "",
+            "import com.foo.BarTest;",
+            "import org.junit.runner.RunWith;",
+            "import org.junit.runners.Suite;",
+            "",
+            "@RunWith(Suite.class)",
+            "@Suite.SuiteClasses({",
+            "        BarTest.class,",
+            "        BazTest.class,",
+            "        NewTest.class",
+            "})",
+            "public class AllTests {",
+            "}");
+
+    @Test
+    public void suiteEntriesAreLookedUpByQualifiedName() throws Exception {
+        TestIdTable idTable = new TestIdTable(new File(folder.getRoot(), "testIds.txt"));
+        // test results are recorded under the package of the test class
+        int[] ids = idTable.intern(Arrays.asList(TestIdTable.testName("com.foo.BarTest"),
+                                                 TestIdTable.testName("com.foo.suite.BazTest")));
+
+        HashMap<String, Integer> suiteIds =
+                idTable.getSuiteIds(SUITE, Arrays.asList("BarTest.class", "BazTest.class", "NewTest.class"));
+
+        assertEquals(ids[0], (int) suiteIds.get("BarTest.class"));
+        assertEquals(ids[1], (int) suiteIds.get("BazTest.class"));
+        assertEquals(-1, (int) suiteIds.get("NewTest.class"));
+    }
+}
@@ -0,0 +1,83 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.FilePath;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestOutputTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String write(String format, List<String> qualifiedNames) throws IOException, InterruptedException {
+        FilePath workspace = new FilePath(folder.getRoot());
+        TestOutput.write(workspace, "selected.txt", format, qualifiedNames);
+        return workspace.child("selected.txt").readToString();
+    }
+
+    @Test
+    public void qualifiedNamesUseImportsAndPackage() {
+        List<String> lines = Arrays.asList("package com.foo;", "import com.bar.BarTest;",
+                                           "import static org.junit.Assert.assertTrue;", "@SuiteClasses({");
+
+        assertEquals(Arrays.asList("com.bar.BarTest", "com.foo.FooTest", "org.other.OtherTest"),
+                     TestOutput.qualifiedNames(lines,
+                             Arrays.asList("BarTest.class", "FooTest.class", "org.other.OtherTest.class")));
+    }
+
+    @Test
+    public void withMethodsAppendsTheMethodsToRun() {
+        HashMap<String, ArrayList<String>> testMethods = new HashMap<>();
+        testMethods.put("BarTest.class", new ArrayList<>(Arrays.asList("a", "b")));
+
+        assertEquals(Arrays.asList("com.BarTest#a+b", "com.FooTest"),
+                     TestOutput.withMethods(Arrays.asList("BarTest.class", "FooTest.class"),
+                                            Arrays.asList("com.BarTest", "com.FooTest"), testMethods));
+    }
+
+    @Test
+    public void surefireListsClassFilePatterns() throws IOException, InterruptedException {
+        String output = write(TestOutput.SUREFIRE, Arrays.asList("com.foo.BarTest#a+b", "com.foo.FooTest"));
+
+        assertEquals("com/foo/BarTest.java#a+b" + System.lineSeparator()
+                + "com/foo/FooTest.java" + System.lineSeparator(), output);
+    }
+
+    @Test
+    public void emptySurefireSelectionMatchesNothing() throws IOException, InterruptedException {
+        String output = write(TestOutput.SUREFIRE, Collections.<String>emptyList());
+
+        assertTrue(output.contains(TestOutput.NO_TESTS_PATTERN));
+    }
+
+    @Test
+    public void gradleFiltersEachMethod() throws IOException, InterruptedException {
+        String output = write(TestOutput.GRADLE, Arrays.asList("com.BarTest#a+b", "com.FooTest"));
+
+        assertTrue(output.contains("includeTestsMatching 'com.BarTest.a'"));
+        assertTrue(output.contains("includeTestsMatching 'com.BarTest.b'"));
+        assertTrue(output.contains("includeTestsMatching 'com.FooTest'"));
+        assertFalse(output.contains("failOnNoMatchingTests"));
+    }
+
+    @Test
+    public void emptyGradleSelectionMatchesNothing() throws IOException, InterruptedException {
+        String output = write(TestOutput.GRADLE, Collections.<String>emptyList());
+
+        assertTrue(output.contains("failOnNoMatchingTests = false"));
+        assertTrue(output.contains("includeTestsMatching 'no.tests.Selected'"));
+    }
+}
@@ -0,0 +1,60 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestPriorityTest {
+
+    private static final double[] DEFAULT_WEIGHTS = { 3, 1, 2, 0.5, 2 };
+
+    @Test
+    public void signalsLeftOutKeepTheirDefaultWeight() {
+        assertArrayEquals(DEFAULT_WEIGHTS, TestPriority.parseWeights(null), 0);
+        assertArrayEquals(DEFAULT_WEIGHTS, TestPriority.parseWeights("  "), 0);
+        assertArrayEquals(new double[] { 3, 1, 0, 0.5, 4 }, TestPriority.parseWeights(" new = 4,distance=0 "), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownSignalIsRejected() {
+        TestPriority.parseWeights("failure=3, flakiness=1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeWeightIsRejected() {
+        TestPriority.parseWeights("failure=-1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void weightThatIsNotANumberIsRejected() {
+        TestPriority.parseWeights("failure=high");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pairWithoutWeightIsRejected() {
+        TestPriority.parseWeights("failure");
+    }
+
+    @Test
+    public void distanceFollowsTheDepthWhenItIsKnown() {
+        assertEquals(1, TestPriority.dependencyDistance(0, 5, 10), 0);
+        assertEquals(0.5, TestPriority.dependencyDistance(1, 0, 10), 0);
+        assertEquals(0.8, TestPriority.dependencyDistance(null, 2, 10), 1e-9);
+    }
+
+    @Test
+    public void scoreOrdersTestsOfTheSamePriorityOnly() {
+        double[] weights = TestPriority.parseWeights("failure=1, staleness=0, distance=0, duration=0, new=0");
+        TestPriority failing = new TestPriority("a.FailingTest");
+        failing.setSignal(TestPriority.FAILURE, 1);
+        failing.scoreSignals(weights);
+        TestPriority prioritized = new TestPriority("b.PrioritizedTest");
+        prioritized.scoreSignals(weights);
+
+        assertEquals(1, failing.getScore(), 0);
+        assertEquals(-1, failing.compareTo(new TestPriority("c.OtherTest")));
+        prioritized.setHighPriority();
+        assertEquals(1, failing.compareTo(prioritized));
+    }
+}
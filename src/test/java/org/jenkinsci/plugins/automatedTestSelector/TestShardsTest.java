@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestShardsTest {
+
+    @Test
+    public void longestTestsAreSpreadAcrossShards() {
+        List<String> tests = Arrays.asList("A", "B", "C", "D", "E");
+        double[] durations = { 1, 8, 2, 7, 4 };
+        double[] loads = new double[2];
+
+        ArrayList<ArrayList<String>> shards = TestShards.partition(tests, durations, 2, loads);
+
+        // longest first: B(8) -> 0, D(7) -> 1, E(4) -> 1, C(2) -> 0, A(1) -> 0
+        assertEquals(Arrays.asList("A", "B", "C"), shards.get(0));
+        assertEquals(Arrays.asList("D", "E"), shards.get(1));
+        assertEquals(11, loads[0], 0);
+        assertEquals(11, loads[1], 0);
+    }
+
+    @Test
+    public void priorityOrderIsKeptWithinShards() {
+        List<String> tests = Arrays.asList("first", "second", "third", "fourth");
+        double[] durations = { 1, 1, 1, 1 };
+
+        ArrayList<ArrayList<String>> shards = TestShards.partition(tests, durations, 2, new double[2]);
+
+        for (ArrayList<String> shard : shards) {
+            for (int i = 1; i < shard.size(); i++)
+                assertTrue(tests.indexOf(shard.get(i - 1)) < tests.indexOf(shard.get(i)));
+        }
+        assertEquals(Arrays.asList("first", "third"), shards.get(0));
+        assertEquals(Arrays.asList("second", "fourth"), shards.get(1));
+    }
+
+    @Test
+    public void extraShardsAreEmpty() {
+        ArrayList<ArrayList<String>> shards =
+                TestShards.partition(Arrays.asList("A"), new double[] { 3 }, 3, new double[3]);
+
+        assertEquals(3, shards.size());
+        assertEquals(Arrays.asList("A"), shards.get(0));
+        assertTrue(shards.get(1).isEmpty());
+        assertTrue(shards.get(2).isEmpty());
+    }
+
+    @Test
+    public void shardFileInsertsShardBeforeExtension() {
+        assertEquals("src/test/AllTestsShard2.java", TestShards.shardFile("src/test/AllTests.java", 2));
+        assertEquals("tests/includesShard1", TestShards.shardFile("tests/includes", 1));
+        assertEquals("dir.d/includesShard1", TestShards.shardFile("dir.d/includes", 1));
+    }
+
+    @Test
+    public void shardLinesRenameTheSuiteClass() {
+        List<String> lines = Arrays.asList("package foo;", "public class AllTests {", "}");
+
+        assertEquals(Arrays.asList("package foo;", "public class AllTestsShard3 {", "}"),
+                     TestShards.shardLines(lines, "src/test/java/foo/AllTests.java", 3));
+    }
+}
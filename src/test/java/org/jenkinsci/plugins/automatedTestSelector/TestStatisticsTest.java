@@ -0,0 +1,124 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestStatisticsTest {
+
+    private static final int HALF_LIFE = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static BuildTestRecord record(int buildNumber, int executedId, boolean failed) {
+        BitSet executed = new BitSet();
+        executed.set(executedId);
+        BitSet failures = new BitSet();
+        if (failed)
+            failures.set(executedId);
+        return new BuildTestRecord(buildNumber, true, executed, failures, new float[] { 1.0f });
+    }
+
+    private TestStatistics statistics() throws IOException {
+        return new TestStatistics(new File(folder.getRoot(), "testStatistics.txt"));
+    }
+
+    @Test
+    public void failureScoreDecaysByHalfLife() throws IOException {
+        TestStatistics statistics = statistics();
+        statistics.apply(Collections.singletonList(record(1, 0, true)), HALF_LIFE);
+
+        assertEquals(1.0, statistics.getFailureScore(0, 1), 1e-9);
+        assertEquals(0.5, statistics.getFailureScore(0, 1 + HALF_LIFE), 1e-9);
+        assertEquals(0, statistics.getFailureScore(1, 1), 0);
+    }
+
+    @Test
+    public void buildsCompletingOutOfOrderAreApplied() throws IOException {
+        TestStatistics statistics = statistics();
+        statistics.apply(Collections.singletonList(record(2, 0, true)), HALF_LIFE);
+        statistics.apply(Collections.singletonList(record(1, 0, true)), HALF_LIFE);
+
+        TestStatistics inOrder = new TestStatistics(folder.newFile("inOrder.txt"));
+        inOrder.apply(Arrays.asList(record(2, 0, true), record(1, 0, true)), HALF_LIFE);
+
+        assertEquals(inOrder.getFailureScore(0, 5), statistics.getFailureScore(0, 5), 1e-9);
+        assertEquals(2, statistics.getLastBuildNumber(HALF_LIFE));
+        assertEquals(3, statistics.getBuildsSinceExecuted(0, 5));
+    }
+
+    @Test
+    public void recordsWithoutResultsAreLeftForLater() throws IOException {
+        TestStatistics statistics = statistics();
+        // build 1 was still running when the window was read
+        statistics.apply(Arrays.asList(record(2, 0, false), new BuildTestRecord(1, false)), HALF_LIFE);
+        statistics.apply(Collections.singletonList(record(1, 0, true)), HALF_LIFE);
+
+        assertEquals(Math.pow(TestStatistics.decayFactor(HALF_LIFE), 1), statistics.getFailureScore(0, 2), 1e-9);
+    }
+
+    @Test
+    public void buildsAreAppliedOnceAcrossReloads() throws IOException {
+        TestStatistics statistics = statistics();
+        statistics.apply(Arrays.asList(record(3, 0, true), record(1, 0, true)), HALF_LIFE);
+
+        TestStatistics reloaded = statistics();
+        reloaded.apply(Arrays.asList(record(3, 0, true), record(2, 0, true), record(1, 0, true)), HALF_LIFE);
+
+        TestStatistics expected = new TestStatistics(folder.newFile("expected.txt"));
+        expected.apply(Arrays.asList(record(3, 0, true), record(2, 0, true), record(1, 0, true)), HALF_LIFE);
+        assertEquals(expected.getFailureScore(0, 3), reloaded.getFailureScore(0, 3), 1e-9);
+    }
+
+    @Test
+    public void changingTheHalfLifeResetsTheStatistics() throws IOException {
+        TestStatistics statistics = statistics();
+        statistics.apply(Collections.singletonList(record(1, 0, true)), HALF_LIFE);
+
+        assertEquals(0, statistics.getLastBuildNumber(HALF_LIFE * 2));
+        assertEquals(0, statistics.getFailureScore(0, 1), 0);
+    }
+
+    @Test
+    public void appendedBuildsAreReadBack() throws IOException {
+        TestStatistics statistics = statistics();
+        TestStatistics expected = new TestStatistics(folder.newFile("expected.txt"));
+        // the first build writes the statistics, the rest are appended and rewritten now and then
+        for (int buildNumber = 1; buildNumber <= 250; buildNumber++) {
+            statistics.apply(Collections.singletonList(record(buildNumber, buildNumber % 3, buildNumber % 5 == 0)),
+                             HALF_LIFE);
+            expected.apply(Collections.singletonList(record(buildNumber, buildNumber % 3, buildNumber % 5 == 0)),
+                           HALF_LIFE);
+        }
+
+        TestStatistics reloaded = statistics();
+        assertEquals(250, reloaded.getLastBuildNumber(HALF_LIFE));
+        for (int id = 0; id < 3; id++) {
+            assertEquals(expected.getFailureScore(id, 250), reloaded.getFailureScore(id, 250), 1e-9);
+            assertEquals(expected.getBuildsSinceExecuted(id, 250), reloaded.getBuildsSinceExecuted(id, 250));
+            assertEquals(expected.getSmoothedDuration(id), reloaded.getSmoothedDuration(id), 1e-9);
+        }
+        assertEquals(2, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void changingTheHalfLifeRewritesTheStatistics() throws IOException {
+        TestStatistics statistics = statistics();
+        statistics.apply(Collections.singletonList(record(1, 0, true)), HALF_LIFE);
+        statistics.apply(Collections.singletonList(record(2, 0, true)), HALF_LIFE);
+        statistics.apply(Collections.singletonList(record(3, 0, true)), HALF_LIFE * 2);
+
+        TestStatistics reloaded = statistics();
+        assertEquals(3, reloaded.getLastBuildNumber(HALF_LIFE * 2));
+        assertEquals(1.0, reloaded.getFailureScore(0, 3), 1e-9);
+    }
+}
@@ -0,0 +1,39 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.FilePath;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestSuiteFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void blankLinesAndTestsCommentedOutAreNotTests() throws Exception {
+        FilePath workspace = new FilePath(folder.getRoot());
+        workspace.child("AllTests.java").write(
+                "import com.foo.BarTest;\n"
+                + "@RunWith(Suite.class)\n"
+                + "@Suite.SuiteClasses({\n"
+                + "    BarTest.class,\n"
+                + "\n"
+                + "    // BrokenTest.class,\n"
+                + "    BazTest.class\n"
+                + "})\n"
+                + "public class AllTests {}\n", "UTF-8");
+
+        ArrayList<String> linesForFile = new ArrayList<>();
+        assertEquals(Arrays.asList("BarTest.class", "BazTest.class"),
+                     TestSuiteFile.read(workspace, "AllTests.java", linesForFile));
+        assertEquals(Arrays.asList("import com.foo.BarTest;", "@RunWith(Suite.class)", "@Suite.SuiteClasses({",
+                                   "public class AllTests {}"), linesForFile);
+    }
+}
@@ -0,0 +1,55 @@
+package org.jenkinsci.plugins.automatedTestSelector;
+
+import hudson.FilePath;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TieredSelectionTest {
+
+    // a full analysis that runs until it is stopped
+    private static Future<Void> runningTier() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        Future<Void> tier = TieredSelection.submit(new Callable<Void>() {
+            public Void call() throws InterruptedException {
+                started.countDown();
+                new CountDownLatch(1).await();
+                return null;
+            }
+        });
+        started.await();
+        return tier;
+    }
+
+    @Test
+    public void tierLeftRunningByAnEarlierBuildIsStopped() throws Exception {
+        Future<Void> earlier = runningTier();
+        Future<Void> later = runningTier();
+
+        TieredSelection.detach("job", earlier);
+        assertFalse(earlier.isDone());
+
+        TieredSelection.detach("job", later);
+        assertTrue(earlier.isCancelled());
+        assertFalse(later.isDone());
+
+        TieredSelection.stop(later);
+    }
+
+    @Test
+    public void workspacesShareALockByPath() throws Exception {
+        assertSame(TieredSelection.workspaceLock(new FilePath(new File("/ws/job"))),
+                   TieredSelection.workspaceLock(new FilePath(new File("/ws/job"))));
+        assertNotSame(TieredSelection.workspaceLock(new FilePath(new File("/ws/job"))),
+                      TieredSelection.workspaceLock(new FilePath(new File("/ws/job@2"))));
+    }
+}